@@ -16,12 +16,32 @@
 
 package com.nickbp.viz;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
 import com.nickbp.viz.audio.AudioSourceSwitcher;
+import com.nickbp.viz.audio.SyntheticAudioSource;
+import com.nickbp.viz.audio.SyntheticAudioSourceFactory;
 import com.nickbp.viz.canvas.CanvasVisualizerView;
 import com.nickbp.viz.hider.SystemUiHider;
+import com.nickbp.viz.net.LoopbackSelfTest;
+import com.nickbp.viz.net.SpectrumBroadcaster;
+import com.nickbp.viz.net.SpectrumProtocol;
+import com.nickbp.viz.pipeline.FrameRateSink;
+import com.nickbp.viz.pipeline.Pipeline;
+import com.nickbp.viz.share.SharedSpectrumWriter;
+import com.nickbp.viz.util.PrecalcColorUtil;
+import com.nickbp.viz.util.StartupTrace;
+import com.nickbp.viz.util.Tracer;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.ComponentCallbacks2;
+import android.content.DialogInterface;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -38,19 +58,91 @@ public class VisualizerActivity extends Activity {
     private static final int AUTO_HIDE_DELAY_MILLIS = 3000;
     private static final int VIEWCHANGE_HIDE_DELAY_MILLIS = 100;
 
-    private final AudioSourceSwitcher sourceSwitcher = new AudioSourceSwitcher();
+    /**
+     * Optional intent extra: host or address which frames should be broadcast to, eg for driving
+     * secondary displays or lighting. Broadcasting is disabled if this is unset. Since any app may
+     * start this activity, nothing is sent until the user has confirmed the destination.
+     */
+    public static final String EXTRA_BROADCAST_HOST = "com.nickbp.viz.BROADCAST_HOST";
+    /**
+     * Optional intent extra: port which frames should be broadcast to, when
+     * {@link #EXTRA_BROADCAST_HOST} is set.
+     */
+    public static final String EXTRA_BROADCAST_PORT = "com.nickbp.viz.BROADCAST_PORT";
+    /**
+     * Optional intent extra: whether frames should be broadcast over TCP rather than UDP, when
+     * {@link #EXTRA_BROADCAST_HOST} is set.
+     */
+    public static final String EXTRA_BROADCAST_TCP = "com.nickbp.viz.BROADCAST_TCP";
+    /**
+     * Optional intent extra: whether to check broadcasting over loopback, logging the frame rate,
+     * latency and loss for each transport under the {@code LoopbackSelfTest} tag. Nothing is sent
+     * off of the device.
+     */
+    public static final String EXTRA_BROADCAST_SELF_TEST = "com.nickbp.viz.BROADCAST_SELF_TEST";
+    /**
+     * Optional intent extra: whether the microphone should be kept open on standby while player
+     * audio is in use, for faster switching at some cost in power. See
+     * {@link AudioSourceSwitcher#setWarmStandby(boolean)}.
+     */
+    public static final String EXTRA_WARM_STANDBY = "com.nickbp.viz.WARM_STANDBY";
+    /**
+     * Optional intent extra: a {@code SyntheticAudioSource.SIGNAL_*} value. If set, generated audio
+     * is used in place of the device's audio, with the microphone fallback replaced by pink noise.
+     * For testing only.
+     */
+    public static final String EXTRA_SYNTHETIC_SIGNAL = "com.nickbp.viz.SYNTHETIC_SIGNAL";
+    /**
+     * Optional intent extra: samples per output when {@link #EXTRA_SYNTHETIC_SIGNAL} is set.
+     */
+    public static final String EXTRA_SYNTHETIC_SIZE = "com.nickbp.viz.SYNTHETIC_SIZE";
+    /**
+     * Optional intent extra: outputs per second when {@link #EXTRA_SYNTHETIC_SIGNAL} is set, or
+     * zero for as fast as possible.
+     */
+    public static final String EXTRA_SYNTHETIC_RATE_HZ = "com.nickbp.viz.SYNTHETIC_RATE_HZ";
+
+    /**
+     * Optional intent extra: a {@code Tracer.MODE_*} value to trace with. In buffer mode, the
+     * trace is written to {@link #TRACE_FILE_NAME} in the app's external files directory whenever
+     * the activity is stopped.
+     */
+    public static final String EXTRA_TRACE_MODE = "com.nickbp.viz.TRACE_MODE";
+    public static final String TRACE_FILE_NAME = "trace.json";
+    /**
+     * Optional intent extra: the largest scale, from 0.0f (exclusive) to 1.0f, at which the
+     * voiceprint history is kept. See {@link CanvasVisualizerView#setMaxRenderScale(float)}.
+     */
+    public static final String EXTRA_MAX_RENDER_SCALE = "com.nickbp.viz.MAX_RENDER_SCALE";
+
+    private static final int DEFAULT_SYNTHETIC_SIZE = 1024;
+    private static final int DEFAULT_SYNTHETIC_RATE_HZ = 60;
+    private static final int SELF_TEST_FRAMES = 500;
+    private static final int SELF_TEST_RATE_HZ = 60;
+
+    private AudioSourceSwitcher sourceSwitcher;
     private final Handler hideHandler = new Handler();
     private SystemUiHider systemUiHider;
     private CanvasVisualizerView vizView;
+    private Pipeline pipeline;
+    private SpectrumBroadcaster broadcaster = null;
+    // Whether the user has allowed broadcasting to the requested host.
+    private boolean broadcastConfirmed = false;
+    private boolean started = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin();
+        Tracer.setMode(getIntent().getIntExtra(EXTRA_TRACE_MODE, Tracer.MODE_OFF));
+        // Build the color tables while the rest of startup proceeds, rather than on first render.
+        PrecalcColorUtil.warmUpAsync();
         super.onCreate(savedInstanceState);
         Log.d(TAG, "onCreate");
 
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
 
         vizView = new CanvasVisualizerView(this);
+        vizView.setMaxRenderScale(getIntent().getFloatExtra(EXTRA_MAX_RENDER_SCALE, 1.0f));
         vizView.setInteractionListeners(
             new Runnable() {
                 @Override
@@ -62,6 +154,39 @@ public class VisualizerActivity extends Activity {
                 }
             });
         setContentView(vizView);
+        StartupTrace.mark("content view set");
+
+        Pipeline.Builder pipelineBuilder = new Pipeline.Builder()
+            .addSink(vizView, vizView)
+            .addSink(new FrameRateSink(), 0);
+        String broadcastHost = getIntent().getStringExtra(EXTRA_BROADCAST_HOST);
+        if (broadcastHost != null) {
+            int broadcastPort =
+                getIntent().getIntExtra(EXTRA_BROADCAST_PORT, SpectrumProtocol.DEFAULT_PORT);
+            // Drops any frames until it's started, which only happens once the user confirms.
+            broadcaster = new SpectrumBroadcaster(broadcastHost, broadcastPort,
+                getIntent().getBooleanExtra(EXTRA_BROADCAST_TCP, false)
+                    ? SpectrumBroadcaster.TRANSPORT_TCP : SpectrumBroadcaster.TRANSPORT_UDP);
+            pipelineBuilder.addSink(broadcaster, SpectrumBroadcaster.REQUIRED_FEATURES);
+            confirmBroadcast(broadcastHost, broadcastPort);
+        }
+        if (getIntent().getBooleanExtra(EXTRA_BROADCAST_SELF_TEST, false)) {
+            startBroadcastSelfTest();
+        }
+        // Lets our other apps read the spectrum via SpectrumExportService, while any are bound.
+        pipelineBuilder.addSink(SharedSpectrumWriter.SINK, 0);
+        pipeline = pipelineBuilder.build();
+
+        if (getIntent().hasExtra(EXTRA_SYNTHETIC_SIGNAL)) {
+            sourceSwitcher = new AudioSourceSwitcher(new SyntheticAudioSourceFactory(
+                getIntent().getIntExtra(EXTRA_SYNTHETIC_SIGNAL, SyntheticAudioSource.SIGNAL_SWEEP),
+                SyntheticAudioSource.SIGNAL_PINK_NOISE,
+                getIntent().getIntExtra(EXTRA_SYNTHETIC_SIZE, DEFAULT_SYNTHETIC_SIZE),
+                getIntent().getIntExtra(EXTRA_SYNTHETIC_RATE_HZ, DEFAULT_SYNTHETIC_RATE_HZ)));
+        } else {
+            sourceSwitcher = new AudioSourceSwitcher();
+        }
+        sourceSwitcher.setWarmStandby(getIntent().getBooleanExtra(EXTRA_WARM_STANDBY, false));
 
         // Set up an instance of SystemUiHider to control the system UI for this activity.
         systemUiHider =
@@ -79,6 +204,7 @@ public class VisualizerActivity extends Activity {
                     }
                 }
             });
+        StartupTrace.mark("onCreate done");
     }
 
     @Override
@@ -86,13 +212,106 @@ public class VisualizerActivity extends Activity {
         super.onStart();
         // Hide controls on startup/rotate
         delayedControls("onStart", false, VIEWCHANGE_HIDE_DELAY_MILLIS);
-        sourceSwitcher.start(vizView, vizView);
+        // Start rendering before audio starts arriving, and stop it after audio has stopped.
+        vizView.start();
+        started = true;
+        if (broadcaster != null && broadcastConfirmed) {
+            broadcaster.start();
+        }
+        sourceSwitcher.start(vizView, pipeline);
+        StartupTrace.mark("audio started");
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         sourceSwitcher.stop();
+        started = false;
+        if (broadcaster != null) {
+            broadcaster.stop();
+        }
+        vizView.stop();
+        if (Tracer.getMode() == Tracer.MODE_BUFFER) {
+            writeTrace();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Covers both running low while in use and being sent to the background.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            vizView.trimMemory();
+        }
+    }
+
+    /**
+     * Asks the user whether frames may be sent to the provided destination, and starts the
+     * broadcaster if they agree.
+     */
+    private void confirmBroadcast(String host, int port) {
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.broadcast_confirm_title)
+            .setMessage(getString(R.string.broadcast_confirm_message, host, port))
+            .setCancelable(false)
+            .setPositiveButton(R.string.broadcast_allow, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Log.i(TAG, "Broadcasting allowed by user");
+                    broadcastConfirmed = true;
+                    if (started) {
+                        broadcaster.start();
+                    }
+                }
+            })
+            .setNegativeButton(R.string.broadcast_deny, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Log.i(TAG, "Broadcasting denied by user");
+                }
+            })
+            .show();
+    }
+
+    /**
+     * Runs {@link LoopbackSelfTest} over each transport on a background thread.
+     */
+    private void startBroadcastSelfTest() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LoopbackSelfTest.run(SpectrumProtocol.DEFAULT_PORT,
+                        SpectrumBroadcaster.TRANSPORT_UDP, SELF_TEST_FRAMES, SELF_TEST_RATE_HZ);
+                    LoopbackSelfTest.run(SpectrumProtocol.DEFAULT_PORT,
+                        SpectrumBroadcaster.TRANSPORT_TCP, SELF_TEST_FRAMES, SELF_TEST_RATE_HZ);
+                } catch (IOException e) {
+                    Log.e(TAG, "Broadcast self-test failed", e);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Broadcast self-test interrupted", e);
+                }
+            }
+        }, "LoopbackSelfTest").start();
+    }
+
+    private void writeTrace() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            Log.w(TAG, "No external storage to write trace to");
+            return;
+        }
+        File file = new File(dir, TRACE_FILE_NAME);
+        try {
+            Writer out = new BufferedWriter(new FileWriter(file));
+            try {
+                Tracer.writeChromeJson(out);
+            } finally {
+                out.close();
+            }
+            Log.i(TAG, "Wrote trace to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace to " + file, e);
+        }
     }
 
     @Override
@@ -16,6 +16,8 @@
 
 package com.nickbp.viz.audio;
 
+import com.nickbp.viz.util.LevelMeter;
+
 /**
  * Produces audio spectrum data from the device, suitable for use by visualizations.
  */
@@ -41,8 +43,55 @@ public interface AudioSource {
      */
     public void stop();
 
+    /**
+     * Sets whether this source should run in a low-power standby mode, in which capture stays
+     * open but only an occasional output is analyzed and passed on. This lets the source resume
+     * full-rate output immediately, without the delay of {@link #start(RawDataListener)}. Sources
+     * which don't support standby may ignore this.
+     */
+    public void setStandby(boolean standby);
+
     /**
      * Returns the size of the output data that this instance will pass to {@link RawDataListener}s.
      */
     public int getOutputSize();
+
+    /**
+     * Returns the approximate rate, in Hz, at which this instance will pass data to
+     * {@link RawDataListener}s.
+     */
+    public float getOutputRateHz();
+
+    /**
+     * Returns the sample rate, in Hz, of the audio which this instance's output is produced from.
+     */
+    public int getSampleRateHz();
+
+    /**
+     * Sets whether this source should measure the levels of its audio for
+     * {@link #getLevelMeter()}. Sources for which measuring costs extra may skip it when disabled.
+     * Enabled by default. Takes effect on the next {@link #start(RawDataListener)}.
+     */
+    public void setLevelsEnabled(boolean enabled);
+
+    /**
+     * Returns the meter which measures the levels of the audio captured by this instance, or
+     * {@code null} if this source isn't measuring levels, either because they're disabled or
+     * because the source can't measure the actual level of its audio. The meter is updated on the
+     * source's own schedule, which needn't match the outputs passed to {@link RawDataListener}s:
+     * the player output, for one, is metered from a separate capture. Its results are the most
+     * recent available. Should be called after {@link #start(RawDataListener)}.
+     */
+    public LevelMeter getLevelMeter();
+
+    /**
+     * Returns the fundamental frequency, in Hz, detected in the audio which produced the most
+     * recent output, or zero if no clear pitch was found or if this source doesn't detect pitch.
+     */
+    public float getPitchHz();
+
+    /**
+     * Returns how confident the most recent {@link #getPitchHz()} result is, from 0.0f to 1.0f.
+     */
+    public float getPitchConfidence();
 }
@@ -0,0 +1,35 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.audio;
+
+/**
+ * Creates the {@link AudioSource}s used by {@link AudioSourceSwitcher}. Sources are only created
+ * when they're first needed, since setting up audio capture can be slow.
+ */
+public interface AudioSourceFactory {
+    /**
+     * Returns a new source which is used whenever it's producing audio.
+     */
+    public AudioSource createPrimarySource();
+
+    /**
+     * Returns a new source which is used while the primary source is silent, or {@code null} if
+     * there's no fallback. Without a fallback, the switcher idles while the primary source is
+     * silent: it only checks for audio, without analyzing or passing on any frames.
+     */
+    public AudioSource createFallbackSource();
+}
@@ -16,121 +16,421 @@
 
 package com.nickbp.viz.audio;
 
-import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.pipeline.Pipeline;
 import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.LevelMeter;
+import com.nickbp.viz.util.SmoothingConfig;
+import com.nickbp.viz.util.StartupTrace;
+import com.nickbp.viz.util.Tracer;
 import com.nickbp.viz.util.AudioSourceListener;
 
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Passes audio data from the primary source (by default, the output of any players) to a
+ * pipeline, falling back to a secondary source (by default, the microphone) while the primary
+ * source is silent.
+ *
+ * Each switch is crossfaded: the outgoing source's frames continue to be passed on until the
+ * incoming source produces its first frame, after which the two are blended for
+ * {@link #CROSSFADE_MS}. Optionally, the fallback source can be kept open on standby while it
+ * isn't in use, which avoids most of the delay of switching to it.
+ */
 public class AudioSourceSwitcher {
+    private static final String TAG = "AudioSourceSwitcher";
+
     /**
      * When empty data is being received, length of time to wait until switching to mic.
      * This is relatively large to avoid switching away from audio when it's just quiet for a bit.
      */
-    private static final int SECONDS_BEFORE_MIC_START = 5;
+    private static final long MS_BEFORE_MIC_START = 5000;
     /**
      * When non-empty data is being received, length of time to wait until switching to player.
      * We want to switch fairly quickly when the user has started music, but we don't want to switch
      * just because eg a notification sound occurred.
      */
-    private static final int SECONDS_BEFORE_MIC_STOP = 3;
+    private static final long MS_BEFORE_MIC_STOP = 3000;
+    /**
+     * Length of time to wait before the first switch to mic after starting. This gives the player
+     * stream some time to init, without waiting the full {@link #MS_BEFORE_MIC_START} when
+     * nothing's playing.
+     */
+    private static final long INITIAL_MS_BEFORE_MIC_START = 500;
+    /**
+     * Length of time to blend the outgoing source into the incoming source after a switch.
+     */
+    private static final long CROSSFADE_MS = 300;
 
-    private final PlayerAudioSource playerDataSource = new PlayerAudioSource();
-    private final AudioSource micDataSource = new MicrophoneAudioSource();
+    private final AudioSourceFactory sourceFactory;
+    // Shared by both sources' buffers, so that the smoothing doesn't change when switching.
+    private final SmoothingConfig smoothingConfig = new SmoothingConfig();
 
+    // Created on first use by start() and startFallbackSource() respectively, then kept for
+    // reuse. The fallback is created on the primary source's callback thread.
+    private AudioSource playerDataSource = null;
+    private volatile AudioSource micDataSource = null;
+    private volatile boolean micRunning = false;
+    // Whether the factory didn't provide a fallback source. Only accessed on the primary's thread.
+    private boolean noFallbackSource = false;
+    private volatile boolean warmStandby = false;
+
+    private Pipeline pipeline;
     private FallbackSwitcher switcher;
-    private PlayerDataListener playerDataListener;
+    private DataBuffers playerData;
+    // Created along with the fallback source's listener. Accessed on both sources' threads.
+    private volatile DataBuffers micData;
     private AudioSource.RawDataListener micDataListener;
 
-    public void start(AudioSourceListener sourceListener, DataBufferListener dataListener) {
-        switcher = new FallbackSwitcher(sourceListener);
+    // Crossfade state, guarded by 'this'. Frames are only passed on from one source at a time.
+    private boolean deliveringFromPlayer;
+    private long switchRequestedMs = -1;
+    private DataBuffers fadeFrom = null;
+    private long fadeStartMs;
+    private volatile long lastSwitchLatencyMs = -1;
 
-        playerDataListener =
-            new PlayerDataListener(switcher, dataListener, playerDataSource.getOutputSize());
-        playerDataSource.start(playerDataListener);
+    // Held while passing a frame through the pipeline, so that its stages never run on both
+    // sources' threads at once around a switch. Taken after releasing 'this', never before.
+    private final Object deliveryLock = new Object();
+    // Receives the mix of both sources while crossfading. Guarded by deliveryLock, and allocated
+    // ahead of time so that the audio threads don't allocate it mid-switch.
+    private DataBuffers blendData = null;
 
-        micDataListener = new PassthruListener(dataListener, micDataSource.getOutputSize());
+    /**
+     * Creates a switcher for the device's player output and microphone.
+     */
+    public AudioSourceSwitcher() {
+        this(new DeviceAudioSourceFactory());
+    }
+
+    /**
+     * Creates a switcher for the sources produced by {@code sourceFactory}. No sources are created
+     * until {@link #start(AudioSourceListener, Pipeline)} is called.
+     */
+    public AudioSourceSwitcher(AudioSourceFactory sourceFactory) {
+        this.sourceFactory = sourceFactory;
+    }
+
+    /**
+     * Starts capturing audio, passing frames from whichever source is active to {@code pipeline}.
+     * Only the features currently required by the pipeline are analyzed, rechecked on each frame.
+     */
+    public void start(AudioSourceListener sourceListener, Pipeline pipeline) {
+        if (playerDataSource == null) {
+            playerDataSource = sourceFactory.createPrimarySource();
+            StartupTrace.mark("primary source created");
+        }
+        this.pipeline = pipeline;
+        switcher = new FallbackSwitcher(sourceListener);
+        synchronized (this) {
+            deliveringFromPlayer = true;
+            switchRequestedMs = -1;
+            fadeFrom = null;
+        }
+
+        playerData = createBuffers(playerDataSource, pipeline);
+        synchronized (deliveryLock) {
+            blendData = new DataBuffers(playerDataSource.getOutputSize(), smoothingConfig);
+        }
+        // The fallback's buffers are recreated for this pipeline when it's next needed.
+        micData = null;
+        playerDataSource.setLevelsEnabled(
+            (pipeline.getRequiredFeatures() & DataBuffers.FEATURE_LEVELS) != 0);
+        PlayerDataListener listener = new PlayerDataListener();
+        playerDataSource.start(listener);
+        listener.setLevelMeter(playerDataSource.getLevelMeter());
     }
 
     public void stop() {
-        playerDataSource.stop();
-        micDataSource.stop();
+        if (playerDataSource != null) {
+            playerDataSource.stop();
+        }
+        if (micDataSource != null) {
+            micDataSource.stop();
+            micRunning = false;
+        }
+    }
+
+    /**
+     * Sets whether the fallback source should be kept open on standby while it isn't in use, so
+     * that switching to it is nearly immediate. This costs some power: for the microphone, the
+     * recording stays open and is analyzed about once a second. Disabled by default. Takes effect
+     * on the next frame from the primary source.
+     */
+    public void setWarmStandby(boolean warmStandby) {
+        this.warmStandby = warmStandby;
+    }
+
+    /**
+     * Returns the time, in milliseconds, between the most recent decision to switch sources and
+     * the first frame from the new source being passed on, or -1 if no switch has happened yet.
+     */
+    public long getLastSwitchLatencyMs() {
+        return lastSwitchLatencyMs;
+    }
+
+    /**
+     * Returns the smoothing settings used for both audio sources, which may be changed at any time.
+     */
+    public SmoothingConfig getSmoothingConfig() {
+        return smoothingConfig;
+    }
+
+    /**
+     * Returns a new {@link DataBuffers} which is configured for the output of {@code source}, with
+     * the features which are required by {@code pipeline}.
+     */
+    private DataBuffers createBuffers(AudioSource source, Pipeline pipeline) {
+        DataBuffers data = new DataBuffers(source.getOutputSize(), smoothingConfig);
+        data.setFeatures(pipeline.getRequiredFeatures());
+        data.setFrameRateHz(source.getOutputRateHz());
+        data.setSampleRateHz(source.getSampleRateHz());
+        return data;
+    }
+
+    /**
+     * Creates the fallback source if it hasn't been created yet, and returns whether there is one.
+     * Called on the primary source's thread.
+     */
+    private boolean createFallbackSource() {
+        if (micDataSource == null && !noFallbackSource) {
+            long startMs = SystemClock.elapsedRealtime();
+            AudioSource source = sourceFactory.createFallbackSource();
+            if (source == null) {
+                Log.d(TAG, "No fallback source, will idle while the primary source is silent");
+                noFallbackSource = true;
+            } else {
+                Log.d(TAG, "Created fallback source in "
+                    + (SystemClock.elapsedRealtime() - startMs) + "ms");
+                micDataSource = source;
+            }
+        }
+        return micDataSource != null;
+    }
+
+    /**
+     * Starts the fallback source at full rate or on standby, creating its buffers first if this
+     * is the first time it's been needed since {@link #start(AudioSourceListener, Pipeline)}.
+     * {@link #createFallbackSource()} must have returned {@code true}.
+     */
+    private void startFallbackSource(boolean standby) {
+        Tracer.begin("AudioSourceSwitcher.startFallbackSource");
+        if (micData == null) {
+            DataBuffers data = createBuffers(micDataSource, pipeline);
+            // Room noise is only a problem when listening through the microphone.
+            data.setNoiseSuppression(true);
+            micData = data;
+            micDataListener = new MicDataListener(micDataSource, data);
+            // Blends are produced at the larger of the two sources' sizes.
+            int blendSize = Math.max(
+                playerDataSource.getOutputSize(), micDataSource.getOutputSize());
+            if (blendSize > playerDataSource.getOutputSize()) {
+                DataBuffers blend = new DataBuffers(blendSize, smoothingConfig);
+                synchronized (deliveryLock) {
+                    blendData = blend;
+                }
+            }
+        }
+        micDataSource.setStandby(standby);
+        if (!micRunning) {
+            micDataSource.setLevelsEnabled(
+                (pipeline.getRequiredFeatures() & DataBuffers.FEATURE_LEVELS) != 0);
+            micDataSource.start(micDataListener);
+            micRunning = true;
+        }
+        Tracer.end();
+    }
+
+    /**
+     * Puts the fallback source into the state it should have while the primary source is in use:
+     * open on standby if {@link #setWarmStandby(boolean)} is enabled, otherwise stopped. Called on
+     * the primary source's thread, and skipped while a switch is in progress.
+     */
+    private void updateIdleFallbackSource() {
+        if (!switcher.isPlayerOutputEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            if (!deliveringFromPlayer || fadeFrom != null) {
+                return;
+            }
+        }
+        if (warmStandby && createFallbackSource()) {
+            startFallbackSource(true);
+        } else if (micRunning) {
+            micDataSource.stop();
+            micRunning = false;
+        }
+    }
+
+    /**
+     * Records that the switcher has decided to change sources. The switch itself happens when the
+     * new source produces its next frame.
+     */
+    private synchronized void requestSwitch() {
+        switchRequestedMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Passes {@code data}, which was just updated by the player ({@code fromPlayer}) or the mic,
+     * on to the pipeline if that source is the one in use, crossfading after a switch.
+     *
+     * The pipeline's sinks receive either {@code data} or {@link #blendData}, which are both
+     * overwritten in place by the next frame from this source. Sinks which keep a frame past their
+     * {@code onReceive} call must copy it, or else tolerate it changing underneath them, see
+     * {@link Pipeline}.
+     */
+    private void deliver(DataBuffers data, boolean fromPlayer) {
+        DataBuffers blendFrom = null;
+        float blendWeight = 0;
+        synchronized (this) {
+            if (fromPlayer != deliveringFromPlayer) {
+                if (fromPlayer != switcher.isPlayerOutputEnabled()) {
+                    // Outgoing or idle source: its data is only used for blending.
+                    return;
+                }
+                // First frame from the incoming source: switch over and start fading in.
+                long nowMs = SystemClock.elapsedRealtime();
+                lastSwitchLatencyMs = nowMs - switchRequestedMs;
+                Log.d(TAG, "Switched to " + (fromPlayer ? "player" : "mic") + " in "
+                    + lastSwitchLatencyMs + "ms");
+                fadeFrom = fromPlayer ? micData : playerData;
+                fadeStartMs = nowMs;
+                switchRequestedMs = -1;
+                deliveringFromPlayer = fromPlayer;
+                Tracer.counter("AudioSourceSwitcher.usingPlayer", fromPlayer ? 1 : 0);
+                Tracer.counter("AudioSourceSwitcher.switchLatencyMs", lastSwitchLatencyMs);
+            }
+            if (fadeFrom != null) {
+                long fadeMs = SystemClock.elapsedRealtime() - fadeStartMs;
+                if (fadeMs < CROSSFADE_MS) {
+                    blendFrom = fadeFrom;
+                    blendWeight = fadeMs / (float)CROSSFADE_MS;
+                } else {
+                    fadeFrom = null;
+                }
+            }
+        }
+
+        // The other source's thread may now switch, or deliver its own frame once this returns.
+        synchronized (deliveryLock) {
+            DataBuffers out = data;
+            if (blendFrom != null) {
+                // The other source may be updating its buffers at the same time.
+                synchronized (blendFrom) {
+                    blendData.blend(blendFrom, data, blendWeight);
+                }
+                out = blendData;
+            }
+            pipeline.onReceive(out, !fromPlayer);
+        }
     }
 
+    /**
+     * Decides when to switch between sources, based on how long the player has been silent or
+     * producing audio.
+     */
     private class FallbackSwitcher {
-        private final int playerDataTicksBeforeMicStart;
-        private final int playerDataTicksBeforeMicStop;
         private final AudioSourceListener sourceListener;
 
-        private boolean usingPlayerOutput;
-        private int ticksSinceSwitchingSources;
+        private volatile boolean usingPlayerOutput;
+        // Whether the player is silent and there's no fallback source, so nothing is in use.
+        private volatile boolean idle = false;
+        private long msBeforeMicStart;
+        // When the player started doing the opposite of what's expected for the current source,
+        // ie being silent while in use or producing audio while not in use. -1 if it hasn't.
+        private long contraryDataSinceMs = -1;
 
         public FallbackSwitcher(AudioSourceListener sourceListener) {
-            playerDataTicksBeforeMicStart =
-                SECONDS_BEFORE_MIC_START * playerDataSource.getDataRefreshRateHz();
-            playerDataTicksBeforeMicStop =
-                SECONDS_BEFORE_MIC_STOP * playerDataSource.getDataRefreshRateHz();
             this.sourceListener = sourceListener;
-
             usingPlayerOutput = true;
-            // Start with a fuzz factor:
-            //   Give player stream some time to init, before immediately switching to mic data.
-            ticksSinceSwitchingSources = playerDataTicksBeforeMicStart - 10;
+            msBeforeMicStart = INITIAL_MS_BEFORE_MIC_START;
         }
 
         public void handleFilledData() {
             if (!usingPlayerOutput) {
                 // Not using player, but it's producing audio!
-                ++ticksSinceSwitchingSources;
-                if (ticksSinceSwitchingSources == playerDataTicksBeforeMicStop) {
+                if (idle) {
+                    // Nothing to switch away from, so resume right away.
+                    Log.d(TAG, "Resuming from idle");
+                    idle = false;
+                    usingPlayerOutput = true;
+                    contraryDataSinceMs = -1;
+                } else if (hasBeenContraryFor(MS_BEFORE_MIC_STOP)) {
                     // Player's been active long enough, switch to it.
-                    micDataSource.stop();
-                    sourceListener.onSourceSwitched(AudioSourceListener.SOURCE_TYPE_PLAYER);
                     usingPlayerOutput = true;
-                    ticksSinceSwitchingSources = 0;
+                    requestSwitch();
+                    sourceListener.onSourceSwitched(AudioSourceListener.SOURCE_TYPE_PLAYER);
+                    contraryDataSinceMs = -1;
                 }
             } else {
-                // Reset any past increments from brief player activity
-                ticksSinceSwitchingSources = 0;
+                // Reset any past brief player inactivity
+                contraryDataSinceMs = -1;
+                msBeforeMicStart = MS_BEFORE_MIC_START;
             }
         }
 
         public void handleEmptyData() {
             if (usingPlayerOutput) {
                 // Using player, but it's not producing any audio!
-                ++ticksSinceSwitchingSources;
-                if (ticksSinceSwitchingSources == playerDataTicksBeforeMicStart) {
-                    // We've waited long enough, switch to mic.
-                    micDataSource.start(micDataListener);
-                    sourceListener.onSourceSwitched(AudioSourceListener.SOURCE_TYPE_MICROPHONE);
+                if (hasBeenContraryFor(msBeforeMicStart)) {
+                    if (createFallbackSource()) {
+                        // We've waited long enough, switch to mic.
+                        requestSwitch();
+                        startFallbackSource(false);
+                        sourceListener.onSourceSwitched(
+                            AudioSourceListener.SOURCE_TYPE_MICROPHONE);
+                    } else {
+                        // We've waited long enough, but there's nothing to switch to.
+                        Log.d(TAG, "Idling until audio resumes");
+                        idle = true;
+                    }
                     usingPlayerOutput = false;
-                    ticksSinceSwitchingSources = 0;
+                    contraryDataSinceMs = -1;
+                    msBeforeMicStart = MS_BEFORE_MIC_START;
                 }
             } else {
-                // Reset any past increments from brief player inactivity
-                ticksSinceSwitchingSources = 0;
+                // Reset any past brief player activity
+                contraryDataSinceMs = -1;
             }
         }
 
         public boolean isPlayerOutputEnabled() {
             return usingPlayerOutput;
         }
+
+        public boolean isIdle() {
+            return idle;
+        }
+
+        private boolean hasBeenContraryFor(long ms) {
+            long nowMs = SystemClock.elapsedRealtime();
+            if (contraryDataSinceMs < 0) {
+                contraryDataSinceMs = nowMs;
+            }
+            return nowMs - contraryDataSinceMs >= ms;
+        }
     }
 
-    private static class PlayerDataListener implements AudioSource.RawDataListener {
-        private final FallbackSwitcher switcher;
-        private final DataBufferListener sharedDataListener;
-        private final DataBuffers data;
+    private class PlayerDataListener implements AudioSource.RawDataListener {
+        // Only known once the source has started, so may briefly be null when it's available.
+        private volatile LevelMeter levelMeter = null;
 
-        private PlayerDataListener(FallbackSwitcher switcher, DataBufferListener dataListener,
-                int bufferSize) {
-            this.switcher = switcher;
-            this.sharedDataListener = dataListener;
-            data = new DataBuffers(bufferSize);
+        private void setLevelMeter(LevelMeter levelMeter) {
+            this.levelMeter = levelMeter;
         }
 
         @Override
         public void onReceive(byte[] fft) {
+            int features = pipeline.getRequiredFeatures();
             if (switcher.isPlayerOutputEnabled()) {
-                if (data.updateData(fft)) {
+                boolean filled;
+                synchronized (playerData) {
+                    playerData.setFeatures(features);
+                    filled = playerData.updateData(fft);
+                    playerData.setLevels(levelMeter);
+                }
+                if (filled) {
                     switcher.handleFilledData();
                 } else {
                     switcher.handleEmptyData();
@@ -147,32 +447,43 @@ public class AudioSourceSwitcher {
 
                 if (valueFound) {
                     // oh hey we found something! reset playerData and resume normal operation
-                    data.updateData(fft);
+                    synchronized (playerData) {
+                        playerData.setFeatures(features);
+                        playerData.updateData(fft);
+                        playerData.setLevels(levelMeter);
+                    }
                     switcher.handleFilledData();
                 } else {
                     switcher.handleEmptyData();
                 }
             }
 
-            if (switcher.isPlayerOutputEnabled()) {
-                sharedDataListener.onReceive(data, false);
+            if (!switcher.isIdle()) {
+                deliver(playerData, true);
             }
+            updateIdleFallbackSource();
         }
     }
 
-    private class PassthruListener implements AudioSource.RawDataListener {
-        private final DataBufferListener sharedDataListener;
+    private class MicDataListener implements AudioSource.RawDataListener {
+        private final AudioSource source;
         private final DataBuffers data;
 
-        private PassthruListener(DataBufferListener dataListener, int bufferSize) {
-            this.sharedDataListener = dataListener;
-            data = new DataBuffers(bufferSize);
+        private MicDataListener(AudioSource source, DataBuffers data) {
+            this.source = source;
+            this.data = data;
         }
 
         @Override
         public void onReceive(byte[] fft) {
-            data.updateData(fft);
-            sharedDataListener.onReceive(data, true);
+            int features = pipeline.getRequiredFeatures();
+            synchronized (data) {
+                data.setFeatures(features);
+                data.updateData(fft);
+                data.setPitch(source.getPitchHz(), source.getPitchConfidence());
+                data.setLevels(source.getLevelMeter());
+            }
+            deliver(data, false);
         }
     }
 }
@@ -0,0 +1,33 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.audio;
+
+/**
+ * Creates sources for the device's audio: the output of any players as the primary source, and
+ * the microphone as the fallback.
+ */
+public class DeviceAudioSourceFactory implements AudioSourceFactory {
+    @Override
+    public AudioSource createPrimarySource() {
+        return new PlayerAudioSource();
+    }
+
+    @Override
+    public AudioSource createFallbackSource() {
+        return new MicrophoneAudioSource();
+    }
+}
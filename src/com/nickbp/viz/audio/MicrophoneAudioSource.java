@@ -18,6 +18,9 @@ package com.nickbp.viz.audio;
 
 import com.nickbp.viz.audio.AudioSource.RawDataListener;
 import com.nickbp.viz.util.FFT;
+import com.nickbp.viz.util.LevelMeter;
+import com.nickbp.viz.util.PitchDetector;
+import com.nickbp.viz.util.Tracer;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -35,23 +38,34 @@ public class MicrophoneAudioSource implements AudioSource {
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     // "Guaranteed to be supported by devices"
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    // While on standby, only one in this many buffers is analyzed and passed on (roughly 1Hz).
+    private static final int STANDBY_OUTPUT_INTERVAL = 16;
 
-    private static int SAMPLE_RATE_HZ;
-    private static int BUF_SZ;
-    static {
-        // "44100Hz is the only rate that is guaranteed to work on all devices", but this leads to
-        // a bit of overkill in data resolution. 11025 clips off too much treble, so skip that.
-        int ratesToTry[] = { 16000, 22050, 44100 };
-        for (int i = 0; i < ratesToTry.length; ++i) {
-            int sizeOrStatus =
-                AudioRecord.getMinBufferSize(ratesToTry[i], CHANNEL_CONFIG, AUDIO_FORMAT);
-            if (sizeOrStatus != AudioRecord.ERROR_BAD_VALUE) {
-                SAMPLE_RATE_HZ = ratesToTry[i];
-                // FFT.java requires that this be a base 2 number:
-                BUF_SZ = findNextBaseTwoAtOrBeyond(sizeOrStatus);
-                Log.d(TAG, "Using sample rate=" + SAMPLE_RATE_HZ + "Hz, bufsize=" + BUF_SZ);
-                break;
+    /**
+     * The recording settings supported by this device. Probing these takes a while, so it's
+     * deferred until a microphone source is actually used, rather than when this class is loaded.
+     */
+    private static class RecordConfig {
+        private static final int SAMPLE_RATE_HZ;
+        private static final int BUF_SZ;
+        static {
+            // "44100Hz is the only rate that is guaranteed to work on all devices", but this leads
+            // to a bit of overkill in data resolution. 11025 clips off too much treble, so skip it.
+            int ratesToTry[] = { 16000, 22050, 44100 };
+            int sampleRateHz = 0, bufSz = 0;
+            for (int i = 0; i < ratesToTry.length; ++i) {
+                int sizeOrStatus =
+                    AudioRecord.getMinBufferSize(ratesToTry[i], CHANNEL_CONFIG, AUDIO_FORMAT);
+                if (sizeOrStatus != AudioRecord.ERROR_BAD_VALUE) {
+                    sampleRateHz = ratesToTry[i];
+                    // FFT.java requires that this be a base 2 number:
+                    bufSz = findNextBaseTwoAtOrBeyond(sizeOrStatus);
+                    Log.d(TAG, "Using sample rate=" + sampleRateHz + "Hz, bufsize=" + bufSz);
+                    break;
+                }
             }
+            SAMPLE_RATE_HZ = sampleRateHz;
+            BUF_SZ = bufSz;
         }
     }
 
@@ -68,7 +82,14 @@ public class MicrophoneAudioSource implements AudioSource {
     }
 
     private final AudioRecord audioSource;
+    private final PitchDetector pitchDetector;
+    private final LevelMeter levelMeter = new LevelMeter();
     private Thread outputThread;
+    private volatile boolean standby = false;
+
+    // Results from the most recently recorded buffer, read by listeners in onReceive().
+    private volatile float pitchHz = 0;
+    private volatile float pitchConfidence = 0;
 
     /**
      * A utility class for transforming microphone data to a spectrum before passing it to a
@@ -85,34 +106,41 @@ public class MicrophoneAudioSource implements AudioSource {
 
         @Override
         public void run() {
-            short rawData[] = new short[BUF_SZ];
-            byte fftData[] = new byte[BUF_SZ];
-            FFT fft = new FFT(BUF_SZ);
+            short rawData[] = new short[RecordConfig.BUF_SZ];
+            byte fftData[] = new byte[RecordConfig.BUF_SZ];
+            FFT fft = new FFT(RecordConfig.BUF_SZ);
+            int buffersSinceOutput = 0;
             while (true) {
                 if (audioSource.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
                     break;
                 }
-                audioSource.read(rawData, 0, rawData.length);
-                fft.forward(rawData);
-
-                // Fill in indexes 2 thru end, to match Visualizer output. Drop the last value in
-                // the original fft data, in favor of the first value.
-                for (int i = 1; i < fftData.length/2; ++i) {
-                    fftData[i*2] = (byte)fft.real[i];
+                // Keep reading on standby, so that the recording doesn't overflow.
+                int read = audioSource.read(rawData, 0, rawData.length);
+                if (standby && ++buffersSinceOutput < STANDBY_OUTPUT_INTERVAL) {
+                    continue;
                 }
-                for (int i = 1; i < fftData.length/2; ++i) {
-                    fftData[i*2 + 1] = (byte)fft.imag[i];
+                buffersSinceOutput = 0;
+                Tracer.begin("MicrophoneAudioSource.capture");
+                if (read > 0) {
+                    levelMeter.process(rawData, read);
                 }
+                pitchHz = pitchDetector.detect(rawData);
+                pitchConfidence = pitchDetector.getConfidence();
+                fft.forward(rawData);
+                fft.toVisualizerFormat(fftData);
 
                 out.onReceive(fftData);
+                Tracer.end();
             }
         }
 
     }
 
     public MicrophoneAudioSource() {
-        audioSource = new AudioRecord(
-            SOURCE_DEVICE, SAMPLE_RATE_HZ, CHANNEL_CONFIG, AUDIO_FORMAT, BUF_SZ);
+        audioSource = new AudioRecord(SOURCE_DEVICE, RecordConfig.SAMPLE_RATE_HZ,
+            CHANNEL_CONFIG, AUDIO_FORMAT, RecordConfig.BUF_SZ);
+        pitchDetector = new PitchDetector(RecordConfig.BUF_SZ, RecordConfig.SAMPLE_RATE_HZ);
+        levelMeter.setSampleRateHz(RecordConfig.SAMPLE_RATE_HZ);
     }
 
     /**
@@ -130,7 +158,7 @@ public class MicrophoneAudioSource implements AudioSource {
         if (audioSource.getState() != AudioRecord.STATE_INITIALIZED) {
             throw new IllegalStateException("Bad recording configuration");
         }
-        Log.d(TAG, "Starting microphone recording with buffer size " + BUF_SZ);
+        Log.d(TAG, "Starting microphone recording with buffer size " + RecordConfig.BUF_SZ);
         audioSource.startRecording();
         outputThread = new Thread(new Outputter(audioSource, out));
         outputThread.start();
@@ -154,11 +182,69 @@ public class MicrophoneAudioSource implements AudioSource {
         outputThread = null;
     }
 
+    /**
+     * Sets whether recording should continue with only one in every
+     * {@value #STANDBY_OUTPUT_INTERVAL} buffers being analyzed and passed on.
+     */
+    @Override
+    public void setStandby(boolean standby) {
+        if (standby != this.standby) {
+            Log.d(TAG, "Standby: " + standby);
+            this.standby = standby;
+        }
+    }
+
+    /**
+     * Returns the fundamental frequency, in Hz, detected in the buffer which produced the most
+     * recent output, or zero if no clear pitch was found.
+     */
+    @Override
+    public float getPitchHz() {
+        return pitchHz;
+    }
+
+    /**
+     * Returns how confident the most recent {@link #getPitchHz()} result is, from 0.0f to 1.0f.
+     */
+    @Override
+    public float getPitchConfidence() {
+        return pitchConfidence;
+    }
+
+    /**
+     * Ignored: levels are measured from the same samples as the spectrum, at little extra cost.
+     */
+    @Override
+    public void setLevelsEnabled(boolean enabled) {
+    }
+
+    @Override
+    public LevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
     /**
      * Returns the size of the output data that this instance will pass to {@link RawDataListener}s.
      */
     @Override
     public int getOutputSize() {
-        return BUF_SZ;
+        return RecordConfig.BUF_SZ;
+    }
+
+    /**
+     * Returns the approximate rate, in Hz, at which this instance will pass data to
+     * {@link RawDataListener}s. One output is produced for each full buffer of samples.
+     */
+    @Override
+    public float getOutputRateHz() {
+        return RecordConfig.SAMPLE_RATE_HZ / (float)RecordConfig.BUF_SZ;
+    }
+
+    /**
+     * Returns the sample rate, in Hz, that the microphone is recorded at.
+     */
+    @Override
+    public int getSampleRateHz() {
+        return RecordConfig.SAMPLE_RATE_HZ;
     }
 }
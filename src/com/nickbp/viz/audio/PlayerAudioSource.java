@@ -17,8 +17,12 @@
 package com.nickbp.viz.audio;
 
 import com.nickbp.viz.audio.AudioSource.RawDataListener;
+import com.nickbp.viz.util.LevelMeter;
+import com.nickbp.viz.util.Tracer;
 
+import android.annotation.TargetApi;
 import android.media.audiofx.Visualizer;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -30,32 +34,69 @@ public class PlayerAudioSource implements AudioSource {
     // The system audio session id:
     private static final int VIZ_SESSION = 0;
     private final Visualizer audioSource;
+    private final LevelMeter levelMeter = new LevelMeter();
+    private final int maxCaptureSize;
+    private final int maxCaptureRateHz;
+    /**
+     * Captures the waveform for {@link #levelMeter}, see {@link #startLevelsSource}. Created on the
+     * first start with levels enabled, if the device supports it.
+     */
+    private Visualizer levelsSource = null;
+    private boolean levelsEnabled = true;
+    private boolean measuringLevels = false;
 
     /**
-     * A utility class for directly forwarding audio data to a {@link RawDataListener}.
+     * A utility class for directly forwarding audio data to a {@link RawDataListener}, and
+     * waveform data to the {@link LevelMeter}.
      * Allows us to hide some {@link Visualizer} details from listeners.
      */
     private static class PassthruListener implements Visualizer.OnDataCaptureListener {
         private final RawDataListener out;
+        private final LevelMeter levelMeter;
+        private final int captureRateHz;
 
-        private PassthruListener(RawDataListener out) {
+        private PassthruListener(RawDataListener out, LevelMeter levelMeter, int captureRateHz) {
             this.out = out;
+            this.levelMeter = levelMeter;
+            this.captureRateHz = captureRateHz;
         }
 
         @Override
         public void onFftDataCapture(
             Visualizer visualizer, byte[] fft, int samplingRate) {
+            Tracer.begin("PlayerAudioSource.capture");
             out.onReceive(fft);
+            Tracer.end();
         }
 
         @Override
         public void onWaveFormDataCapture(
             Visualizer visualizer, byte[] waveform, int samplingRate) {
-            throw new IllegalStateException("Waveform not supported.");
+            // Visualizer reports the rate in milliHz
+            int sampleRateHz = samplingRate / 1000;
+            levelMeter.setSampleRateHz(sampleRateHz);
+            // Each capture is a snapshot of the most recent audio, which stands in for the whole
+            // interval until the next capture.
+            levelMeter.processSnapshot(waveform, waveform.length, sampleRateHz / captureRateHz);
         }
     }
 
+    /**
+     * Creates a source which captures at the largest size and highest rate supported by the
+     * device.
+     */
     public PlayerAudioSource() {
+        this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a source which captures at no more than {@code maxCaptureSize} and
+     * {@code maxCaptureRateHz}, or as close as the device allows. Smaller and less frequent
+     * captures use less power.
+     */
+    public PlayerAudioSource(int maxCaptureSize, int maxCaptureRateHz) {
+        this.maxCaptureSize = maxCaptureSize;
+        this.maxCaptureRateHz = maxCaptureRateHz;
         /* Note: Despite using the default normalized scaling mode (SCALING_MODE_NORMALIZED),
          * it apparently still falls apart if the volume is too low, dropping off with volume.
          * Oh well~ */
@@ -81,10 +122,51 @@ public class PlayerAudioSource implements AudioSource {
         }
         int maxMilliHz = getDataRefreshRateHz();
         Log.d(TAG, "Starting viz with hz=" + maxMilliHz);
-        audioSource.setDataCaptureListener(new PassthruListener(out), maxMilliHz * 1000, false, true);
+        PassthruListener listener = new PassthruListener(out, levelMeter, maxMilliHz);
+        measuringLevels = levelsEnabled && startLevelsSource(listener, largestSize, maxMilliHz);
+        Log.d(TAG, "Measuring levels: " + measuringLevels);
+        audioSource.setDataCaptureListener(listener, maxMilliHz * 1000, false, true);
         audioSource.setEnabled(true);
     }
 
+    /**
+     * Starts capturing the waveform for the level meter, and returns whether that was possible.
+     *
+     * The main capture uses the default normalized scaling mode, which hides the actual level of
+     * the audio, and even reports clipping whenever normalization reaches full scale. Switching it
+     * to unnormalized scaling would make the visualization depend on the volume setting, so the
+     * waveform is captured by a separate unnormalized instance instead. This is only possible on
+     * API 16+: on older devices, player levels are unavailable.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean startLevelsSource(PassthruListener listener, int captureSize, int rateHz) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false;
+        }
+        try {
+            if (levelsSource == null) {
+                levelsSource = new Visualizer(VIZ_SESSION);
+                if (levelsSource.setScalingMode(Visualizer.SCALING_MODE_AS_PLAYED)
+                        != Visualizer.SUCCESS) {
+                    throw new IllegalStateException("Unable to disable normalization");
+                }
+            }
+            if (levelsSource.setCaptureSize(captureSize) != Visualizer.SUCCESS) {
+                throw new IllegalStateException("Bad capture size: " + captureSize);
+            }
+            levelsSource.setDataCaptureListener(listener, rateHz * 1000, true, false);
+            levelsSource.setEnabled(true);
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to measure player levels", e);
+            if (levelsSource != null) {
+                levelsSource.release();
+                levelsSource = null;
+            }
+            return false;
+        }
+    }
+
     /**
      * Stops retrieving audio data, or does nothing if retrieval is already stopped.
      */
@@ -96,21 +178,85 @@ public class PlayerAudioSource implements AudioSource {
         Log.d(TAG, "Stopping viz");
         audioSource.setDataCaptureListener(null, 0, false, false);
         audioSource.setEnabled(false);
+        if (measuringLevels) {
+            levelsSource.setDataCaptureListener(null, 0, false, false);
+            levelsSource.setEnabled(false);
+            measuringLevels = false;
+        }
     }
 
     /**
-     * Returns the maximum rate, in Hz, that system audio may be captured.
+     * Ignored: the player output is always used at full rate, to detect when audio starts.
+     */
+    @Override
+    public void setStandby(boolean standby) {
+    }
+
+    /**
+     * Measuring levels requires a second capture of the player output, so this is worth disabling
+     * when levels aren't shown.
+     */
+    @Override
+    public void setLevelsEnabled(boolean enabled) {
+        levelsEnabled = enabled;
+    }
+
+    /**
+     * Returns {@code null} if levels are disabled, or if the device can't capture the player
+     * output without normalization. See {@link #startLevelsSource}.
+     */
+    @Override
+    public LevelMeter getLevelMeter() {
+        return measuringLevels ? levelMeter : null;
+    }
+
+    /**
+     * Always returns zero: the player output is too coarse to detect pitch from.
+     */
+    @Override
+    public float getPitchHz() {
+        return 0;
+    }
+
+    @Override
+    public float getPitchConfidence() {
+        return 0;
+    }
+
+    /**
+     * Returns the rate, in Hz, that system audio will be captured: the maximum supported by the
+     * device, or the limit provided to the constructor if that's lower.
      */
     public int getDataRefreshRateHz() {
         int maxRateHz = Visualizer.getMaxCaptureRate() / 1000;
         Log.v(TAG, "Max capture rate: " + maxRateHz + " Hz");
-        return maxRateHz;
+        return Math.min(maxRateHz, maxCaptureRateHz);
+    }
+
+    /**
+     * Returns the approximate rate, in Hz, at which this instance will pass data to
+     * {@link RawDataListener}s. This is the rate requested in {@link #start(RawDataListener)}.
+     */
+    @Override
+    public float getOutputRateHz() {
+        return getDataRefreshRateHz();
     }
 
     /**
-     * Returns the largest available data width for system audio capture, suitable for passing to
+     * Returns the sample rate, in Hz, of the system audio being captured.
+     */
+    @Override
+    public int getSampleRateHz() {
+        // Visualizer reports the rate in milliHz
+        return audioSource.getSamplingRate() / 1000;
+    }
+
+    /**
+     * Returns the largest available data width for system audio capture, within the limit provided
+     * to the constructor if possible, suitable for passing to
      * {@link Visualizer#setCaptureSize(int)}.
      */
+    @Override
     public int getOutputSize() {
         int[] range = Visualizer.getCaptureSizeRange();
         if (range.length != 2) {
@@ -124,7 +270,8 @@ public class PlayerAudioSource implements AudioSource {
             range[1] = tmp;
         }
         Log.v(TAG, "Capture size range: [" + range[0] + ", " + range[1] + "]");
-        return findLargestBaseTwoInInclusiveRange(range[0], range[1]);
+        return findLargestBaseTwoInInclusiveRange(
+            range[0], Math.max(range[0], Math.min(range[1], maxCaptureSize)));
     }
 
     private static int findLargestBaseTwoInInclusiveRange(int min, int max) {
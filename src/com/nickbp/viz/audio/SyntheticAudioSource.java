@@ -0,0 +1,320 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.audio;
+
+import java.util.Random;
+
+import com.nickbp.viz.util.FFT;
+import com.nickbp.viz.util.LevelMeter;
+import com.nickbp.viz.util.Tracer;
+
+import android.util.Log;
+
+/**
+ * Produces spectrum data from generated test signals rather than a device, at any buffer size and
+ * at rates far beyond what {@link android.media.audiofx.Visualizer} provides. This is meant for
+ * stress testing the analysis and rendering, and for reproducing edge cases such as silence
+ * detection, without needing any audio hardware.
+ *
+ * Signals are generated against a sample clock rather than the wall clock, so a given signal and
+ * configuration always produce the same sequence of outputs, however fast they're consumed.
+ */
+public class SyntheticAudioSource implements AudioSource {
+    private static final String TAG = "SyntheticAudioSource";
+
+    /** A logarithmic sine sweep from 20Hz up to the Nyquist frequency, repeating. */
+    public static final int SIGNAL_SWEEP = 0;
+    /** Uniform white noise at half of full scale. */
+    public static final int SIGNAL_WHITE_NOISE = 1;
+    /** Pink (1/f) noise, which is closer to the spectrum of real music than white noise. */
+    public static final int SIGNAL_PINK_NOISE = 2;
+    /** Full-scale single-sample clicks, four per second. */
+    public static final int SIGNAL_IMPULSES = 3;
+    /** Pink noise and digital silence, alternating every few seconds. */
+    public static final int SIGNAL_ALTERNATING = 4;
+    /** A full-scale 440Hz square wave, which clips on every sample. */
+    public static final int SIGNAL_SQUARE = 5;
+
+    private static final int DEFAULT_SAMPLE_RATE_HZ = 44100;
+    private static final float SWEEP_START_HZ = 20;
+    private static final float SWEEP_SECONDS = 5;
+    private static final int IMPULSES_PER_SECOND = 4;
+    private static final int ALTERNATE_SECONDS = 6;
+    private static final float SQUARE_HZ = 440;
+    // While on standby, only one in this many buffers is analyzed and passed on.
+    private static final int STANDBY_OUTPUT_INTERVAL = 16;
+    private static final long LOG_INTERVAL_MS = 5000;
+    private static final long MAX_BEHIND_NS = 100 * 1000000L;
+
+    private final int signal;
+    private final int bufferSize;
+    private final float outputRateHz;
+    private final int sampleRateHz;
+    private final LevelMeter levelMeter = new LevelMeter();
+    private Thread outputThread;
+    private volatile boolean running = false;
+    private volatile boolean standby = false;
+
+    /**
+     * A utility class for generating the signal and passing its spectrum to a
+     * {@link RawDataListener} at the configured rate.
+     */
+    private class Outputter implements Runnable {
+        private final RawDataListener out;
+        private final short[] samples = new short[bufferSize];
+        private final Random random = new Random(0);
+        // Position of the next generated sample, used as the clock for all signals.
+        private long sampleIndex = 0;
+        private double phase = 0;
+        private final long sweepLength = (long)(SWEEP_SECONDS * sampleRateHz);
+        private final double sweepGrowth =
+            Math.pow(sampleRateHz / 2 / SWEEP_START_HZ, 1.0 / sweepLength);
+        private double sweepHz;
+        // State for Paul Kellett's economy pink noise filter
+        private float pink0, pink1, pink2;
+
+        private Outputter(RawDataListener out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            byte[] fftData = new byte[bufferSize];
+            FFT fft = new FFT(bufferSize);
+            long periodNs = (outputRateHz > 0) ? (long)(1000000000 / outputRateHz) : 0;
+            long nextOutputNs = System.nanoTime();
+
+            long logStartMs = System.currentTimeMillis();
+            long busyNs = 0;
+            int outputs = 0, buffersSinceOutput = 0;
+            while (running) {
+                if (periodNs > 0) {
+                    // Pace against a fixed schedule, so that time spent by listeners doesn't
+                    // lower the rate. Sleeps are only accurate to about a millisecond, so at high
+                    // rates outputs are produced in short bursts between sleeps.
+                    long waitNs = nextOutputNs - System.nanoTime();
+                    if (waitNs >= 1000000) {
+                        try {
+                            Thread.sleep(waitNs / 1000000);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    } else if (waitNs < -MAX_BEHIND_NS) {
+                        // Listeners can't keep up: drop the backlog rather than bursting forever.
+                        nextOutputNs = System.nanoTime();
+                    }
+                    nextOutputNs += periodNs;
+                }
+
+                generate();
+                if (standby && ++buffersSinceOutput < STANDBY_OUTPUT_INTERVAL) {
+                    continue;
+                }
+                buffersSinceOutput = 0;
+
+                long startNs = System.nanoTime();
+                Tracer.begin("SyntheticAudioSource.capture");
+                levelMeter.process(samples, samples.length);
+                fft.forward(samples);
+                fft.toVisualizerFormat(fftData);
+                out.onReceive(fftData);
+                Tracer.end();
+                busyNs += System.nanoTime() - startNs;
+                ++outputs;
+
+                long elapsedMs = System.currentTimeMillis() - logStartMs;
+                if (elapsedMs >= LOG_INTERVAL_MS) {
+                    Log.d(TAG, "Throughput: " + (outputs * 1000 / elapsedMs) + " outputs/s ("
+                        + outputRateHz + " requested), " + (busyNs / 1000 / outputs)
+                        + "us/output spent in analysis and listeners");
+                    logStartMs += elapsedMs;
+                    busyNs = 0;
+                    outputs = 0;
+                }
+            }
+        }
+
+        private void generate() {
+            for (int i = 0; i < samples.length; ++i, ++sampleIndex) {
+                samples[i] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(nextSample() * Short.MAX_VALUE)));
+            }
+        }
+
+        /**
+         * Returns the value of the sample at {@link #sampleIndex}, from -1.0 to 1.0.
+         */
+        private float nextSample() {
+            switch (signal) {
+            case SIGNAL_SWEEP:
+                // Exponential chirp: the frequency grows by a constant factor every sample.
+                if (sampleIndex % sweepLength == 0) {
+                    sweepHz = SWEEP_START_HZ;
+                } else {
+                    sweepHz *= sweepGrowth;
+                }
+                phase += 2 * Math.PI * sweepHz / sampleRateHz;
+                if (phase > 2 * Math.PI) {
+                    phase -= 2 * Math.PI;
+                }
+                return (float)Math.sin(phase) * 0.5f;
+            case SIGNAL_WHITE_NOISE:
+                return (random.nextFloat() * 2 - 1) * 0.5f;
+            case SIGNAL_PINK_NOISE:
+                return nextPinkSample();
+            case SIGNAL_IMPULSES:
+                return (sampleIndex % (sampleRateHz / IMPULSES_PER_SECOND) == 0) ? 1 : 0;
+            case SIGNAL_ALTERNATING:
+                if ((sampleIndex / ((long)ALTERNATE_SECONDS * sampleRateHz)) % 2 == 0) {
+                    return nextPinkSample();
+                }
+                return 0;
+            case SIGNAL_SQUARE:
+                return ((long)(sampleIndex * SQUARE_HZ * 2 / sampleRateHz) % 2 == 0) ? 1 : -1;
+            default:
+                throw new IllegalStateException("Unknown signal: " + signal);
+            }
+        }
+
+        private float nextPinkSample() {
+            float white = random.nextFloat() * 2 - 1;
+            pink0 = 0.99765f * pink0 + white * 0.0990460f;
+            pink1 = 0.96300f * pink1 + white * 0.2965164f;
+            pink2 = 0.57000f * pink2 + white * 1.0526913f;
+            return (pink0 + pink1 + pink2 + white * 0.1848f) * 0.1f;
+        }
+    }
+
+    /**
+     * Creates a source which outputs {@code signal} at {@code outputRateHz}, analyzed in buffers
+     * of {@code bufferSize} samples at 44.1kHz.
+     *
+     * @param signal one of the {@code SIGNAL_*} constants
+     * @param bufferSize samples per output, which must be a power of two
+     * @param outputRateHz outputs per second, or zero to produce outputs as fast as possible
+     * @throws IllegalArgumentException if any of the values are invalid
+     */
+    public SyntheticAudioSource(int signal, int bufferSize, float outputRateHz) {
+        this(signal, bufferSize, outputRateHz, DEFAULT_SAMPLE_RATE_HZ);
+    }
+
+    /**
+     * Creates a source which outputs {@code signal} at {@code outputRateHz}, analyzed in buffers
+     * of {@code bufferSize} samples at {@code sampleRateHz}. The signal advances by one buffer per
+     * output, regardless of the output rate, so at high rates it plays faster than real time.
+     *
+     * @throws IllegalArgumentException if any of the values are invalid
+     */
+    public SyntheticAudioSource(int signal, int bufferSize, float outputRateHz,
+            int sampleRateHz) {
+        if (signal < SIGNAL_SWEEP || signal > SIGNAL_SQUARE) {
+            throw new IllegalArgumentException("Unknown signal: " + signal);
+        }
+        if (bufferSize < 4 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("Buffer size must be a power of two: " + bufferSize);
+        }
+        if (outputRateHz < 0 || sampleRateHz <= 0) {
+            throw new IllegalArgumentException(
+                "Bad rates: output=" + outputRateHz + "Hz, sample=" + sampleRateHz + "Hz");
+        }
+        this.signal = signal;
+        this.bufferSize = bufferSize;
+        this.outputRateHz = outputRateHz;
+        this.sampleRateHz = sampleRateHz;
+        levelMeter.setSampleRateHz(sampleRateHz);
+    }
+
+    @Override
+    public void start(RawDataListener out) {
+        if (running) {
+            return;
+        }
+        Log.d(TAG, "Starting signal " + signal + " with buffer size " + bufferSize + " at "
+            + outputRateHz + "Hz");
+        running = true;
+        outputThread = new Thread(new Outputter(out), TAG);
+        outputThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        Log.d(TAG, "Stopping signal " + signal);
+        running = false;
+        try {
+            outputThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        outputThread = null;
+    }
+
+    /**
+     * Sets whether only one in every {@value #STANDBY_OUTPUT_INTERVAL} buffers should be analyzed
+     * and passed on. The signal continues to be generated in the meantime.
+     */
+    @Override
+    public void setStandby(boolean standby) {
+        this.standby = standby;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the rate that outputs were requested at, or zero if they're produced as fast as
+     * possible.
+     */
+    @Override
+    public float getOutputRateHz() {
+        return outputRateHz;
+    }
+
+    @Override
+    public int getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    /**
+     * Ignored: levels are measured from the same samples as the spectrum, at little extra cost.
+     */
+    @Override
+    public void setLevelsEnabled(boolean enabled) {
+    }
+
+    @Override
+    public LevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    /**
+     * Always returns zero: pitch isn't detected for generated signals.
+     */
+    @Override
+    public float getPitchHz() {
+        return 0;
+    }
+
+    @Override
+    public float getPitchConfidence() {
+        return 0;
+    }
+}
@@ -0,0 +1,54 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.audio;
+
+/**
+ * Creates {@link SyntheticAudioSource}s in place of the device's sources, eg to soak test the
+ * switching, analysis and rendering at high rates without any audio playing.
+ */
+public class SyntheticAudioSourceFactory implements AudioSourceFactory {
+    private final int primarySignal;
+    private final int fallbackSignal;
+    private final int bufferSize;
+    private final float outputRateHz;
+
+    /**
+     * Creates a factory for sources which produce the provided
+     * {@code SyntheticAudioSource.SIGNAL_*} signals. A primary signal of
+     * {@link SyntheticAudioSource#SIGNAL_ALTERNATING} is useful for exercising the switch between
+     * sources.
+     *
+     * @see SyntheticAudioSource#SyntheticAudioSource(int, int, float)
+     */
+    public SyntheticAudioSourceFactory(int primarySignal, int fallbackSignal, int bufferSize,
+            float outputRateHz) {
+        this.primarySignal = primarySignal;
+        this.fallbackSignal = fallbackSignal;
+        this.bufferSize = bufferSize;
+        this.outputRateHz = outputRateHz;
+    }
+
+    @Override
+    public AudioSource createPrimarySource() {
+        return new SyntheticAudioSource(primarySignal, bufferSize, outputRateHz);
+    }
+
+    @Override
+    public AudioSource createFallbackSource() {
+        return new SyntheticAudioSource(fallbackSignal, bufferSize, outputRateHz);
+    }
+}
@@ -0,0 +1,141 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.PrecalcColorUtil;
+
+/**
+ * Collects an analyzer's bars for a frame, then draws them with one
+ * {@link RenderTarget#drawLines(float[], int, int, float, int)} call per color and thickness,
+ * rather than one call per bar. Bars are grouped into {@link #COLOR_BUCKETS} buckets according to
+ * their magnitude, and each bucket is drawn in the color of the magnitude at its center.
+ *
+ * Bar edges are rounded to whole pixels as they're added, the same way that
+ * {@link RenderTarget#fillRect(float, float, float, float, int)} rounds them. A line whose edges
+ * all fall on whole pixels covers exactly those pixels on every target, so the bars come out the
+ * same as if each were drawn with its own {@code fillRect}. The rounded bars of one analyzer are
+ * at most two thicknesses, so each bucket takes at most two calls.
+ *
+ * Callers add each of the frame's bars via {@link #addBar(float, float, float, float, float)},
+ * then draw them all via {@link #draw(RenderTarget)}, which also resets the collection for the
+ * next frame.
+ */
+class AnalyzerBars {
+    private static final int COLOR_BUCKETS = 32;
+
+    private final boolean vertical;
+    private final int[] bucketColors = new int[COLOR_BUCKETS];
+    // x0, y0, x1, y1 along the center of each bar, grouped by bucket. Grown as needed, then
+    // reused across frames.
+    private final float[][] bucketLines = new float[COLOR_BUCKETS][];
+    // The thickness of each bar in bucketLines, in whole pixels.
+    private final int[][] bucketThicknesses = new int[COLOR_BUCKETS][];
+    private final int[] bucketCounts = new int[COLOR_BUCKETS];
+    // The bars from one bucket which share a thickness, as passed to drawLines().
+    private float[] runLines = new float[0];
+
+    /**
+     * @param vertical whether the bars run vertically, rather than horizontally
+     */
+    AnalyzerBars(boolean vertical) {
+        this.vertical = vertical;
+        for (int i = 0; i < COLOR_BUCKETS; ++i) {
+            bucketColors[i] = PrecalcColorUtil.magnitudeToColor((i + 0.5f) / COLOR_BUCKETS);
+            bucketLines[i] = new float[0];
+            bucketThicknesses[i] = new int[0];
+        }
+    }
+
+    /**
+     * Adds a bar which covers {@code left, top} to {@code right, bottom}, to be colored according
+     * to {@code magnitude}. Bars which round to nothing are ignored.
+     */
+    void addBar(float left, float top, float right, float bottom, float magnitude) {
+        int l = Math.round(left);
+        int t = Math.round(top);
+        int r = Math.round(right);
+        int b = Math.round(bottom);
+        if (l >= r || t >= b) {
+            return;
+        }
+        int bucket = Math.max(0, Math.min(COLOR_BUCKETS - 1, (int)(magnitude * COLOR_BUCKETS)));
+        int count = bucketCounts[bucket];
+        float[] lines = bucketLines[bucket];
+        int[] thicknesses = bucketThicknesses[bucket];
+        if (thicknesses.length == count) {
+            int grownCount = Math.max(4, count * 2);
+            float[] grownLines = new float[grownCount * 4];
+            int[] grownThicknesses = new int[grownCount];
+            System.arraycopy(lines, 0, grownLines, 0, count * 4);
+            System.arraycopy(thicknesses, 0, grownThicknesses, 0, count);
+            bucketLines[bucket] = lines = grownLines;
+            bucketThicknesses[bucket] = thicknesses = grownThicknesses;
+            if (runLines.length < grownLines.length) {
+                runLines = new float[grownLines.length];
+            }
+        }
+        int i = count * 4;
+        if (vertical) {
+            float x = l + (r - l) / 2f;
+            lines[i] = x;
+            lines[i + 1] = t;
+            lines[i + 2] = x;
+            lines[i + 3] = b;
+            thicknesses[count] = r - l;
+        } else {
+            float y = t + (b - t) / 2f;
+            lines[i] = l;
+            lines[i + 1] = y;
+            lines[i + 2] = r;
+            lines[i + 3] = y;
+            thicknesses[count] = b - t;
+        }
+        bucketCounts[bucket] = count + 1;
+    }
+
+    /**
+     * Draws all bars added since the last call, then clears them.
+     */
+    void draw(RenderTarget target) {
+        for (int bucket = 0; bucket < COLOR_BUCKETS; ++bucket) {
+            float[] lines = bucketLines[bucket];
+            int[] thicknesses = bucketThicknesses[bucket];
+            int remaining = bucketCounts[bucket];
+            while (remaining > 0) {
+                // Pull out the bars matching the first bar's thickness, and move the rest to the
+                // front for the next pass.
+                int thickness = thicknesses[0];
+                int runCount = 0;
+                int kept = 0;
+                for (int i = 0; i < remaining; ++i) {
+                    if (thicknesses[i] == thickness) {
+                        System.arraycopy(lines, i * 4, runLines, runCount * 4, 4);
+                        ++runCount;
+                    } else {
+                        System.arraycopy(lines, i * 4, lines, kept * 4, 4);
+                        thicknesses[kept] = thicknesses[i];
+                        ++kept;
+                    }
+                }
+                target.drawLines(runLines, 0, runCount, thickness, bucketColors[bucket]);
+                remaining = kept;
+            }
+            bucketCounts[bucket] = 0;
+        }
+    }
+}
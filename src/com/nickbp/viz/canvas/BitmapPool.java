@@ -0,0 +1,84 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Keeps a small number of released {@link Bitmap}s around for reuse, keyed by their dimensions
+ * and {@link Bitmap.Config}. Avoids large allocations (and the resulting GC pauses) when the
+ * display is rotated back and forth, or when visualizers are swapped.
+ *
+ * Not thread-safe, all calls are expected to come from the render thread.
+ */
+class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /**
+     * Maximum number of bitmaps to retain. Enough for the current visualization to get its
+     * voiceprints back (two, for a split view) when the display is rotated back again.
+     */
+    private static final int MAX_POOLED = 2;
+
+    /**
+     * Released bitmaps, from least to most recently released.
+     */
+    private final List<Bitmap> pooled = new ArrayList<Bitmap>(MAX_POOLED);
+
+    /**
+     * Returns a bitmap with the provided dimensions and config, reusing a released bitmap if one
+     * matches. The contents of a reused bitmap are undefined.
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        // search from most recently released
+        for (int i = pooled.size() - 1; i >= 0; --i) {
+            Bitmap bitmap = pooled.get(i);
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config) {
+                pooled.remove(i);
+                return bitmap;
+            }
+        }
+        Log.d(TAG, "Allocating bitmap w=" + width + " h=" + height + " config=" + config);
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Makes the provided bitmap available for reuse, evicting the least recently released bitmap
+     * if the pool is full.
+     */
+    public void release(Bitmap bitmap) {
+        if (pooled.size() == MAX_POOLED) {
+            pooled.remove(0).recycle();
+        }
+        pooled.add(bitmap);
+    }
+
+    /**
+     * Frees all retained bitmaps, eg when the system is low on memory.
+     */
+    public void clear() {
+        for (Bitmap bitmap : pooled) {
+            bitmap.recycle();
+        }
+        pooled.clear();
+    }
+}
@@ -0,0 +1,171 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderImage;
+import com.nickbp.viz.render.RenderTarget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A {@link RenderTarget} which draws to an Android {@link Canvas}, with images backed by RGB_565
+ * {@link Bitmap}s. A single instance is reused across frames, with the frame's canvas provided via
+ * {@link #setCanvas(Canvas)}. Released images are pooled for reuse.
+ */
+public class CanvasRenderTarget implements RenderTarget {
+    private static final Bitmap.Config IMAGE_CONFIG = Bitmap.Config.RGB_565;
+
+    private final BitmapPool bitmapPool = new BitmapPool();
+    private final Paint fillPaint = new Paint();
+    private final Paint linePaint = new Paint();
+    private final Paint scaledImagePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect srcBounds = new Rect();
+    private final Rect dstBounds = new Rect();
+    private Canvas canvas;
+    private float imageScale = 1.0f;
+
+    public CanvasRenderTarget() {
+        fillPaint.setAntiAlias(false);
+        fillPaint.setStyle(Paint.Style.FILL);
+        linePaint.setAntiAlias(false);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeCap(Paint.Cap.BUTT);
+    }
+
+    /**
+     * Sets the {@link Canvas} which subsequent drawing should go to.
+     */
+    public void setCanvas(Canvas canvas) {
+        this.canvas = canvas;
+    }
+
+    /**
+     * Sets the value to be returned by {@link #getImageScale()}, from 0.0f (exclusive) to 1.0f.
+     */
+    public void setImageScale(float imageScale) {
+        this.imageScale = imageScale;
+    }
+
+    @Override
+    public int getWidth() {
+        return canvas.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return canvas.getHeight();
+    }
+
+    @Override
+    public void fillRect(float left, float top, float right, float bottom, int color) {
+        fillPaint.setColor(color);
+        canvas.drawRect(left, top, right, bottom, fillPaint);
+    }
+
+    @Override
+    public void drawLines(float[] lines, int offset, int count, float thickness, int color) {
+        linePaint.setColor(color);
+        linePaint.setStrokeWidth(thickness);
+        canvas.drawLines(lines, offset, count * 4, linePaint);
+    }
+
+    /**
+     * Frees any released images which are being kept for reuse.
+     */
+    public void clearPool() {
+        bitmapPool.clear();
+    }
+
+    @Override
+    public RenderImage createImage(int width, int height) {
+        return new BitmapImage(bitmapPool.obtain(width, height, IMAGE_CONFIG));
+    }
+
+    @Override
+    public void releaseImage(RenderImage image) {
+        bitmapPool.release(((BitmapImage)image).bitmap);
+    }
+
+    @Override
+    public void drawImage(RenderImage image,
+            int srcLeft, int srcTop, int srcRight, int srcBottom, int dstLeft, int dstTop) {
+        srcBounds.set(srcLeft, srcTop, srcRight, srcBottom);
+        dstBounds.set(dstLeft, dstTop,
+            dstLeft + (srcRight - srcLeft), dstTop + (srcBottom - srcTop));
+        canvas.drawBitmap(((BitmapImage)image).bitmap, srcBounds, dstBounds, null);
+    }
+
+    @Override
+    public void drawImageScaled(RenderImage image, int srcLeft, int srcTop, int srcRight,
+            int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom) {
+        srcBounds.set(srcLeft, srcTop, srcRight, srcBottom);
+        dstBounds.set(dstLeft, dstTop, dstRight, dstBottom);
+        canvas.drawBitmap(((BitmapImage)image).bitmap, srcBounds, dstBounds, scaledImagePaint);
+    }
+
+    @Override
+    public float getImageScale() {
+        return imageScale;
+    }
+
+    private static class BitmapImage implements RenderImage {
+        private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        private final Bitmap bitmap;
+        // Created on first use, only needed when this image is the target of a copyScaled().
+        private Canvas bitmapWrapper;
+
+        private BitmapImage(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public int getWidth() {
+            return bitmap.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return bitmap.getHeight();
+        }
+
+        @Override
+        public void setPixels(
+                int[] colors, int offset, int stride, int x, int y, int width, int height) {
+            bitmap.setPixels(colors, offset, stride, x, y, width, height);
+        }
+
+        @Override
+        public void fill(int color) {
+            bitmap.eraseColor(color);
+        }
+
+        @Override
+        public void copyScaled(RenderImage src, int srcLeft, int srcTop, int srcRight,
+                int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom) {
+            if (bitmapWrapper == null) {
+                bitmapWrapper = new Canvas(bitmap);
+            }
+            bitmapWrapper.drawBitmap(((BitmapImage)src).bitmap,
+                new Rect(srcLeft, srcTop, srcRight, srcBottom),
+                new Rect(dstLeft, dstTop, dstRight, dstBottom), SCALE_PAINT);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.Tracer;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * Draws visualizer frames onto a {@link SurfaceHolder} from a dedicated thread, so that work on the
+ * UI thread doesn't delay rendering.
+ *
+ * Audio data is handed over with {@link #postFrame(DataBuffers)}, which never blocks the calling
+ * thread on rendering. If several frames arrive while a frame is being drawn, only the most recent
+ * one is drawn next.
+ */
+public class CanvasRenderThread extends Thread {
+    private static final String TAG = "CanvasRenderThread";
+
+    /**
+     * Performs the actual drawing. All calls are made from the render thread.
+     */
+    public interface Renderer {
+        /**
+         * Notifies that the surface dimensions have changed. Called before the next
+         * {@link #onDraw(DataBuffers, Canvas)}.
+         */
+        public void onSurfaceSizeChanged(int width, int height);
+
+        /**
+         * Draws the provided {@code data} onto the provided surface {@code canvas}.
+         */
+        public void onDraw(DataBuffers data, Canvas canvas);
+    }
+
+    private final SurfaceHolder holder;
+    private final Renderer renderer;
+
+    /**
+     * Guards the frame handoff and surface state below. Never held while drawing.
+     */
+    private final Object stateLock = new Object();
+    /**
+     * Held for the duration of each draw, so that the surface can't be destroyed mid-frame.
+     */
+    private final Object surfaceLock = new Object();
+
+    private DataBuffers pendingData = null;
+    private boolean framePending = false;
+    // Frames which were replaced by a newer frame before being drawn, for tracing.
+    private long framesReplaced = 0;
+    private boolean surfaceReady = false;
+    private boolean sizeChanged = false;
+    private int surfaceWidth = 0, surfaceHeight = 0;
+    private boolean quit = false;
+    // Minimum time between the starts of consecutive frames, or 0 for no limit.
+    private long minFrameIntervalMs = 0;
+    private long lastFrameStartMs = 0;
+
+    /**
+     * The region of the surface to redraw. The voiceprint scrolls every pixel of the display on
+     * each frame, so this always covers the whole surface.
+     */
+    private final Rect dirtyRect = new Rect();
+
+    public CanvasRenderThread(SurfaceHolder holder, Renderer renderer) {
+        super(TAG);
+        this.holder = holder;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Hands a new frame of audio data to the render thread. May be called from any thread, and
+     * returns immediately. {@code data} isn't copied, so it may be updated with the next frame
+     * while it's being drawn. That's tolerated rather than paying for a copy of every frame: at
+     * worst, one drawn frame mixes values from two consecutive frames.
+     */
+    public void postFrame(DataBuffers data) {
+        synchronized (stateLock) {
+            if (framePending) {
+                Tracer.counter("CanvasRenderThread.framesReplaced", ++framesReplaced);
+            }
+            pendingData = data;
+            framePending = true;
+            stateLock.notify();
+        }
+    }
+
+    /**
+     * Limits drawing to at most {@code maxFrameRateHz} frames per second, or removes the limit if
+     * zero. Frames which arrive sooner are held back, and replaced if a newer frame arrives in the
+     * meantime, so only the most recent data is drawn.
+     */
+    public void setMaxFrameRateHz(float maxFrameRateHz) {
+        synchronized (stateLock) {
+            minFrameIntervalMs = (maxFrameRateHz > 0) ? (long)(1000 / maxFrameRateHz) : 0;
+            stateLock.notify();
+        }
+    }
+
+    /**
+     * Notifies that the surface is ready to be drawn, with the provided dimensions. Should be called
+     * from {@link SurfaceHolder.Callback#surfaceChanged(SurfaceHolder, int, int, int)}.
+     */
+    public void onSurfaceChanged(int width, int height) {
+        synchronized (stateLock) {
+            surfaceReady = true;
+            if (width != surfaceWidth || height != surfaceHeight) {
+                surfaceWidth = width;
+                surfaceHeight = height;
+                sizeChanged = true;
+            }
+            stateLock.notify();
+        }
+    }
+
+    /**
+     * Notifies that the surface is going away, blocking until any in-progress frame has finished
+     * drawing. Should be called from {@link SurfaceHolder.Callback#surfaceDestroyed(SurfaceHolder)}.
+     */
+    public void onSurfaceDestroyed() {
+        synchronized (stateLock) {
+            surfaceReady = false;
+        }
+        synchronized (surfaceLock) {
+            // nothing to do, just wait for any in-progress frame to be posted
+        }
+    }
+
+    /**
+     * Stops the render thread and waits for it to exit.
+     */
+    public void quit() {
+        synchronized (stateLock) {
+            quit = true;
+            stateLock.notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        Log.d(TAG, "Render thread started");
+        while (true) {
+            DataBuffers data;
+            int width = 0, height = 0;
+            boolean resized = false;
+            synchronized (stateLock) {
+                while (!quit) {
+                    long waitMs = 0;
+                    if (framePending && surfaceReady) {
+                        waitMs = lastFrameStartMs + minFrameIntervalMs
+                            - SystemClock.uptimeMillis();
+                        if (waitMs <= 0) {
+                            break;
+                        }
+                    }
+                    try {
+                        // wait(0) waits indefinitely, until a frame arrives
+                        stateLock.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        quit = true;
+                    }
+                }
+                if (quit) {
+                    break;
+                }
+                lastFrameStartMs = SystemClock.uptimeMillis();
+                data = pendingData;
+                framePending = false;
+                if (sizeChanged) {
+                    width = surfaceWidth;
+                    height = surfaceHeight;
+                    sizeChanged = false;
+                    resized = true;
+                }
+            }
+
+            if (resized) {
+                renderer.onSurfaceSizeChanged(width, height);
+                dirtyRect.set(0, 0, width, height);
+            }
+            synchronized (surfaceLock) {
+                drawFrame(data);
+            }
+        }
+        Log.d(TAG, "Render thread exiting");
+    }
+
+    private void drawFrame(DataBuffers data) {
+        synchronized (stateLock) {
+            if (!surfaceReady) {
+                // destroyed since we picked up the frame
+                return;
+            }
+        }
+        Tracer.begin("SurfaceHolder.lockCanvas");
+        Canvas canvas = holder.lockCanvas(dirtyRect);
+        Tracer.end();
+        if (canvas == null) {
+            return;
+        }
+        try {
+            renderer.onDraw(data, canvas);
+        } finally {
+            Tracer.begin("SurfaceHolder.unlockCanvasAndPost");
+            holder.unlockCanvasAndPost(canvas);
+            Tracer.end();
+        }
+    }
+}
@@ -16,19 +16,37 @@
 
 package com.nickbp.viz.canvas;
 
-import android.graphics.Canvas;
-
+import com.nickbp.viz.render.RenderTarget;
 import com.nickbp.viz.util.DataBuffers;
 
 public interface CanvasVisualizerImpl {
+    /**
+     * Creates new instances of a visualization, for use with {@link VisualizerRegistry}.
+     */
+    public interface Factory {
+        public CanvasVisualizerImpl create();
+    }
+
     /**
      * Given the provided new {@code data}, renders the visualization's current state onto the
-     * provided {@code canvas}.
+     * provided {@code target}.
+     */
+    public void render(DataBuffers data, RenderTarget target);
+
+    /**
+     * Returns the {@code DataBuffers.FEATURE_*} flags for the fields which are read by
+     * {@link #render(DataBuffers, RenderTarget)}. Must not change after construction.
      */
-    public void render(DataBuffers data, Canvas canvas);
+    public int getRequiredFeatures();
 
     /**
      * Notifies the visualization that the display dimensions have changed.
      */
     public void resize(int viewWidth, int viewHeight);
+
+    /**
+     * Returns any offscreen images held by the visualization to {@code target}, discarding its
+     * history. New images are created on the next {@link #render(DataBuffers, RenderTarget)}.
+     */
+    public void releaseImages(RenderTarget target);
 }
@@ -16,40 +16,74 @@
 
 package com.nickbp.viz.canvas;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import com.nickbp.viz.R;
+import com.nickbp.viz.pipeline.FeatureDemand;
 import com.nickbp.viz.util.AudioSourceListener;
 import com.nickbp.viz.util.DataBuffers;
 import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.StartupTrace;
+import com.nickbp.viz.util.Tracer;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
 import android.view.View;
 
 /**
  * The {@link View} for a {@link HorizVisualizerImpl} or {@link VerticalVisualizerImpl}.
  * Handles user interaction and forwarding audio data.
+ *
+ * Rendering is performed on a dedicated {@link CanvasRenderThread}, which runs between calls to
+ * {@link #start()} and {@link #stop()}. Audio data is handed directly to that thread, so any work
+ * on the UI thread doesn't hold up the visualization.
  */
-public class CanvasVisualizerView extends View implements DataBufferListener, AudioSourceListener {
+public class CanvasVisualizerView extends SurfaceView
+        implements DataBufferListener, FeatureDemand, AudioSourceListener,
+        SurfaceHolder.Callback, CanvasRenderThread.Renderer {
     private static final String TAG = "CanvasVisualizerView";
+    // The frame rate which drawing is budgeted against when no maximum has been set.
+    private static final float DEFAULT_FRAME_RATE_HZ = 60;
+    // The fraction of each frame's interval which drawing should take, leaving the remainder for
+    // posting the frame.
+    private static final float DRAW_BUDGET_FRACTION = 0.75f;
 
     private final VisualizerSwapper vizSwapper = new VisualizerSwapper();
+    private final SourceTextOverlay sourceText = new SourceTextOverlay();
+    private final PitchReadoutOverlay pitchReadout = new PitchReadoutOverlay();
+    private final LevelMeterOverlay levelMeter = new LevelMeterOverlay();
+    private final CanvasRenderTarget renderTarget = new CanvasRenderTarget();
+
+    /**
+     * Set by the UI thread when the user taps the view, then handled on the render thread.
+     */
+    private volatile boolean swapRequested = false;
 
-    private DataBuffers data;
-    private int currentDataSource;
-    private int sourceTextAlpha = 0;
+    /**
+     * Set by the UI thread when memory is low, then handled on the render thread.
+     */
+    private volatile boolean trimRequested = false;
+
+    /**
+     * Whether a frame has been drawn since the last {@link #start()}. Only accessed on the render
+     * thread, once that thread is running.
+     */
+    private boolean drewFrame = false;
+
+    private CanvasRenderThread renderThread;
+    private boolean levelMeterEnabled = true;
+    private float maxFrameRateHz = 0;
+    private float maxRenderScale = 1.0f;
+    // Recreated on each start(), then only accessed on the render thread.
+    private RenderScaleController renderScaleController;
+    private boolean surfaceAvailable = false;
+    private int surfaceWidth, surfaceHeight;
 
     public CanvasVisualizerView(Context context) {
         super(context);
         setKeepScreenOn(true);
+        getHolder().addCallback(this);
     }
 
     /**
@@ -64,7 +98,7 @@ public class CanvasVisualizerView extends View implements DataBufferListener, Au
             new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    vizSwapper.swap();
+                    swapRequested = true;
                     callOnInteraction.run();
                 }
             });
@@ -73,7 +107,7 @@ public class CanvasVisualizerView extends View implements DataBufferListener, Au
                 @Override
                 public boolean onTouch(View v, MotionEvent event) {
                     if (event.getAction() == MotionEvent.ACTION_UP) {
-                        vizSwapper.swap();
+                        swapRequested = true;
                         callOnInteraction.run();
                         return true;
                     } else {
@@ -84,188 +118,171 @@ public class CanvasVisualizerView extends View implements DataBufferListener, Au
             });
     }
 
-    @Override
-    public void onReceive(DataBuffers buffers, boolean otherThread) {
-        data = buffers;
-        if (otherThread) {
-            postInvalidate();
-        } else {
-            invalidate();
-        }
+    /**
+     * Sets whether the level meter is drawn over the visualization, which it is by default. When
+     * disabled, {@link #getRequiredFeatures()} leaves out {@link DataBuffers#FEATURE_LEVELS}, so
+     * that audio sources don't need to measure levels. Should be called before the view is added
+     * to a pipeline.
+     */
+    public void setLevelMeterEnabled(boolean levelMeterEnabled) {
+        this.levelMeterEnabled = levelMeterEnabled;
     }
 
-    @Override
-    public void onSizeChanged(int w, int h, int oldw, int oldh) {
-        vizSwapper.updateSize(w, h);
+    /**
+     * Limits drawing to at most {@code maxFrameRateHz} frames per second, or removes the limit if
+     * zero. Takes effect on the next {@link #start()}.
+     */
+    public void setMaxFrameRateHz(float maxFrameRateHz) {
+        this.maxFrameRateHz = maxFrameRateHz;
     }
 
-    @Override
-    public void onSourceSwitched(int sourceType) {
-        Log.d(TAG, "Data source switched to " + sourceType);
-        currentDataSource = sourceType;
-        sourceTextAlpha = 512;// leave text at full-alpha for a bit before fading
+    /**
+     * Sets the largest scale, from 0.0f (exclusive) to 1.0f, at which visualizations keep their
+     * history images. The scale is reduced from there automatically while frames take longer than
+     * their budget to draw, and is restored once they're back under budget. Takes effect on the
+     * next {@link #start()}.
+     */
+    public void setMaxRenderScale(float maxRenderScale) {
+        this.maxRenderScale = maxRenderScale;
     }
 
-    @Override
-    public void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        if (data == null) {
+    /**
+     * Starts the render thread. Should be called from the UI thread, before audio data starts
+     * arriving via {@link #onReceive(DataBuffers, boolean)}.
+     */
+    public void start() {
+        if (renderThread != null) {
             return;
         }
-        vizSwapper.render(data, canvas);
-        if (sourceTextAlpha > 0) {
-            sourceTextAlpha = renderSourceText(canvas, getResources(), currentDataSource,
-                    sourceTextAlpha > 255 ? 255 : sourceTextAlpha);
+        drewFrame = false;
+        float frameRateHz = (maxFrameRateHz > 0) ? maxFrameRateHz : DEFAULT_FRAME_RATE_HZ;
+        renderScaleController = new RenderScaleController(
+            maxRenderScale, DRAW_BUDGET_FRACTION * 1000 / frameRateHz);
+        renderTarget.setImageScale(renderScaleController.getScale());
+        renderThread = new CanvasRenderThread(getHolder(), this);
+        renderThread.setMaxFrameRateHz(maxFrameRateHz);
+        if (surfaceAvailable) {
+            renderThread.onSurfaceChanged(surfaceWidth, surfaceHeight);
         }
+        renderThread.start();
     }
 
-    private static int renderSourceText(Canvas canvas, Resources resources, int source, int alpha) {
-        int headerId, messageId;
-        switch (source) {
-            case AudioSourceListener.SOURCE_TYPE_PLAYER:
-                headerId = R.string.player_input_header;
-                messageId = R.string.player_input_message;
-                break;
-            case AudioSourceListener.SOURCE_TYPE_MICROPHONE:
-                headerId = R.string.microphone_input_header;
-                messageId = R.string.microphone_input_message;
-                break;
-            default:
-                throw new IllegalArgumentException("Unknown source id: " + source);
+    /**
+     * Stops the render thread, waiting for it to exit. Should be called from the UI thread, after
+     * audio data has stopped arriving.
+     */
+    public void stop() {
+        if (renderThread == null) {
+            return;
         }
+        renderThread.quit();
+        renderThread = null;
+    }
 
-        // Blatant use of arbitrary size constants that look nice...
-
-        int maxTextWidth = (int)(canvas.getWidth() * .7);
-        int maxTextHeight = (int)(canvas.getHeight() * .5);
-
-        Paint p = new Paint();
-
-        String header = resources.getText(headerId).toString();
-        p.setTextAlign(Paint.Align.CENTER);
-        p.setShadowLayer(5, 0, 0, Color.BLACK);
-        p.setSubpixelText(true);
-        p.setAntiAlias(true);
-        p.setColor(Color.WHITE);
-        p.setAlpha(alpha);// must be set after assigning color
-
-        setTextSizeToFit(p, header, maxTextWidth, maxTextHeight);
-
-        String message = resources.getText(messageId).toString();
-
-        float centerX = canvas.getWidth() / 2;
-        float centerY = canvas.getHeight() / 2;
-        Rect headerBounds = new Rect();
-        p.getTextBounds(header, 0, header.length(), headerBounds);
-
-        if (message.isEmpty()) {
-            // Draw header exactly at center point
-            canvas.drawText(header, centerX, centerY + (headerBounds.height() / 2), p);
+    /**
+     * Frees the images held by visualizations other than the current one, along with any which
+     * are pooled for reuse. Should be called from the UI thread when memory is low. Takes effect
+     * right away if the render thread is stopped, or else before the next frame is drawn.
+     */
+    public void trimMemory() {
+        if (renderThread == null) {
+            releaseInactiveImages();
         } else {
-            // Draw header slightly above center point
-            canvas.drawText(header, centerX, centerY, p);
-
-            p.setColor(Color.GRAY);
-            p.setAlpha(alpha);// must be (re)set after assigning color
-
-            // Go with a 2:1 size ratio, or shrink if the string is too long to fit at that size
-            float preferredTextSize = p.getTextSize() / 2;
-            setTextSizeToFit(p, message, maxTextWidth, maxTextHeight);
-            p.setTextSize(Math.min(p.getTextSize(), preferredTextSize));
-
-            canvas.drawText(message, centerX, centerY + headerBounds.height(), p);
+            trimRequested = true;
         }
-
-        return alpha - 5;
     }
 
-    private static class TextSizeKey {
-        private final String s;
-        private final int width, height;
-
-        private TextSizeKey(String s, int width, int height) {
-            this.s = s;
-            this.width = width;
-            this.height = height;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (o instanceof TextSizeKey) {
-                TextSizeKey k = (TextSizeKey)o;
-                return k.s.equals(this.s) && k.width == this.width && k.height == this.height;
-            }
-            return false;
-        }
+    private void releaseInactiveImages() {
+        Log.d(TAG, "Releasing inactive images");
+        vizSwapper.releaseInactive(renderTarget);
+        renderTarget.clearPool();
+    }
 
-        @Override
-        public int hashCode() {
-            return width;
+    /**
+     * Returns the {@code DataBuffers.FEATURE_*} flags read by the visualizations which are
+     * currently in use, along with those read by the enabled overlays. Should be used when adding this
+     * view to a pipeline, so that analysis for the other visualizations is skipped.
+     */
+    @Override
+    public int getRequiredFeatures() {
+        int features = vizSwapper.getRequiredFeatures();
+        if (levelMeterEnabled) {
+            features |= DataBuffers.FEATURE_LEVELS;
         }
+        return features;
     }
 
-    private static final Map<TextSizeKey, Float> textSizeCache = new HashMap<TextSizeKey, Float>();
-    private static void setTextSizeToFit(Paint p, String s, int width, int height) {
-        TextSizeKey key = new TextSizeKey(s, width, height);
-        Float val = textSizeCache.get(key);
-        if (val != null) {
-            p.setTextSize(val);
-            return;
+    @Override
+    public void onReceive(DataBuffers buffers, boolean otherThread) {
+        // May race with start()/stop() on the UI thread, so grab a stable reference.
+        CanvasRenderThread thread = renderThread;
+        if (thread != null) {
+            thread.postFrame(buffers);
         }
+    }
 
-        Rect bounds = new Rect();
+    @Override
+    public void onSourceSwitched(int sourceType) {
+        Log.d(TAG, "Data source switched to " + sourceType);
+        sourceText.onSourceSwitched(sourceType);
+    }
 
-        // Grow until one dimension exceeds limit
-        float size = 1;
-        do {
-            size *= 2;
-            p.setTextSize(size);
-            p.getTextBounds(s, 0, s.length(), bounds);
-        } while (bounds.width() < width && bounds.height() < height);
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        Log.d(TAG, "surfaceCreated");
+    }
 
-        // Shrink until both dimensions fit limit
-        do {
-            p.setTextSize(size--);
-            p.getTextBounds(s, 0, s.length(), bounds);
-        } while (bounds.width() > width || bounds.height() > height);
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        Log.d(TAG, "surfaceChanged: w=" + width + " h=" + height);
+        surfaceAvailable = true;
+        surfaceWidth = width;
+        surfaceHeight = height;
+        if (renderThread != null) {
+            renderThread.onSurfaceChanged(width, height);
+        }
+    }
 
-        textSizeCache.put(key, p.getTextSize());
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        Log.d(TAG, "surfaceDestroyed");
+        surfaceAvailable = false;
+        if (renderThread != null) {
+            renderThread.onSurfaceDestroyed();
+        }
     }
 
-    private static class VisualizerSwapper {
-        private CanvasVisualizerImpl viz;
-        //TODO save default across sessions
-        private boolean isHoriz = true;
-        private int curWidth = 0, curHeight = 0;
+    @Override
+    public void onSurfaceSizeChanged(int width, int height) {
+        vizSwapper.updateSize(width, height);
+    }
 
-        public VisualizerSwapper() {
-            if (isHoriz) {
-                viz = new HorizVisualizerImpl();
-            } else {
-                viz = new VerticalVisualizerImpl();
-            }
+    @Override
+    public void onDraw(DataBuffers data, Canvas canvas) {
+        Tracer.begin("CanvasVisualizerView.onDraw");
+        long startNs = System.nanoTime();
+        if (swapRequested) {
+            swapRequested = false;
+            vizSwapper.swap(renderTarget);
         }
-
-        public void render(DataBuffers data, Canvas canvas) {
-            viz.render(data, canvas);
+        if (trimRequested) {
+            trimRequested = false;
+            releaseInactiveImages();
         }
-
-        public void updateSize(int w, int h) {
-            curWidth = w;
-            curHeight = h;
-            Log.d(TAG, "resize to w=" + curWidth + " h=" + curHeight);
-            viz.resize(curWidth, curHeight);
+        renderTarget.setCanvas(canvas);
+        vizSwapper.render(data, renderTarget);
+        pitchReadout.render(data, canvas);
+        if (levelMeterEnabled) {
+            levelMeter.render(data, canvas);
         }
-
-        public void swap() {
-            isHoriz = !isHoriz;
-            Log.d(TAG, "set horiz=" + isHoriz);
-            if (isHoriz) {
-                viz = new HorizVisualizerImpl();
-            } else {
-                viz = new VerticalVisualizerImpl();
-            }
-            viz.resize(curWidth, curHeight);
+        sourceText.render(canvas, getResources());
+        // applied to the next frame, where visualizations pick up the change
+        renderTarget.setImageScale(
+            renderScaleController.onFrameDrawn((System.nanoTime() - startNs) / 1000000f));
+        if (!drewFrame) {
+            drewFrame = true;
+            StartupTrace.end("first frame drawn");
         }
+        Tracer.end();
     }
 }
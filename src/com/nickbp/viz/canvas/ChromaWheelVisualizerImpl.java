@@ -0,0 +1,88 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.PrecalcColorUtil;
+
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * Shows {@link DataBuffers#chromaBuffer} as a wheel of 12 pitch classes, with C at the top and
+ * semitones going clockwise. Each pitch class is drawn as a square which grows and brightens with
+ * its strength.
+ */
+public class ChromaWheelVisualizerImpl implements CanvasVisualizerImpl {
+    private static final String TAG = "ChromaWheelVisualizerImpl";
+    // Distance from the center to each square's center, relative to the smaller view dimension.
+    private static final float WHEEL_RADIUS_PCT = 0.35f;
+    // Largest size of each square, relative to the smaller view dimension.
+    private static final float MAX_SQUARE_PCT = 0.16f;
+    // Smallest size of each square, relative to its largest size.
+    private static final float MIN_SQUARE_SCALE = 0.15f;
+
+    // Precalculated center of each pitch class's square.
+    private final float[] centerX = new float[12];
+    private final float[] centerY = new float[12];
+    private float maxSquareSize;
+
+    /**
+     * Given the provided new {@code data}, renders the visualization's current state onto the
+     * provided {@code target}.
+     */
+    @Override
+    public void render(DataBuffers data, RenderTarget target) {
+        target.fillRect(0, 0, target.getWidth(), target.getHeight(), Color.BLACK);
+        for (int i = 0; i < centerX.length; ++i) {
+            float val = data.chromaBuffer[i];
+            float halfSize =
+                maxSquareSize * (MIN_SQUARE_SCALE + (1 - MIN_SQUARE_SCALE) * val) / 2;
+            target.fillRect(centerX[i] - halfSize, centerY[i] - halfSize,
+                centerX[i] + halfSize, centerY[i] + halfSize,
+                PrecalcColorUtil.magnitudeToColor(val));
+        }
+    }
+
+    /**
+     * Notifies the visualization that the display dimensions have changed.
+     */
+    @Override
+    public void resize(int viewWidth, int viewHeight) {
+        Log.d(TAG, "size changed: w=" + viewWidth + ", h=" + viewHeight);
+        int minDimension = Math.min(viewWidth, viewHeight);
+        float radius = minDimension * WHEEL_RADIUS_PCT;
+        maxSquareSize = minDimension * MAX_SQUARE_PCT;
+        for (int i = 0; i < centerX.length; ++i) {
+            // clockwise from the top
+            double angle = 2 * Math.PI * i / centerX.length;
+            centerX[i] = (float)(viewWidth / 2 + radius * Math.sin(angle));
+            centerY[i] = (float)(viewHeight / 2 - radius * Math.cos(angle));
+        }
+    }
+
+    @Override
+    public void releaseImages(RenderTarget target) {
+        // Nothing is kept between frames.
+    }
+
+    @Override
+    public int getRequiredFeatures() {
+        return DataBuffers.FEATURE_CHROMA;
+    }
+}
@@ -16,25 +16,30 @@
 
 package com.nickbp.viz.canvas;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
+import com.nickbp.viz.render.RenderImage;
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.Tracer;
 
 /**
- * Handles a canvas that continuously shifts leftwards.
+ * Handles an image that continuously shifts leftwards.
  *
- * This implementation moves the active column to the right, then draws out the bitmap such that the
+ * This implementation moves the active column to the right, then draws out the image such that the
  * active column is always on the right edge of the output. After each render, the active column is
  * moved to the right by a predefined increment.
  *
- * Callers must fill a column using {@link #drawRect(float, float, Paint)}, then render/shift the
- * result using {@link #renderAndScroll(Canvas)}. This cycle repeats indefinitely.
+ * Callers must fill a column using {@link #drawColumn(int[])}, then render/shift the result using
+ * {@link #renderAndScroll(RenderTarget)}. This cycle repeats indefinitely.
  */
 public class HorizBitmapScroller {
-    private final Bitmap bitmap;
-    private final Canvas bitmapWrapper;
+    private final RenderImage image;
     private final int scrollDist;
+    private final int displayWidth, displayHeight;
+
+    /**
+     * Reusable pixel buffer for the active column, {@code scrollDist} wide and the image's height
+     * tall. Lets us update the column with a single {@link RenderImage#setPixels} call.
+     */
+    private final int[] columnPixels;
 
     /**
      * Marks the *right* edge of the current column.
@@ -42,58 +47,153 @@ public class HorizBitmapScroller {
     private int currentColRightEdge = 0;
 
     /**
-     * Creates a new scroller whose display area is provided width/height, with a column size of
-     * {@code scrollDist}. This is the column width used by {@link #drawRect(float, float, Paint)},
-     * and the distance that {@link #renderAndScroll(Canvas)} shifts the active area each time it's
+     * Creates a new scroller whose display area is the provided {@code image}, with a column size
+     * of {@code scrollDist}. This is the column width used by {@link #drawColumn(int[])}, and the
+     * distance that {@link #renderAndScroll(RenderTarget)} shifts the active area each time it's
      * called.
      */
-    public HorizBitmapScroller(int width, int height, int scrollDist) {
+    public HorizBitmapScroller(RenderImage image, int scrollDist) {
+        this(image, scrollDist, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Creates a new scroller as in {@link #HorizBitmapScroller(RenderImage, int)}, whose
+     * {@code image} is stretched to {@code displayWidth} x {@code displayHeight} when rendered.
+     * This allows the history to be kept at a reduced resolution.
+     */
+    public HorizBitmapScroller(RenderImage image, int scrollDist,
+            int displayWidth, int displayHeight) {
+        this.image = image;
         this.scrollDist = scrollDist;
-        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        bitmapWrapper = new Canvas(bitmap);
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        columnPixels = new int[scrollDist * image.getHeight()];
+    }
+
+    /**
+     * Returns the image which this scroller is drawing to.
+     */
+    public RenderImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the width of the area which this scroller covers when rendered.
+     */
+    public int getDisplayWidth() {
+        return displayWidth;
+    }
+
+    /**
+     * Returns the height of the area which this scroller covers when rendered.
+     */
+    public int getDisplayHeight() {
+        return displayHeight;
     }
 
     /**
-     * Renders the current state to the provided {@link Canvas}, then shifts the active column to
-     * the right by {@code scrollDist}.
+     * Replaces this scroller's content with the history currently shown by {@code previous},
+     * stretched to fit this scroller's dimensions. Allows the display to be resized without
+     * discarding the existing voiceprint.
      */
-    public void renderAndScroll(Canvas canvas) {
+    public void resampleFrom(HorizBitmapScroller previous) {
+        final RenderImage prevImage = previous.image;
+        final int prevWidth = prevImage.getWidth();
+        final int prevHeight = prevImage.getHeight();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // unroll the previous ring so that its oldest data is on our left edge, then restart our
+        // own ring from the left edge.
+        int prevSeam = prevWidth - previous.currentColRightEdge;
+        int seam = (int)((long)prevSeam * width / prevWidth);
+        image.copyScaled(prevImage, previous.currentColRightEdge, 0, prevWidth, prevHeight,
+            0, 0, seam, height);
+        image.copyScaled(prevImage, 0, 0, previous.currentColRightEdge, prevHeight,
+            seam, 0, width, height);
+        currentColRightEdge = 0;
+    }
+
+    /**
+     * Returns the height of the column, ie the length of the array expected by
+     * {@link #drawColumn(int[])}.
+     */
+    public int getColumnLength() {
+        return image.getHeight();
+    }
+
+    /**
+     * Renders the current state to the provided {@link RenderTarget}, then shifts the active
+     * column to the right by {@code scrollDist}.
+     */
+    public void renderAndScroll(RenderTarget target) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
         // first paint what's to the right of "currentColRightEdge" on the left edge of the display.
         // (this is the oldest data)
 
-        int currentSeam = bitmap.getWidth() - currentColRightEdge;
+        int currentSeam = width - currentColRightEdge;
 
-        // left, top, right, bottom
-        Rect bitmapBounds = new Rect(currentColRightEdge, 0, bitmap.getWidth(), bitmap.getHeight());
-        Rect outputBounds = new Rect(0, 0, currentSeam, bitmap.getHeight());
-        canvas.drawBitmap(bitmap, bitmapBounds, outputBounds, null);
+        Tracer.begin("HorizBitmapScroller.renderAndScroll");
+        if (width == displayWidth && height == displayHeight) {
+            // image left, top, right, bottom -> output left, top
+            target.drawImage(image, currentColRightEdge, 0, width, height, 0, 0);
 
-        // then paint what's to the left of "currentColRightEdge" on the right edge of the display.
-        // (this is the newest data)
+            // then paint what's to the left of "currentColRightEdge" on the right edge of the
+            // display. (this is the newest data)
 
-        bitmapBounds = new Rect(0, 0, currentColRightEdge, bitmap.getHeight());
-        outputBounds = new Rect(currentSeam, 0, bitmap.getWidth(), bitmap.getHeight());
-        canvas.drawBitmap(bitmap, bitmapBounds, outputBounds, null);
+            target.drawImage(image, 0, 0, currentColRightEdge, height, currentSeam, 0);
+        } else {
+            // same as above, except stretched to the display size
+            int displaySeam = (int)((long)currentSeam * displayWidth / width);
+            target.drawImageScaled(image, currentColRightEdge, 0, width, height,
+                0, 0, displaySeam, displayHeight);
+            target.drawImageScaled(image, 0, 0, currentColRightEdge, height,
+                displaySeam, 0, displayWidth, displayHeight);
+        }
+        Tracer.end();
 
         // increment column
-        currentColRightEdge = (currentColRightEdge + scrollDist) % bitmap.getWidth();
+        currentColRightEdge = (currentColRightEdge + scrollDist) % width;
     }
 
     /**
-     * Draws a rectangle in the currently active column between {@code top} and {@code bottom},
-     * using the provided {@code paint}. The width of the column is determined by {@code scrollDist}
-     * in {@link #BitmapScroller(int, int, int)}.
+     * Fills the currently active column with the provided {@code colors}, one color per row of
+     * pixels from top to bottom. {@code colors} must be {@link #getColumnLength()} long. The width
+     * of the column is determined by {@code scrollDist} in
+     * {@link #HorizBitmapScroller(RenderImage, int)}.
+     *
+     * The colors are ARGB ints, which are expanded across the column's width in a scratch buffer
+     * and then handed to {@link RenderImage#setPixels} in one call (two when the column wraps).
+     * Converting them to the image's own pixel format is left to the image.
      */
-    public void drawRect(float top, float bottom, Paint paint) {
+    public void drawColumn(int[] colors) {
+        final int height = image.getHeight();
+        if (colors.length != height) {
+            throw new IllegalArgumentException(
+                "Column length=" + colors.length + " doesn't match height=" + height);
+        }
+        // Each row of the column is a single color repeated across the column's width.
+        for (int y = 0, rowStart = 0; y < height; ++y, rowStart += scrollDist) {
+            final int color = colors[y];
+            for (int x = rowStart; x < rowStart + scrollDist; ++x) {
+                columnPixels[x] = color;
+            }
+        }
+
         int left = currentColRightEdge - scrollDist;
         if (left < 0) {
-            // wraparound. paint both halves of the split column on the edges of the canvas.
-            // left, top, right, bottom
-            bitmapWrapper.drawRect(left + bitmapWrapper.getWidth(), top,
-                bitmapWrapper.getWidth(), bottom, paint);
-            bitmapWrapper.drawRect(0, top, currentColRightEdge, bottom, paint);
+            // wraparound. write both halves of the split column on the edges of the image.
+            int rightHalfWidth = -left;
+            image.setPixels(columnPixels, 0, scrollDist,
+                image.getWidth() - rightHalfWidth, 0, rightHalfWidth, height);
+            if (currentColRightEdge > 0) {
+                image.setPixels(columnPixels, rightHalfWidth, scrollDist,
+                    0, 0, currentColRightEdge, height);
+            }
         } else {
-            bitmapWrapper.drawRect(left, top, currentColRightEdge, bottom, paint);
+            image.setPixels(columnPixels, 0, scrollDist, left, 0, scrollDist, height);
         }
     }
 
@@ -102,6 +202,6 @@ public class HorizBitmapScroller {
      * previous drawing.
      */
     public void clear(int color) {
-        bitmapWrapper.drawColor(color);
+        image.fill(color);
     }
 }
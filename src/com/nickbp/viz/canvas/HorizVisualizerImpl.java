@@ -16,13 +16,11 @@
 
 package com.nickbp.viz.canvas;
 
+import com.nickbp.viz.render.RenderTarget;
 import com.nickbp.viz.util.DataBuffers;
-import com.nickbp.viz.util.DataLengths;
 import com.nickbp.viz.util.PrecalcColorUtil;
 
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
 
 public class HorizVisualizerImpl implements CanvasVisualizerImpl {
@@ -30,65 +28,164 @@ public class HorizVisualizerImpl implements CanvasVisualizerImpl {
     // what percent of the screen's width should the analyzer take up
     private static final float ANALYZER_WIDTH_PCT = 0.15f;
     private static final int VOICEPRINT_PX_WIDTH = 5;
+    // The color which percussive energy is tinted towards, when enabled.
+    private static final int PERCUSSIVE_TINT_COLOR = 0xff60a0ff;
+
+    private final boolean percussiveTint;
+    private final AnalyzerBars analyzerBars = new AnalyzerBars(false);
 
-    private final Paint fillPaint = new Paint();
-    private final DataLengths lengths = new DataLengths();
     private int analyzerWidth;
     private int analyzerLeft;
+    // (Re)created on the next render after a resize, using the render target's image type.
     private HorizBitmapScroller voiceprintBitmapScroller;
+    // The voiceprint's column width within its image, which is less than VOICEPRINT_PX_WIDTH when
+    // the image is kept at a reduced scale.
+    private int voiceprintScrollDist;
+    // Colors for the voiceprint's next column, written to the scroller once per frame.
+    private int[] voiceprintColumn;
     private int viewHeight;
 
+    /**
+     * Creates an instance which colors the voiceprint by magnitude alone.
+     */
     public HorizVisualizerImpl() {
-        fillPaint.setAntiAlias(false);
-        fillPaint.setStyle(Paint.Style.FILL);
+        this(false);
+    }
+
+    /**
+     * Creates an instance which, if {@code percussiveTint} is set, additionally tints the voiceprint
+     * according to how much of each band's energy is percussive rather than harmonic.
+     */
+    public HorizVisualizerImpl(boolean percussiveTint) {
+        this.percussiveTint = percussiveTint;
     }
 
     /**
      * Given the provided new {@code data}, renders the visualization's current state onto the
-     * provided {@code canvas}.
+     * provided {@code target}.
      */
-    public void render(DataBuffers data, Canvas canvas) {
+    public void render(DataBuffers data, RenderTarget target) {
         //COORDINATE SYSTEM: 0,0 is TOP LEFT. SIZES ARE ALWAYS IN PX (no scaling/coord transforms)
 
-        fillPaint.setColor(Color.BLACK);
-        canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), fillPaint);
+        updateScroller(target);
+
+        target.fillRect(0, 0, target.getWidth(), target.getHeight(), Color.BLACK);
 
-        float bottom = canvas.getHeight();
-        float bufferPxWidth[] = lengths.getScaledLengths(data.valBuffer.length, viewHeight);
-        for (int datapt = 0; datapt < data.valBuffer.length; ++datapt) {
-            bottom = writePx(canvas, data, bufferPxWidth, datapt, bottom);
+        // the bands are perceptually even, so each gets the same height
+        float bandPxHeight = viewHeight / (float)data.bandBuffer.length;
+        float columnScale = voiceprintColumn.length / (float)viewHeight;
+        float bottom = target.getHeight();
+        for (int band = 0; band < data.bandBuffer.length; ++band) {
+            bottom = writePx(data, bandPxHeight, columnScale, band, bottom);
         }
+        analyzerBars.draw(target);
+        // clear anything left over above the last datapoint due to rounding
+        fillColumn(voiceprintColumn, 0, bottom * columnScale, Color.BLACK);
 
-        voiceprintBitmapScroller.renderAndScroll(canvas);
+        voiceprintBitmapScroller.drawColumn(voiceprintColumn);
+        voiceprintBitmapScroller.renderAndScroll(target);
     }
 
-    private float writePx(Canvas analyzerCanvas, DataBuffers data, float bufferPxWidth[],
-            int datapt, float bottom) {
-        float top = bottom - bufferPxWidth[datapt];
+    /**
+     * Creates the voiceprint scroller on the first render, or replaces it after a resize or a
+     * change to the target's image scale. When replacing, the existing history is carried over
+     * into the new dimensions.
+     */
+    private void updateScroller(RenderTarget target) {
+        // round the scale to a whole number of pixels per column, so that the voiceprint scrolls
+        // at the same speed on screen regardless of scale
+        int scrollDist = Math.max(1, Math.round(VOICEPRINT_PX_WIDTH * target.getImageScale()));
+        HorizBitmapScroller prevScroller = voiceprintBitmapScroller;
+        if (prevScroller != null
+                && prevScroller.getDisplayWidth() == analyzerLeft
+                && prevScroller.getDisplayHeight() == viewHeight
+                && voiceprintScrollDist == scrollDist) {
+            return;
+        }
+        int imageWidth = Math.max(1, analyzerLeft * scrollDist / VOICEPRINT_PX_WIDTH);
+        int imageHeight = Math.max(1, viewHeight * scrollDist / VOICEPRINT_PX_WIDTH);
+        voiceprintBitmapScroller = new HorizBitmapScroller(
+            target.createImage(imageWidth, imageHeight), scrollDist, analyzerLeft, viewHeight);
+        voiceprintScrollDist = scrollDist;
+        voiceprintColumn = new int[voiceprintBitmapScroller.getColumnLength()];
+        if (prevScroller != null) {
+            voiceprintBitmapScroller.resampleFrom(prevScroller);
+            target.releaseImage(prevScroller.getImage());
+        } else {
+            voiceprintBitmapScroller.clear(Color.BLACK);
+        }
+    }
+
+    private float writePx(DataBuffers data, float bandPxHeight, float columnScale, int band,
+            float bottom) {
+        float top = bottom - bandPxHeight;
 
-        float analyzerVal = data.timeSmoothedValBuffer[datapt];
-        fillPaint.setColor(PrecalcColorUtil.magnitudeToColor(analyzerVal));
-        analyzerCanvas.drawRect(
-            analyzerLeft, top, analyzerLeft + (analyzerVal * analyzerWidth), bottom, fillPaint);
+        float analyzerVal = data.timeSmoothedBandBuffer[band];
+        analyzerBars.addBar(analyzerLeft, top, analyzerLeft + (analyzerVal * analyzerWidth),
+                bottom, analyzerVal);
 
-        fillPaint.setColor(PrecalcColorUtil.magnitudeToColor(data.valBuffer[datapt]));
-        voiceprintBitmapScroller.drawRect(top, bottom, fillPaint);
+        int color = PrecalcColorUtil.magnitudeToColor(data.bandBuffer[band]);
+        if (percussiveTint && data.bandBuffer[band] > 0) {
+            color = tint(color, data.percussiveBandBuffer[band] / data.bandBuffer[band]);
+        }
+        fillColumn(voiceprintColumn, top * columnScale, bottom * columnScale, color);
 
         // shift upwards (to the new bottom):
         return top;
     }
 
+    /**
+     * Blends {@code color} towards {@link #PERCUSSIVE_TINT_COLOR} by {@code amount}, from 0.0f (no
+     * change) to 1.0f, while keeping the original brightness.
+     */
+    private static int tint(int color, float amount) {
+        int r = (color >> 16) & 0xff, g = (color >> 8) & 0xff, b = color & 0xff;
+        int brightness = Math.max(r, Math.max(g, b));
+        int tr = ((PERCUSSIVE_TINT_COLOR >> 16) & 0xff) * brightness / 255;
+        int tg = ((PERCUSSIVE_TINT_COLOR >> 8) & 0xff) * brightness / 255;
+        int tb = (PERCUSSIVE_TINT_COLOR & 0xff) * brightness / 255;
+        return 0xff000000
+            | ((int)(r + (tr - r) * amount) << 16)
+            | ((int)(g + (tg - g) * amount) << 8)
+            | (int)(b + (tb - b) * amount);
+    }
+
+    /**
+     * Fills the pixels of {@code column} between {@code top} and {@code bottom} with
+     * {@code color}, rounding the edges to the nearest pixel in the same way as
+     * {@link RenderTarget#fillRect(float, float, float, float, int)}.
+     */
+    private static void fillColumn(int[] column, float top, float bottom, int color) {
+        int start = Math.max(0, Math.round(top));
+        int end = Math.min(column.length, Math.round(bottom));
+        for (int y = start; y < end; ++y) {
+            column[y] = color;
+        }
+    }
+
     /**
      * Notifies the visualization that the display dimensions have changed.
      * @return The data display width that should be used for future incoming data via
-     * {@link #render(DataBuffers, Canvas)}.
+     * {@link #render(DataBuffers, RenderTarget)}.
      */
     public void resize(int viewWidth, int viewHeight) {
         Log.d(TAG, "size changed: w=" + viewWidth + ", h=" + viewHeight);
         analyzerWidth = (int)(viewWidth * ANALYZER_WIDTH_PCT);
         analyzerLeft = viewWidth - analyzerWidth;
-        voiceprintBitmapScroller =
-            new HorizBitmapScroller(analyzerLeft, viewHeight, VOICEPRINT_PX_WIDTH);
         this.viewHeight = viewHeight;
     }
+
+    @Override
+    public void releaseImages(RenderTarget target) {
+        if (voiceprintBitmapScroller != null) {
+            target.releaseImage(voiceprintBitmapScroller.getImage());
+            voiceprintBitmapScroller = null;
+        }
+    }
+
+    @Override
+    public int getRequiredFeatures() {
+        return percussiveTint
+            ? DataBuffers.FEATURE_BANDS | DataBuffers.FEATURE_HPSS : DataBuffers.FEATURE_BANDS;
+    }
 }
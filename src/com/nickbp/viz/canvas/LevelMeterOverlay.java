@@ -0,0 +1,112 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.LevelMeter;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Shows level meters in the bottom left corner: an RMS bar with the peak level and peak-hold
+ * marked beyond it, followed by the short-term loudness and any clipped samples. Nothing is shown
+ * while the audio source can't measure levels.
+ */
+class LevelMeterOverlay {
+    // Lowest level shown on the meter, in dBFS.
+    private static final float MIN_DB = -60;
+    // Meter size relative to the view dimensions.
+    private static final float METER_WIDTH_PCT = 0.25f;
+    private static final float METER_HEIGHT_PCT = 0.015f;
+    private static final float TEXT_SIZE_PCT = 0.03f;
+
+    private static final int BACKGROUND_COLOR = 0x80000000;
+    private static final int RMS_COLOR = 0xff40c040;
+    private static final int PEAK_COLOR = 0xff206020;
+    private static final int HOLD_COLOR = Color.WHITE;
+    private static final int CLIP_COLOR = Color.RED;
+
+    private final Paint paint = new Paint();
+    private final Paint textPaint = new Paint();
+
+    // The text is only rebuilt when the rounded values change.
+    private int lastLoudnessTenths = Integer.MIN_VALUE, lastClipCount = -1;
+    private String text = "";
+
+    public LevelMeterOverlay() {
+        textPaint.setAntiAlias(true);
+        textPaint.setSubpixelText(true);
+        textPaint.setShadowLayer(3, 0, 0, Color.BLACK);
+    }
+
+    /**
+     * Renders the meters for the levels in {@code data} onto the provided {@code canvas}.
+     */
+    public void render(DataBuffers data, Canvas canvas) {
+        if (!data.levelsAvailable) {
+            // rather than showing silence, which would be misleading
+            return;
+        }
+        float meterWidth = canvas.getWidth() * METER_WIDTH_PCT;
+        float meterHeight = Math.max(2, canvas.getHeight() * METER_HEIGHT_PCT);
+        float left = meterHeight;
+        float bottom = canvas.getHeight() - meterHeight;
+        float top = bottom - meterHeight;
+
+        paint.setColor(BACKGROUND_COLOR);
+        canvas.drawRect(left, top, left + meterWidth, bottom, paint);
+        paint.setColor(PEAK_COLOR);
+        canvas.drawRect(left, top, left + levelToPos(data.peakLevel, meterWidth), bottom, paint);
+        paint.setColor(RMS_COLOR);
+        canvas.drawRect(left, top, left + levelToPos(data.rmsLevel, meterWidth), bottom, paint);
+        paint.setColor(data.peakHoldLevel >= 1 ? CLIP_COLOR : HOLD_COLOR);
+        float hold = left + levelToPos(data.peakHoldLevel, meterWidth);
+        canvas.drawRect(hold - 1, top, hold + 1, bottom, paint);
+
+        int loudnessTenths = Math.round(data.loudnessLufs * 10);
+        if (loudnessTenths != lastLoudnessTenths || data.clipCount != lastClipCount) {
+            lastLoudnessTenths = loudnessTenths;
+            lastClipCount = data.clipCount;
+            if (data.loudnessLufs <= LevelMeter.SILENCE_LUFS) {
+                text = "-inf LUFS";
+            } else {
+                text = (loudnessTenths / 10f) + " LUFS";
+            }
+            if (data.clipCount > 0) {
+                text += "  " + data.clipCount + " clipped";
+            }
+        }
+        float textSize = Math.min(canvas.getWidth(), canvas.getHeight()) * TEXT_SIZE_PCT;
+        textPaint.setTextSize(textSize);
+        textPaint.setColor(data.clipCount > 0 ? CLIP_COLOR : Color.WHITE);
+        canvas.drawText(text, left + meterWidth + meterHeight, bottom, textPaint);
+    }
+
+    /**
+     * Returns the position along the meter for the provided linear level, on a dB scale from
+     * {@link #MIN_DB} at 0 to 0dBFS at {@code meterWidth}.
+     */
+    private static float levelToPos(float level, float meterWidth) {
+        if (level <= 0) {
+            return 0;
+        }
+        float db = (float)(20 * Math.log10(level));
+        return Math.max(0, Math.min(1, 1 - db / MIN_DB)) * meterWidth;
+    }
+}
@@ -0,0 +1,180 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderImage;
+import com.nickbp.viz.render.RenderTarget;
+
+/**
+ * A rectangular region of another {@link RenderTarget}. Coordinates are relative to the region's
+ * top left corner, and any drawing is clipped to the region.
+ */
+class PaneRenderTarget implements RenderTarget {
+    private RenderTarget parent;
+    private int left, top, width, height;
+    // Reusable copy of the lines passed to drawLines(), translated into the parent's coordinates.
+    private float[] parentLines = new float[0];
+
+    /**
+     * Sets the target which this pane draws into. May change from frame to frame.
+     */
+    public void setParent(RenderTarget parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Sets the position and size of this pane within its parent.
+     */
+    public void setBounds(int left, int top, int width, int height) {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void fillRect(float left, float top, float right, float bottom, int color) {
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(width, right);
+        bottom = Math.min(height, bottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        parent.fillRect(this.left + left, this.top + top, this.left + right, this.top + bottom,
+            color);
+    }
+
+    /**
+     * Lines are clipped to the pane along their length. Any line whose center is outside of the
+     * pane is dropped, but the thickness of lines along the pane's edges isn't clipped.
+     */
+    @Override
+    public void drawLines(float[] lines, int offset, int count, float thickness, int color) {
+        if (parentLines.length < count * 4) {
+            parentLines = new float[count * 4];
+        }
+        int kept = 0;
+        for (int i = offset; i < offset + count * 4; i += 4) {
+            float x0 = lines[i], y0 = lines[i + 1], x1 = lines[i + 2], y1 = lines[i + 3];
+            if (y0 == y1) {
+                if (y0 < 0 || y0 >= height) {
+                    continue;
+                }
+                x0 = Math.max(0, Math.min(width, x0));
+                x1 = Math.max(0, Math.min(width, x1));
+            } else {
+                if (x0 < 0 || x0 >= width) {
+                    continue;
+                }
+                y0 = Math.max(0, Math.min(height, y0));
+                y1 = Math.max(0, Math.min(height, y1));
+            }
+            if (x0 == x1 && y0 == y1) {
+                continue;
+            }
+            int j = kept * 4;
+            parentLines[j] = left + x0;
+            parentLines[j + 1] = top + y0;
+            parentLines[j + 2] = left + x1;
+            parentLines[j + 3] = top + y1;
+            ++kept;
+        }
+        if (kept > 0) {
+            parent.drawLines(parentLines, 0, kept, thickness, color);
+        }
+    }
+
+    @Override
+    public RenderImage createImage(int width, int height) {
+        return parent.createImage(width, height);
+    }
+
+    @Override
+    public void releaseImage(RenderImage image) {
+        parent.releaseImage(image);
+    }
+
+    @Override
+    public void drawImage(RenderImage image,
+            int srcLeft, int srcTop, int srcRight, int srcBottom, int dstLeft, int dstTop) {
+        // clip the destination to the pane, adjusting the source region to match
+        if (dstLeft < 0) {
+            srcLeft -= dstLeft;
+            dstLeft = 0;
+        }
+        if (dstTop < 0) {
+            srcTop -= dstTop;
+            dstTop = 0;
+        }
+        srcRight = Math.min(srcRight, srcLeft + (width - dstLeft));
+        srcBottom = Math.min(srcBottom, srcTop + (height - dstTop));
+        if (srcLeft >= srcRight || srcTop >= srcBottom) {
+            return;
+        }
+        parent.drawImage(image, srcLeft, srcTop, srcRight, srcBottom,
+            left + dstLeft, top + dstTop);
+    }
+
+    @Override
+    public void drawImageScaled(RenderImage image, int srcLeft, int srcTop, int srcRight,
+            int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom) {
+        if (dstLeft >= dstRight || dstTop >= dstBottom) {
+            return;
+        }
+        // clip the destination to the pane, trimming the source region by the same proportion
+        float srcPerDstX = (srcRight - srcLeft) / (float)(dstRight - dstLeft);
+        float srcPerDstY = (srcBottom - srcTop) / (float)(dstBottom - dstTop);
+        if (dstLeft < 0) {
+            srcLeft += Math.round(-dstLeft * srcPerDstX);
+            dstLeft = 0;
+        }
+        if (dstTop < 0) {
+            srcTop += Math.round(-dstTop * srcPerDstY);
+            dstTop = 0;
+        }
+        if (dstRight > width) {
+            srcRight -= Math.round((dstRight - width) * srcPerDstX);
+            dstRight = width;
+        }
+        if (dstBottom > height) {
+            srcBottom -= Math.round((dstBottom - height) * srcPerDstY);
+            dstBottom = height;
+        }
+        if (srcLeft >= srcRight || srcTop >= srcBottom
+                || dstLeft >= dstRight || dstTop >= dstBottom) {
+            return;
+        }
+        parent.drawImageScaled(image, srcLeft, srcTop, srcRight, srcBottom,
+            left + dstLeft, top + dstTop, left + dstRight, top + dstBottom);
+    }
+
+    @Override
+    public float getImageScale() {
+        return parent.getImageScale();
+    }
+}
@@ -0,0 +1,70 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.util.DataBuffers;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Shows the note name and frequency of {@link DataBuffers#pitchHz} in the top left corner,
+ * whenever a pitch is available.
+ */
+class PitchReadoutOverlay {
+    private static final String[] NOTE_NAMES =
+        { "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+    // Below this confidence, the readout is hidden to avoid flickering between guesses.
+    private static final float MIN_CONFIDENCE = 0.5f;
+    // Text size relative to the smaller view dimension.
+    private static final float TEXT_SIZE_PCT = 0.05f;
+
+    private final Paint paint = new Paint();
+
+    // The readout is only rebuilt when the rounded values change.
+    private int lastMidiNote = -1, lastRoundedHz = -1;
+    private String text = "";
+
+    public PitchReadoutOverlay() {
+        paint.setAntiAlias(true);
+        paint.setSubpixelText(true);
+        paint.setColor(Color.WHITE);
+        paint.setShadowLayer(3, 0, 0, Color.BLACK);
+    }
+
+    /**
+     * Renders the readout onto the provided {@code canvas}, if a pitch is available.
+     */
+    public void render(DataBuffers data, Canvas canvas) {
+        if (data.pitchHz <= 0 || data.pitchConfidence < MIN_CONFIDENCE) {
+            return;
+        }
+        // MIDI note 69 is A4 = 440Hz
+        int midiNote = (int)Math.round(69 + 12 * Math.log(data.pitchHz / 440) / Math.log(2));
+        int roundedHz = Math.round(data.pitchHz);
+        if (midiNote != lastMidiNote || roundedHz != lastRoundedHz) {
+            lastMidiNote = midiNote;
+            lastRoundedHz = roundedHz;
+            text = NOTE_NAMES[((midiNote % 12) + 12) % 12] + (midiNote / 12 - 1)
+                + "  " + roundedHz + "Hz";
+        }
+        float textSize = Math.min(canvas.getWidth(), canvas.getHeight()) * TEXT_SIZE_PCT;
+        paint.setTextSize(textSize);
+        canvas.drawText(text, textSize / 2, textSize * 1.5f, paint);
+    }
+}
@@ -0,0 +1,135 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.PrecalcColorUtil;
+
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * Shows a scrolling trail of {@link DataBuffers#pitchHz}, on a logarithmic frequency scale with
+ * faint guide lines at each C. The trail is colored by the pitch's confidence.
+ */
+public class PitchTrailVisualizerImpl implements CanvasVisualizerImpl {
+    private static final String TAG = "PitchTrailVisualizerImpl";
+    private static final int TRAIL_PX_WIDTH = 5;
+    private static final int TRAIL_PX_THICKNESS = 4;
+    // Displayed frequency range.
+    private static final float MIN_HZ = 55;
+    private static final float MAX_HZ = 1760;
+    // Frequency of C2, the lowest guide line.
+    private static final float C2_HZ = 65.406f;
+    private static final int GUIDE_COLOR = 0xff303030;
+
+    // (Re)created on the next render after a resize, using the render target's image type.
+    private HorizBitmapScroller trailBitmapScroller;
+    // The empty column with guide lines, copied into the trail column before adding the pitch.
+    private int[] guideColumn;
+    // Colors for the trail's next column, written to the scroller once per frame.
+    private int[] trailColumn;
+    private int viewWidth, viewHeight;
+
+    /**
+     * Given the provided new {@code data}, renders the visualization's current state onto the
+     * provided {@code target}.
+     */
+    @Override
+    public void render(DataBuffers data, RenderTarget target) {
+        updateScroller(target);
+
+        System.arraycopy(guideColumn, 0, trailColumn, 0, trailColumn.length);
+        if (data.pitchHz > 0) {
+            int y = (int)hzToY(data.pitchHz);
+            int start = Math.max(0, y - TRAIL_PX_THICKNESS / 2);
+            int end = Math.min(trailColumn.length, start + TRAIL_PX_THICKNESS);
+            int color = PrecalcColorUtil.magnitudeToColor(data.pitchConfidence);
+            for (int i = start; i < end; ++i) {
+                trailColumn[i] = color;
+            }
+        }
+        trailBitmapScroller.drawColumn(trailColumn);
+        trailBitmapScroller.renderAndScroll(target);
+    }
+
+    /**
+     * Creates the trail scroller on the first render, or replaces it after a resize. When
+     * replacing, the existing history is carried over into the new dimensions.
+     */
+    private void updateScroller(RenderTarget target) {
+        HorizBitmapScroller prevScroller = trailBitmapScroller;
+        if (prevScroller != null
+                && prevScroller.getImage().getWidth() == viewWidth
+                && prevScroller.getColumnLength() == viewHeight) {
+            return;
+        }
+        trailBitmapScroller = new HorizBitmapScroller(
+            target.createImage(viewWidth, viewHeight), TRAIL_PX_WIDTH);
+        trailColumn = new int[viewHeight];
+        guideColumn = new int[viewHeight];
+        for (int i = 0; i < viewHeight; ++i) {
+            guideColumn[i] = Color.BLACK;
+        }
+        for (float hz = C2_HZ; hz < MAX_HZ; hz *= 2) {
+            int y = (int)hzToY(hz);
+            if (y >= 0 && y < viewHeight) {
+                guideColumn[y] = GUIDE_COLOR;
+            }
+        }
+        if (prevScroller != null) {
+            trailBitmapScroller.resampleFrom(prevScroller);
+            target.releaseImage(prevScroller.getImage());
+        } else {
+            trailBitmapScroller.clear(Color.BLACK);
+        }
+    }
+
+    /**
+     * Returns the vertical position for the provided frequency, with {@link #MIN_HZ} at the bottom
+     * and {@link #MAX_HZ} at the top.
+     */
+    private float hzToY(float hz) {
+        double pos = Math.log(hz / MIN_HZ) / Math.log(MAX_HZ / MIN_HZ);
+        return (float)((1 - pos) * (viewHeight - 1));
+    }
+
+    /**
+     * Notifies the visualization that the display dimensions have changed.
+     */
+    @Override
+    public void resize(int viewWidth, int viewHeight) {
+        Log.d(TAG, "size changed: w=" + viewWidth + ", h=" + viewHeight);
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    @Override
+    public void releaseImages(RenderTarget target) {
+        if (trailBitmapScroller != null) {
+            target.releaseImage(trailBitmapScroller.getImage());
+            trailBitmapScroller = null;
+        }
+    }
+
+    @Override
+    public int getRequiredFeatures() {
+        // Only reads the pitch, which is always updated.
+        return 0;
+    }
+}
@@ -0,0 +1,95 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.util.Tracer;
+
+import android.util.Log;
+
+/**
+ * Picks the image scale for a {@link CanvasRenderTarget} according to how long recent frames took
+ * to draw. The scale is stepped down while frames are over budget, then stepped back up once
+ * they're comfortably under budget. Changes are spaced out, since each one makes visualizations
+ * resample their history into new images.
+ */
+class RenderScaleController {
+    private static final String TAG = "RenderScaleController";
+    /**
+     * The scale is a multiple of this value. Matches a one pixel change in the voiceprint's
+     * column width, see {@link HorizVisualizerImpl}.
+     */
+    private static final float SCALE_STEP = 0.2f;
+    private static final int MIN_STEPS = 2;
+    private static final int MAX_STEPS = 5;
+    // Weight given to each new frame in the moving average of frame times.
+    private static final float AVERAGE_WEIGHT = 0.1f;
+    // How many frames to wait after a change before decreasing or increasing the scale again.
+    private static final int FRAMES_BEFORE_DECREASE = 30;
+    private static final int FRAMES_BEFORE_INCREASE = 300;
+    // The scale is only increased when frames are taking less than this fraction of the budget.
+    private static final float INCREASE_BUDGET_FRACTION = 0.5f;
+
+    private final int maxSteps;
+    private final float frameBudgetMs;
+    private int steps;
+    private float averageFrameMs = 0;
+    private int framesSinceChange = 0;
+
+    /**
+     * Creates an instance which starts at, and never exceeds, {@code maxScale}, and which tries to
+     * keep frames within {@code frameBudgetMs}.
+     */
+    RenderScaleController(float maxScale, float frameBudgetMs) {
+        maxSteps = Math.min(MAX_STEPS, Math.max(MIN_STEPS, Math.round(maxScale / SCALE_STEP)));
+        this.frameBudgetMs = frameBudgetMs;
+        steps = maxSteps;
+    }
+
+    /**
+     * Returns the current scale, from 0.0f (exclusive) to 1.0f.
+     */
+    float getScale() {
+        return steps * SCALE_STEP;
+    }
+
+    /**
+     * Records that a frame took {@code frameMs} to draw, and returns the scale which the next
+     * frame should use.
+     */
+    float onFrameDrawn(float frameMs) {
+        averageFrameMs += (frameMs - averageFrameMs) * AVERAGE_WEIGHT;
+        ++framesSinceChange;
+        if (averageFrameMs > frameBudgetMs
+                && framesSinceChange >= FRAMES_BEFORE_DECREASE
+                && steps > MIN_STEPS) {
+            setSteps(steps - 1);
+        } else if (averageFrameMs < frameBudgetMs * INCREASE_BUDGET_FRACTION
+                && framesSinceChange >= FRAMES_BEFORE_INCREASE
+                && steps < maxSteps) {
+            setSteps(steps + 1);
+        }
+        return getScale();
+    }
+
+    private void setSteps(int steps) {
+        this.steps = steps;
+        framesSinceChange = 0;
+        Log.d(TAG, "Frames averaging " + averageFrameMs + "ms against a budget of "
+                + frameBudgetMs + "ms, image scale now " + getScale());
+        Tracer.counter("RenderScaleController.scalePct", Math.round(getScale() * 100));
+    }
+}
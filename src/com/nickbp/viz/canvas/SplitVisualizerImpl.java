@@ -0,0 +1,141 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.util.Log;
+
+/**
+ * Shows several visualizations at once, in panes laid side by side or stacked.
+ *
+ * Every pane renders the same {@link DataBuffers} frame, so the spectrum analysis is only ever
+ * performed once no matter how many panes are shown. Each extra pane only costs its rendering.
+ */
+public class SplitVisualizerImpl implements CanvasVisualizerImpl {
+    private static final String TAG = "SplitVisualizerImpl";
+
+    private final boolean sideBySide;
+    private final CanvasVisualizerImpl[] panes;
+    private final float[] paneFractions;
+    private final PaneRenderTarget[] paneTargets;
+
+    /**
+     * Creates a visualization which splits the display equally between the provided
+     * {@code panes}, in order. If {@code sideBySide} is {@code true}, panes are laid out from left
+     * to right, otherwise they're stacked from top to bottom.
+     */
+    public SplitVisualizerImpl(boolean sideBySide, CanvasVisualizerImpl... panes) {
+        this(sideBySide, equalWeights(panes.length), panes);
+    }
+
+    /**
+     * Creates a visualization which splits the display between the provided {@code panes}, in
+     * order, where each pane's share of the display is proportional to its entry in
+     * {@code weights}. If {@code sideBySide} is {@code true}, panes are laid out from left to
+     * right, otherwise they're stacked from top to bottom.
+     */
+    public SplitVisualizerImpl(
+            boolean sideBySide, float[] weights, CanvasVisualizerImpl... panes) {
+        if (panes.length == 0) {
+            throw new IllegalArgumentException("At least one pane is required");
+        }
+        if (weights.length != panes.length) {
+            throw new IllegalArgumentException(
+                "Got " + weights.length + " weights for " + panes.length + " panes");
+        }
+        this.sideBySide = sideBySide;
+        this.panes = panes;
+        // convert weights to the cumulative fraction of the display at each pane's far edge
+        paneFractions = new float[weights.length];
+        float total = 0;
+        for (float weight : weights) {
+            total += weight;
+        }
+        float sum = 0;
+        for (int i = 0; i < weights.length; ++i) {
+            sum += weights[i];
+            paneFractions[i] = sum / total;
+        }
+        paneFractions[weights.length - 1] = 1;
+        paneTargets = new PaneRenderTarget[panes.length];
+        for (int i = 0; i < panes.length; ++i) {
+            paneTargets[i] = new PaneRenderTarget();
+        }
+    }
+
+    /**
+     * Given the provided new {@code data}, renders the visualization's current state onto the
+     * provided {@code target}.
+     */
+    @Override
+    public void render(DataBuffers data, RenderTarget target) {
+        for (int i = 0; i < panes.length; ++i) {
+            PaneRenderTarget paneTarget = paneTargets[i];
+            paneTarget.setParent(target);
+            panes[i].render(data, paneTarget);
+        }
+    }
+
+    /**
+     * Notifies the visualization that the display dimensions have changed.
+     */
+    @Override
+    public void resize(int viewWidth, int viewHeight) {
+        Log.d(TAG, "size changed: w=" + viewWidth + ", h=" + viewHeight);
+        int prevEdge = 0;
+        for (int i = 0; i < panes.length; ++i) {
+            if (sideBySide) {
+                int edge = (int)(viewWidth * paneFractions[i]);
+                paneTargets[i].setBounds(prevEdge, 0, edge - prevEdge, viewHeight);
+                panes[i].resize(edge - prevEdge, viewHeight);
+                prevEdge = edge;
+            } else {
+                int edge = (int)(viewHeight * paneFractions[i]);
+                paneTargets[i].setBounds(0, prevEdge, viewWidth, edge - prevEdge);
+                panes[i].resize(viewWidth, edge - prevEdge);
+                prevEdge = edge;
+            }
+        }
+    }
+
+    private static float[] equalWeights(int count) {
+        float[] weights = new float[count];
+        for (int i = 0; i < count; ++i) {
+            weights[i] = 1;
+        }
+        return weights;
+    }
+
+    @Override
+    public void releaseImages(RenderTarget target) {
+        for (int i = 0; i < panes.length; ++i) {
+            paneTargets[i].setParent(target);
+            panes[i].releaseImages(paneTargets[i]);
+        }
+    }
+
+    @Override
+    public int getRequiredFeatures() {
+        int features = 0;
+        for (int i = 0; i < panes.length; ++i) {
+            features |= panes[i].getRequiredFeatures();
+        }
+        return features;
+    }
+}
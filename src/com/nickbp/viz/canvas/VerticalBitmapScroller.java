@@ -16,88 +16,193 @@
 
 package com.nickbp.viz.canvas;
 
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
+import com.nickbp.viz.render.RenderImage;
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.Tracer;
 
 /**
- * Handles a canvas that continuously shifts downwards.
+ * Handles an image that continuously shifts downwards.
  *
- * This implementation moves the active row upwards, then draws out the bitmap such that the active
+ * This implementation moves the active row upwards, then draws out the image such that the active
  * row is always on the top edge of the output. After each render, the active row is moved upwards
  * by a predefined increment.
  *
- * Callers must fill a row using {@link #drawRect(float, float, Paint)}, then render/shift the
- * result using {@link #renderAndScroll(Canvas)}. This cycle repeats indefinitely.
+ * Callers must fill a row using {@link #drawRow(int[])}, then render/shift the result using
+ * {@link #renderAndScroll(RenderTarget)}. This cycle repeats indefinitely.
  */
 public class VerticalBitmapScroller {
-    private final Bitmap bitmap;
-    private final Canvas bitmapWrapper;
+    private final RenderImage image;
     private final int offsety;
     private final int scrollDist;
+    private final int displayWidth, displayHeight;
 
     /**
-     * Marks the *right* edge of the current column.
+     * Reusable pixel buffer for the active row, the image's width wide and {@code scrollDist}
+     * tall. Lets us update the row with a single {@link RenderImage#setPixels} call.
+     */
+    private final int[] rowPixels;
+
+    /**
+     * Marks the *top* edge of the current row.
      */
     private int currentRowTopEdge = 0;
 
     /**
-     * Creates a new scroller whose display area is provided width/height, with a column size of
-     * {@code scrollDist}. This is the column width used by {@link #drawRect(float, float, Paint)},
-     * and the distance that {@link #renderAndScroll(Canvas)} shifts the active area each time it's
-     * called.
+     * Creates a new scroller whose display area is the provided {@code image}, drawn
+     * {@code offsety} pixels from the top of the output, with a row size of {@code scrollDist}.
+     * This is the row height used by {@link #drawRow(int[])}, and the distance that
+     * {@link #renderAndScroll(RenderTarget)} shifts the active area each time it's called.
+     */
+    public VerticalBitmapScroller(RenderImage image, int offsety, int scrollDist) {
+        this(image, offsety, scrollDist, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Creates a new scroller as in {@link #VerticalBitmapScroller(RenderImage, int, int)}, whose
+     * {@code image} is stretched to {@code displayWidth} x {@code displayHeight} when rendered.
+     * This allows the history to be kept at a reduced resolution.
      */
-    public VerticalBitmapScroller(int width, int height, int offsety, int scrollDist) {
+    public VerticalBitmapScroller(RenderImage image, int offsety, int scrollDist,
+            int displayWidth, int displayHeight) {
+        this.image = image;
         this.offsety = offsety;
         this.scrollDist = scrollDist;
-        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-        bitmapWrapper = new Canvas(bitmap);
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        rowPixels = new int[image.getWidth() * scrollDist];
+    }
+
+    /**
+     * Returns the image which this scroller is drawing to.
+     */
+    public RenderImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the width of the area which this scroller covers when rendered.
+     */
+    public int getDisplayWidth() {
+        return displayWidth;
+    }
+
+    /**
+     * Returns the height of the area which this scroller covers when rendered.
+     */
+    public int getDisplayHeight() {
+        return displayHeight;
     }
 
     /**
-     * Renders the current state to the provided {@link Canvas}, then shifts the active column to
-     * the right by {@code scrollDist}.
+     * Returns the offset from the top of the output where this scroller is drawn.
      */
-    public void renderAndScroll(Canvas canvas) {
+    public int getOffsetY() {
+        return offsety;
+    }
+
+    /**
+     * Replaces this scroller's content with the history currently shown by {@code previous},
+     * stretched to fit this scroller's dimensions. Allows the display to be resized without
+     * discarding the existing voiceprint.
+     */
+    public void resampleFrom(VerticalBitmapScroller previous) {
+        final RenderImage prevImage = previous.image;
+        final int prevWidth = prevImage.getWidth();
+        final int prevHeight = prevImage.getHeight();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // unroll the previous ring so that its newest data is on our top edge, then restart our
+        // own ring from the top edge.
+        int prevSeam = prevHeight - previous.currentRowTopEdge;
+        int seam = (int)((long)prevSeam * height / prevHeight);
+        image.copyScaled(prevImage, 0, previous.currentRowTopEdge, prevWidth, prevHeight,
+            0, 0, width, seam);
+        image.copyScaled(prevImage, 0, 0, prevWidth, previous.currentRowTopEdge,
+            0, seam, width, height);
+        currentRowTopEdge = 0;
+    }
+
+    /**
+     * Returns the width of the row, ie the length of the array expected by
+     * {@link #drawRow(int[])}.
+     */
+    public int getRowLength() {
+        return image.getWidth();
+    }
+
+    /**
+     * Renders the current state to the provided {@link RenderTarget}, then shifts the active row
+     * upwards by {@code scrollDist}.
+     */
+    public void renderAndScroll(RenderTarget target) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
         // first paint what's above "currentRowTopEdge" on the bottom edge of the display.
         // (this is the oldest data)
 
-        int currentSeam = bitmap.getHeight() - currentRowTopEdge + offsety;
+        int currentSeam = height - currentRowTopEdge + offsety;
 
-        // left, top, right, bottom
-        Rect bitmapBounds = new Rect(0, 0, bitmap.getWidth(), currentRowTopEdge);
-        Rect outputBounds = new Rect(0, currentSeam, bitmap.getWidth(), bitmap.getHeight() + offsety);
-        canvas.drawBitmap(bitmap, bitmapBounds, outputBounds, null);
+        Tracer.begin("VerticalBitmapScroller.renderAndScroll");
+        if (width == displayWidth && height == displayHeight) {
+            // image left, top, right, bottom -> output left, top
+            target.drawImage(image, 0, 0, width, currentRowTopEdge, 0, currentSeam);
 
-        // then paint what's below "currentRowTopEdge" on the top edge of the display.
-        // (this is the newest data)
+            // then paint what's below "currentRowTopEdge" on the top edge of the display.
+            // (this is the newest data)
 
-        bitmapBounds = new Rect(0, currentRowTopEdge, bitmap.getWidth(), bitmap.getHeight());
-        outputBounds = new Rect(0, offsety, bitmap.getWidth(), currentSeam);
-        canvas.drawBitmap(bitmap, bitmapBounds, outputBounds, null);
+            target.drawImage(image, 0, currentRowTopEdge, width, height, 0, offsety);
+        } else {
+            // same as above, except stretched to the display size
+            int displaySeam = (int)((long)(height - currentRowTopEdge) * displayHeight / height)
+                + offsety;
+            target.drawImageScaled(image, 0, 0, width, currentRowTopEdge,
+                0, displaySeam, displayWidth, offsety + displayHeight);
+            target.drawImageScaled(image, 0, currentRowTopEdge, width, height,
+                0, offsety, displayWidth, displaySeam);
+        }
+        Tracer.end();
 
         // decrement row
         currentRowTopEdge -= scrollDist;
         if (currentRowTopEdge < 0) {
-            currentRowTopEdge += bitmap.getHeight();
+            currentRowTopEdge += height;
         }
     }
 
     /**
-     * Draws a rectangle in the currently active column between {@code top} and {@code bottom},
-     * using the provided {@code paint}. The width of the column is determined by {@code scrollDist}
-     * in {@link #BitmapScroller(int, int, int)}.
+     * Fills the currently active row with the provided {@code colors}, one color per column of
+     * pixels from left to right. {@code colors} must be {@link #getRowLength()} long. The height of
+     * the row is determined by {@code scrollDist} in
+     * {@link #VerticalBitmapScroller(RenderImage, int, int)}.
+     *
+     * Rather than drawing a rectangle per color, this copies the ARGB {@code colors} into every
+     * line of a reusable buffer and writes that with {@link RenderImage#setPixels}, which
+     * converts them into whatever format backs the image.
      */
-    public void drawRect(float left, float right, Paint paint) {
+    public void drawRow(int[] colors) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (colors.length != width) {
+            throw new IllegalArgumentException(
+                "Row length=" + colors.length + " doesn't match width=" + width);
+        }
+        // Each line of the row is identical, so copy the first line into the others.
+        System.arraycopy(colors, 0, rowPixels, 0, width);
+        for (int lineStart = width; lineStart < rowPixels.length; lineStart += width) {
+            System.arraycopy(rowPixels, 0, rowPixels, lineStart, width);
+        }
+
         int bottom = currentRowTopEdge + scrollDist;
-        if (bottom > bitmapWrapper.getHeight()) {
-            // wraparound. paint both halves of the split row on the edges of the canvas.
-            // left, top, right, bottom
-            bitmapWrapper.drawRect(left, 0, right, bottom - bitmapWrapper.getHeight(), paint);
-            bitmapWrapper.drawRect(left, currentRowTopEdge, right, bitmapWrapper.getHeight(), paint);
+        if (bottom > height) {
+            // wraparound. write both halves of the split row on the edges of the image.
+            int topHalfHeight = height - currentRowTopEdge;
+            image.setPixels(rowPixels, 0, width, 0, currentRowTopEdge, width, topHalfHeight);
+            image.setPixels(rowPixels, topHalfHeight * width, width,
+                0, 0, width, bottom - height);
         } else {
-            bitmapWrapper.drawRect(left, currentRowTopEdge, right, bottom, paint);
+            image.setPixels(rowPixels, 0, width, 0, currentRowTopEdge, width, scrollDist);
         }
     }
 
@@ -106,6 +211,6 @@ public class VerticalBitmapScroller {
      * previous drawing.
      */
     public void clear(int color) {
-        bitmapWrapper.drawColor(color);
+        image.fill(color);
     }
 }
@@ -16,13 +16,11 @@
 
 package com.nickbp.viz.canvas;
 
+import com.nickbp.viz.render.RenderTarget;
 import com.nickbp.viz.util.DataBuffers;
-import com.nickbp.viz.util.DataLengths;
 import com.nickbp.viz.util.PrecalcColorUtil;
 
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
 
 public class VerticalVisualizerImpl implements CanvasVisualizerImpl {
@@ -31,62 +29,128 @@ public class VerticalVisualizerImpl implements CanvasVisualizerImpl {
     private static final float ANALYZER_HEIGHT_PCT = 0.25f;
     private static final int VOICEPRINT_PX_WIDTH = 5;
 
-    private final Paint fillPaint = new Paint();
-    private final DataLengths lengths = new DataLengths();
+    private final AnalyzerBars analyzerBars = new AnalyzerBars(true);
+
     private int analyzerHeight;
+    // (Re)created on the next render after a resize, using the render target's image type.
     private VerticalBitmapScroller voiceprintBitmapScroller;
+    // The voiceprint's row height within its image, which is less than VOICEPRINT_PX_WIDTH when
+    // the image is kept at a reduced scale.
+    private int voiceprintScrollDist;
+    // Colors for the voiceprint's next row, written to the scroller once per frame.
+    private int[] voiceprintRow;
     private int viewWidth;
-
-    public VerticalVisualizerImpl() {
-        fillPaint.setAntiAlias(false);
-        fillPaint.setStyle(Paint.Style.FILL);
-    }
+    private int viewHeight;
 
     /**
      * Given the provided new {@code data}, renders the visualization's current state onto the
-     * provided {@code canvas}.
+     * provided {@code target}.
      */
-    public void render(DataBuffers data, Canvas canvas) {
+    public void render(DataBuffers data, RenderTarget target) {
         //COORDINATE SYSTEM: 0,0 is TOP LEFT. SIZES ARE ALWAYS IN PX (no scaling/coord transforms)
 
-        fillPaint.setColor(Color.BLACK);
-        canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), fillPaint);
+        updateScroller(target);
 
+        target.fillRect(0, 0, target.getWidth(), target.getHeight(), Color.BLACK);
+
+        // the bands are perceptually even, so each gets the same width
+        float bandPxWidth = viewWidth / (float)data.bandBuffer.length;
+        float rowScale = voiceprintRow.length / (float)viewWidth;
         float left = 0;
-        float bufferPxWidth[] = lengths.getScaledLengths(data.valBuffer.length, viewWidth);
-        for (int datapt = 0; datapt < data.valBuffer.length; ++datapt) {
-            left = writePx(canvas, data, bufferPxWidth, datapt, left);
+        for (int band = 0; band < data.bandBuffer.length; ++band) {
+            left = writePx(data, bandPxWidth, rowScale, band, left);
         }
+        analyzerBars.draw(target);
+        // clear anything left over beyond the last datapoint due to rounding
+        fillRow(voiceprintRow, left * rowScale, voiceprintRow.length, Color.BLACK);
+
+        voiceprintBitmapScroller.drawRow(voiceprintRow);
+        voiceprintBitmapScroller.renderAndScroll(target);
+    }
 
-        voiceprintBitmapScroller.renderAndScroll(canvas);
+    /**
+     * Creates the voiceprint scroller on the first render, or replaces it after a resize or a
+     * change to the target's image scale. When replacing, the existing history is carried over
+     * into the new dimensions.
+     */
+    private void updateScroller(RenderTarget target) {
+        // round the scale to a whole number of pixels per row, so that the voiceprint scrolls at
+        // the same speed on screen regardless of scale
+        int scrollDist = Math.max(1, Math.round(VOICEPRINT_PX_WIDTH * target.getImageScale()));
+        VerticalBitmapScroller prevScroller = voiceprintBitmapScroller;
+        int voiceprintHeight = viewHeight - analyzerHeight;
+        if (prevScroller != null
+                && prevScroller.getDisplayWidth() == viewWidth
+                && prevScroller.getDisplayHeight() == voiceprintHeight
+                && prevScroller.getOffsetY() == analyzerHeight
+                && voiceprintScrollDist == scrollDist) {
+            return;
+        }
+        int imageWidth = Math.max(1, viewWidth * scrollDist / VOICEPRINT_PX_WIDTH);
+        int imageHeight = Math.max(1, voiceprintHeight * scrollDist / VOICEPRINT_PX_WIDTH);
+        voiceprintBitmapScroller = new VerticalBitmapScroller(
+            target.createImage(imageWidth, imageHeight), analyzerHeight, scrollDist,
+            viewWidth, voiceprintHeight);
+        voiceprintScrollDist = scrollDist;
+        voiceprintRow = new int[voiceprintBitmapScroller.getRowLength()];
+        if (prevScroller != null) {
+            voiceprintBitmapScroller.resampleFrom(prevScroller);
+            target.releaseImage(prevScroller.getImage());
+        } else {
+            voiceprintBitmapScroller.clear(Color.BLACK);
+        }
     }
 
-    private float writePx(Canvas analyzerCanvas, DataBuffers data, float bufferPxWidth[],
-            int datapt, float left) {
-        float right = left + bufferPxWidth[datapt];
+    private float writePx(DataBuffers data, float bandPxWidth, float rowScale, int band,
+            float left) {
+        float right = left + bandPxWidth;
 
-        float analyzerVal = data.timeSmoothedValBuffer[datapt];
-        fillPaint.setColor(PrecalcColorUtil.magnitudeToColor(analyzerVal));
-        analyzerCanvas.drawRect(left, analyzerHeight - (analyzerVal * analyzerHeight),
-                right, analyzerHeight, fillPaint);
+        float analyzerVal = data.timeSmoothedBandBuffer[band];
+        analyzerBars.addBar(left, analyzerHeight - (analyzerVal * analyzerHeight),
+                right, analyzerHeight, analyzerVal);
 
-        fillPaint.setColor(PrecalcColorUtil.magnitudeToColor(data.valBuffer[datapt]));
-        voiceprintBitmapScroller.drawRect(left, right, fillPaint);
+        fillRow(voiceprintRow, left * rowScale, right * rowScale,
+                PrecalcColorUtil.magnitudeToColor(data.bandBuffer[band]));
 
         // shift rightwards (to the new left):
         return right;
     }
 
+    /**
+     * Fills the pixels of {@code row} between {@code left} and {@code right} with {@code color},
+     * rounding the edges to the nearest pixel in the same way as
+     * {@link RenderTarget#fillRect(float, float, float, float, int)}.
+     */
+    private static void fillRow(int[] row, float left, float right, int color) {
+        int start = Math.max(0, Math.round(left));
+        int end = Math.min(row.length, Math.round(right));
+        for (int x = start; x < end; ++x) {
+            row[x] = color;
+        }
+    }
+
     /**
      * Notifies the visualization that the display dimensions have changed.
      * @return The data display width that should be used for future incoming data via
-     * {@link #render(DataBuffers, Canvas)}.
+     * {@link #render(DataBuffers, RenderTarget)}.
      */
     public void resize(int viewWidth, int viewHeight) {
         Log.d(TAG, "size changed: w=" + viewWidth + ", h=" + viewHeight);
         analyzerHeight = (int)(viewHeight * ANALYZER_HEIGHT_PCT);
-        voiceprintBitmapScroller = new VerticalBitmapScroller(
-            viewWidth, viewHeight - analyzerHeight, analyzerHeight, VOICEPRINT_PX_WIDTH);
         this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+    }
+
+    @Override
+    public void releaseImages(RenderTarget target) {
+        if (voiceprintBitmapScroller != null) {
+            target.releaseImage(voiceprintBitmapScroller.getImage());
+            voiceprintBitmapScroller = null;
+        }
+    }
+
+    @Override
+    public int getRequiredFeatures() {
+        return DataBuffers.FEATURE_BANDS;
     }
 }
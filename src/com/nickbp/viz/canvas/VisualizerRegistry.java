@@ -0,0 +1,111 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The set of visualizations which the user may cycle through, in the order they were registered.
+ * New {@link CanvasVisualizerImpl} types may be added via {@link #register(String, Factory)},
+ * without any changes to {@link CanvasVisualizerView}.
+ *
+ * Registration should happen before any {@link CanvasVisualizerView} is created, eg in a static
+ * initializer.
+ */
+public class VisualizerRegistry {
+    private static final List<String> names = new ArrayList<String>();
+    private static final List<CanvasVisualizerImpl.Factory> factories =
+        new ArrayList<CanvasVisualizerImpl.Factory>();
+
+    static {
+        register("horiz", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new HorizVisualizerImpl();
+            }
+        });
+        register("vertical", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new VerticalVisualizerImpl();
+            }
+        });
+        register("horiz+vertical", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new SplitVisualizerImpl(false,
+                    new HorizVisualizerImpl(), new VerticalVisualizerImpl());
+            }
+        });
+        register("horiz+chroma", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new SplitVisualizerImpl(true, new float[] { 3, 1 },
+                    new HorizVisualizerImpl(), new ChromaWheelVisualizerImpl());
+            }
+        });
+        register("horiz-percussive", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new HorizVisualizerImpl(true);
+            }
+        });
+        register("pitch", new CanvasVisualizerImpl.Factory() {
+            @Override
+            public CanvasVisualizerImpl create() {
+                return new PitchTrailVisualizerImpl();
+            }
+        });
+    }
+
+    private VisualizerRegistry() {
+    }
+
+    /**
+     * Adds a visualization with the provided unique {@code name} to the end of the list.
+     *
+     * @throws IllegalArgumentException if {@code name} is already registered
+     */
+    public static synchronized void register(String name, CanvasVisualizerImpl.Factory factory) {
+        if (names.contains(name)) {
+            throw new IllegalArgumentException("Visualizer already registered: " + name);
+        }
+        names.add(name);
+        factories.add(factory);
+    }
+
+    /**
+     * Returns the names of all registered visualizations, in registration order.
+     */
+    public static synchronized List<String> getNames() {
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Creates a new instance of the visualization registered under {@code name}.
+     *
+     * @throws IllegalArgumentException if {@code name} isn't registered
+     */
+    public static synchronized CanvasVisualizerImpl create(String name) {
+        int i = names.indexOf(name);
+        if (i < 0) {
+            throw new IllegalArgumentException("Unknown visualizer: " + name);
+        }
+        return factories.get(i).create();
+    }
+}
@@ -0,0 +1,124 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.canvas;
+
+import java.util.List;
+
+import com.nickbp.viz.render.RenderTarget;
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.Tracer;
+
+import android.util.Log;
+
+/**
+ * Holds the visualizations listed in {@link VisualizerRegistry}, and cycles between them when
+ * requested.
+ *
+ * Every visualization is kept alive and sized to the display. The current visualization and the
+ * one shown before it keep their voiceprint history, so swapping back and forth between two of
+ * them doesn't allocate anything or lose any history. Others release their images as they're
+ * left behind, so that only two visualizations' worth of images are held however many are
+ * registered.
+ *
+ * Only the analysis read by those two visualizations is requested from the audio sources, see
+ * {@link #getRequiredFeatures()}.
+ */
+class VisualizerSwapper {
+    private static final String TAG = "VisualizerSwapper";
+
+    private final String[] names;
+    private final CanvasVisualizerImpl[] vizs;
+    //TODO save default across sessions
+    private int current = 0;
+    // The visualization shown before the current one, or -1 if it has released its images.
+    private int previous = -1;
+    // Written on the render thread, read on the audio threads.
+    private volatile int requiredFeatures;
+
+    public VisualizerSwapper() {
+        List<String> registered = VisualizerRegistry.getNames();
+        names = registered.toArray(new String[registered.size()]);
+        vizs = new CanvasVisualizerImpl[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            vizs[i] = VisualizerRegistry.create(names[i]);
+        }
+        updateRequiredFeatures();
+    }
+
+    /**
+     * Returns the {@code DataBuffers.FEATURE_*} flags read by the current visualization and the
+     * one shown before it, so that the latter's analysis is still warm if the user swaps back.
+     * May be called from any thread. After a swap, the first frame drawn may have been analyzed
+     * for the previous visualizations.
+     */
+    public int getRequiredFeatures() {
+        return requiredFeatures;
+    }
+
+    public void render(DataBuffers data, RenderTarget target) {
+        // Named after the visualizer, so that each one shows up separately.
+        Tracer.begin(names[current]);
+        vizs[current].render(data, target);
+        Tracer.end();
+    }
+
+    public void updateSize(int w, int h) {
+        Log.d(TAG, "resize to w=" + w + " h=" + h);
+        // Resizing is cheap: each visualizer only rebuilds its voiceprint when next rendered.
+        for (CanvasVisualizerImpl viz : vizs) {
+            viz.resize(w, h);
+        }
+    }
+
+    /**
+     * Switches to the next visualization, releasing the images of the one shown before the
+     * current one to {@code target}.
+     */
+    public void swap(RenderTarget target) {
+        int next = (current + 1) % vizs.length;
+        if (previous >= 0 && previous != next) {
+            vizs[previous].releaseImages(target);
+        }
+        previous = (current != next) ? current : -1;
+        current = next;
+        updateRequiredFeatures();
+        Log.d(TAG, "set viz=" + names[current]
+            + " features=" + Integer.toHexString(requiredFeatures));
+    }
+
+    /**
+     * Releases the images of all but the current visualization to {@code target}, eg when the
+     * system is low on memory.
+     */
+    public void releaseInactive(RenderTarget target) {
+        for (int i = 0; i < vizs.length; ++i) {
+            if (i != current) {
+                vizs[i].releaseImages(target);
+            }
+        }
+        previous = -1;
+        updateRequiredFeatures();
+    }
+
+    private void updateRequiredFeatures() {
+        int features = vizs[current].getRequiredFeatures();
+        if (previous >= 0) {
+            features |= vizs[previous].getRequiredFeatures();
+        }
+        requiredFeatures = features;
+    }
+}
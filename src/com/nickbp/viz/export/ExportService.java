@@ -0,0 +1,124 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.export;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.nickbp.viz.canvas.VisualizerRegistry;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Renders WAV files to video in the background, one request at a time. The service isn't
+ * exported, so requests come from within the app, for example:
+ *
+ * <pre>
+ * context.startService(new Intent(context, ExportService.class)
+ *         .putExtra(ExportService.EXTRA_INPUT, "song.wav")
+ *         .putExtra(ExportService.EXTRA_FPS, 60));
+ * </pre>
+ *
+ * Relative paths are resolved against the app's external files directory, which can be reached
+ * over adb at {@code /sdcard/Android/data/com.nickbp.viz/files/} and doesn't need any storage
+ * permission from KitKat onwards. With the above, {@code song.wav} is pushed there beforehand and
+ * the video is written next to it as {@code song.y4m}.
+ */
+public class ExportService extends IntentService {
+    private static final String TAG = "ExportService";
+
+    /** Path of the WAV file to render. Required. */
+    public static final String EXTRA_INPUT = "input";
+    /**
+     * Path of the video file to write. Defaults to the input path with its extension replaced by
+     * the format's.
+     */
+    public static final String EXTRA_OUTPUT = "output";
+    /** Name of the visualization, as registered with {@link VisualizerRegistry}. */
+    public static final String EXTRA_VISUALIZER = "visualizer";
+    public static final String EXTRA_WIDTH = "width";
+    public static final String EXTRA_HEIGHT = "height";
+    public static final String EXTRA_FPS = "fps";
+    /** Either "y4m" (default) or "rgb". */
+    public static final String EXTRA_FORMAT = "format";
+
+    private static final String DEFAULT_VISUALIZER = "horiz";
+    private static final int DEFAULT_WIDTH = 1280;
+    private static final int DEFAULT_HEIGHT = 720;
+    private static final int DEFAULT_FPS = 30;
+
+    public ExportService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        String input = intent.getStringExtra(EXTRA_INPUT);
+        if (input == null) {
+            Log.e(TAG, EXTRA_INPUT + " is required");
+            return;
+        }
+        boolean rgb = "rgb".equals(intent.getStringExtra(EXTRA_FORMAT));
+        String output = intent.getStringExtra(EXTRA_OUTPUT);
+        if (output == null) {
+            int dot = input.lastIndexOf('.');
+            output = (dot > input.lastIndexOf('/') ? input.substring(0, dot) : input)
+                    + (rgb ? ".rgb" : ".y4m");
+        }
+        File inputFile = resolve(input);
+        File outputFile = resolve(output);
+        if (inputFile == null || outputFile == null) {
+            Log.e(TAG, "External storage isn't available for " + input + " -> " + output);
+            return;
+        }
+        String visualizer = intent.getStringExtra(EXTRA_VISUALIZER);
+        if (visualizer == null) {
+            visualizer = DEFAULT_VISUALIZER;
+        }
+        int format = rgb ? FrameWriter.FORMAT_RGB : FrameWriter.FORMAT_Y4M;
+
+        OfflineExporter exporter = new OfflineExporter(visualizer,
+                intent.getIntExtra(EXTRA_WIDTH, DEFAULT_WIDTH),
+                intent.getIntExtra(EXTRA_HEIGHT, DEFAULT_HEIGHT),
+                intent.getIntExtra(EXTRA_FPS, DEFAULT_FPS),
+                format);
+        try {
+            exporter.export(inputFile, outputFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Export of " + input + " failed", e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Export of " + input + " interrupted", e);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Bad export settings for " + input, e);
+        }
+    }
+
+    /**
+     * Returns {@code path} as-is if it's absolute, or else relative to the app's external files
+     * directory. Returns {@code null} if external storage isn't mounted.
+     */
+    private File resolve(String path) {
+        File file = new File(path);
+        if (file.isAbsolute()) {
+            return file;
+        }
+        File dir = getExternalFilesDir(null);
+        return (dir != null) ? new File(dir, path) : null;
+    }
+}
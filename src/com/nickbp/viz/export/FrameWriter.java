@@ -0,0 +1,239 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import android.util.Log;
+
+/**
+ * Encodes rendered ARGB frames to an output stream on a background thread. Frames are taken from
+ * a fixed pool via {@link #obtainFrame()}, so that rendering can run ahead of encoding by at most
+ * the size of the pool, without allocating a new frame each time.
+ */
+public class FrameWriter {
+    private static final String TAG = "FrameWriter";
+
+    /**
+     * Uncompressed YUV 4:2:0 in a YUV4MPEG2 container, which ffmpeg and most encoders accept
+     * directly. Width and height must be even.
+     */
+    public static final int FORMAT_Y4M = 0;
+    /**
+     * Headerless packed 8-bit RGB, eg for {@code ffmpeg -f rawvideo -pix_fmt rgb24}.
+     */
+    public static final int FORMAT_RGB = 1;
+
+    private static final int POOL_SIZE = 4;
+    // Marks the end of the frame queue, so that the writer thread knows to exit.
+    private static final int[] END_OF_FRAMES = new int[0];
+
+    private final OutputStream out;
+    private final int width, height, format;
+    private final BlockingQueue<int[]> freeFrames = new ArrayBlockingQueue<int[]>(POOL_SIZE);
+    private final BlockingQueue<int[]> filledFrames = new ArrayBlockingQueue<int[]>(POOL_SIZE + 1);
+    private final Thread writerThread;
+    private volatile IOException writeError = null;
+    private volatile boolean aborted = false;
+
+    /**
+     * Creates a writer and starts its background thread. The first bytes of the stream are
+     * written immediately.
+     *
+     * @param format one of {@link #FORMAT_Y4M} or {@link #FORMAT_RGB}
+     * @throws IllegalArgumentException if the size or format isn't supported
+     */
+    public FrameWriter(OutputStream out, int width, int height, int fps, int format) {
+        if (width <= 0 || height <= 0 || fps <= 0) {
+            throw new IllegalArgumentException(
+                    "Bad output w=" + width + " h=" + height + " fps=" + fps);
+        }
+        if (format == FORMAT_Y4M && (width % 2 != 0 || height % 2 != 0)) {
+            throw new IllegalArgumentException(
+                    "Y4M output requires even dimensions: w=" + width + " h=" + height);
+        }
+        if (format != FORMAT_Y4M && format != FORMAT_RGB) {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        this.out = new BufferedOutputStream(out, 64 * 1024);
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            freeFrames.add(new int[width * height]);
+        }
+
+        final String header = (format == FORMAT_Y4M)
+                ? "YUV4MPEG2 W" + width + " H" + height + " F" + fps + ":1 Ip A1:1 C420jpeg\n"
+                : null;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeFrames(header);
+            }
+        }, TAG);
+        writerThread.start();
+    }
+
+    /**
+     * Returns a frame buffer of {@code width * height} ARGB pixels to be filled and passed to
+     * {@link #submitFrame(int[])}, blocking until the writer has finished with one.
+     *
+     * @throws IOException if writing a previous frame failed
+     */
+    public int[] obtainFrame() throws IOException, InterruptedException {
+        checkError();
+        return freeFrames.take();
+    }
+
+    /**
+     * Queues a frame which was returned by {@link #obtainFrame()} to be written.
+     *
+     * @throws IOException if writing a previous frame failed
+     */
+    public void submitFrame(int[] frame) throws IOException, InterruptedException {
+        checkError();
+        filledFrames.put(frame);
+    }
+
+    /**
+     * Waits for all submitted frames to be written, then flushes and closes the output stream.
+     *
+     * @throws IOException if writing any frame failed
+     */
+    public void finish() throws IOException, InterruptedException {
+        filledFrames.put(END_OF_FRAMES);
+        writerThread.join();
+        checkError();
+    }
+
+    /**
+     * Discards any frames which haven't been written yet, then closes the output stream and waits
+     * for the writer thread to exit. Safe to call after {@link #finish()}, or more than once, eg
+     * from a {@code finally} block when rendering fails partway through.
+     */
+    public void abort() {
+        aborted = true;
+        // There's always room for this: at most POOL_SIZE frames are ever queued.
+        filledFrames.offer(END_OF_FRAMES);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for writer to exit", e);
+            writerThread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    private void writeFrames(String header) {
+        byte[] encoded = (format == FORMAT_Y4M)
+                ? new byte[width * height * 3 / 2]
+                : new byte[width * height * 3];
+        try {
+            try {
+                if (header != null) {
+                    out.write(header.getBytes("US-ASCII"));
+                }
+                byte[] frameHeader = "FRAME\n".getBytes("US-ASCII");
+                while (true) {
+                    int[] frame = filledFrames.take();
+                    if (frame == END_OF_FRAMES || aborted) {
+                        break;
+                    }
+                    if (format == FORMAT_Y4M) {
+                        toYuv420(frame, encoded);
+                        out.write(frameHeader);
+                    } else {
+                        toRgb(frame, encoded);
+                    }
+                    freeFrames.put(frame);
+                    out.write(encoded);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write frames", e);
+            writeError = e;
+            // Unblock the renderer if it's waiting for a free frame, so that it sees the error.
+            freeFrames.clear();
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                freeFrames.offer(new int[width * height]);
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing frames", e);
+            writeError = new IOException("Interrupted while writing frames");
+        }
+    }
+
+    private void toRgb(int[] argb, byte[] dst) {
+        for (int i = 0, o = 0; i < argb.length; ++i) {
+            int px = argb[i];
+            dst[o++] = (byte)(px >> 16);
+            dst[o++] = (byte)(px >> 8);
+            dst[o++] = (byte)px;
+        }
+    }
+
+    /**
+     * Converts {@code argb} to planar full-range BT.601 YUV, as expected by Y4M's "C420jpeg",
+     * with each chroma sample averaged over a 2x2 block of pixels. Integer math only, so that the
+     * output is identical across devices.
+     */
+    private void toYuv420(int[] argb, byte[] dst) {
+        int uOffset = width * height;
+        int vOffset = uOffset + (width / 2) * (height / 2);
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                int rSum = 0, gSum = 0, bSum = 0;
+                for (int dy = 0; dy < 2; ++dy) {
+                    int i = (y + dy) * width + x;
+                    for (int dx = 0; dx < 2; ++dx, ++i) {
+                        int px = argb[i];
+                        int r = (px >> 16) & 0xff, g = (px >> 8) & 0xff, b = px & 0xff;
+                        // Y = 0.299R + 0.587G + 0.114B, in 16.16 fixed point
+                        dst[i] = (byte)((19595 * r + 38470 * g + 7471 * b + 32768) >> 16);
+                        rSum += r;
+                        gSum += g;
+                        bSum += b;
+                    }
+                }
+                // Cb = 128 - 0.168736R - 0.331264G + 0.5B, Cr = 128 + 0.5R - 0.418688G - 0.081312B
+                // The sums are over 4 pixels, so shift by 2 more bits.
+                int c = (y / 2) * (width / 2) + (x / 2);
+                dst[uOffset + c] = (byte)clamp(
+                        ((-11059 * rSum - 21709 * gSum + 32768 * bSum + (1 << 17)) >> 18) + 128);
+                dst[vOffset + c] = (byte)clamp(
+                        ((32768 * rSum - 27439 * gSum - 5329 * bSum + (1 << 17)) >> 18) + 128);
+            }
+        }
+    }
+
+    private static int clamp(int v) {
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+}
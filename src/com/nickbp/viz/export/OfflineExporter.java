@@ -0,0 +1,167 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.nickbp.viz.canvas.CanvasVisualizerImpl;
+import com.nickbp.viz.canvas.VisualizerRegistry;
+import com.nickbp.viz.render.FramebufferRenderTarget;
+import com.nickbp.viz.util.DataBuffers;
+import com.nickbp.viz.util.FFT;
+
+import android.util.Log;
+
+/**
+ * Renders a visualization of a WAV file to a video file, one frame at a time, as fast as the
+ * device allows. The output depends only on the input file and the export settings: frame N is
+ * always analyzed from the samples starting at {@code N * sampleRate / fps}, and nothing in the
+ * analysis or rendering looks at the wall clock.
+ *
+ * Frames are analyzed and rendered in order on the calling thread, since the visualizations and
+ * the smoothing both carry history from one frame to the next. Encoding and file output run on a
+ * separate thread via {@link FrameWriter}.
+ */
+public class OfflineExporter {
+    private static final String TAG = "OfflineExporter";
+    private static final int FFT_SIZE = 1024;
+    private static final int LOG_INTERVAL_FRAMES = 300;
+
+    public interface ProgressListener {
+        /**
+         * Called after each frame has been rendered.
+         */
+        public void onProgress(int framesDone, int framesTotal);
+    }
+
+    private final String visualizerName;
+    private final int width, height, fps, format;
+    private ProgressListener progressListener = null;
+
+    /**
+     * @param visualizerName a name registered with {@link VisualizerRegistry}
+     * @param format one of the {@link FrameWriter} formats
+     */
+    public OfflineExporter(String visualizerName, int width, int height, int fps, int format) {
+        this.visualizerName = visualizerName;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.format = format;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.progressListener = listener;
+    }
+
+    /**
+     * Renders {@code wavFile} to {@code outFile}, returning the number of frames written.
+     *
+     * @throws IOException if the input can't be read or the output can't be written
+     */
+    public int export(File wavFile, File outFile) throws IOException, InterruptedException {
+        FileInputStream in = new FileInputStream(wavFile);
+        WavReader wav = null;
+        try {
+            wav = new WavReader(in);
+        } finally {
+            if (wav == null) {
+                // The header was bad, so nothing else will close the file.
+                in.close();
+            }
+        }
+        try {
+            int sampleRateHz = wav.getSampleRateHz();
+            int frameCount = (int)((wav.getSampleCount() * fps + sampleRateHz - 1) / sampleRateHz);
+            Log.d(TAG, "Exporting " + frameCount + " frames of " + visualizerName + " from "
+                    + wavFile + " (" + sampleRateHz + "Hz) to " + outFile);
+
+            CanvasVisualizerImpl visualizer = VisualizerRegistry.create(visualizerName);
+            visualizer.resize(width, height);
+
+            DataBuffers data = new DataBuffers(FFT_SIZE);
+            data.setFeatures(visualizer.getRequiredFeatures());
+            data.setSampleRateHz(sampleRateHz);
+            data.setFrameRateHz(fps);
+            FramebufferRenderTarget target = new FramebufferRenderTarget(width, height);
+
+            FFT fft = new FFT(FFT_SIZE);
+            short[] window = new short[FFT_SIZE];
+            byte[] fftData = new byte[FFT_SIZE];
+            // Sample position of window[0] in the file
+            long windowPos = 0;
+            int windowFilled = wav.read(window, 0, FFT_SIZE);
+
+            FileOutputStream out = new FileOutputStream(outFile);
+            FrameWriter writer = null;
+            try {
+                writer = new FrameWriter(out, width, height, fps, format);
+            } finally {
+                if (writer == null) {
+                    out.close();
+                }
+            }
+            long startMs = System.currentTimeMillis();
+            try {
+                for (int frame = 0; frame < frameCount; ++frame) {
+                    // Slide the window forward to this frame's start, reusing the overlap.
+                    long framePos = (long)frame * sampleRateHz / fps;
+                    int advance = (int)Math.min(framePos - windowPos, FFT_SIZE);
+                    wav.skip(framePos - windowPos - advance);
+                    int keep = Math.max(0, windowFilled - advance);
+                    System.arraycopy(window, advance, window, 0, keep);
+                    windowFilled = keep + wav.read(window, keep, FFT_SIZE - keep);
+                    // Past the end of the file, the window trails off into silence.
+                    Arrays.fill(window, windowFilled, FFT_SIZE, (short)0);
+                    windowPos = framePos;
+
+                    fft.forward(window);
+                    fft.toVisualizerFormat(fftData);
+                    data.updateData(fftData);
+                    visualizer.render(data, target);
+
+                    int[] pixels = writer.obtainFrame();
+                    System.arraycopy(target.pixels, 0, pixels, 0, pixels.length);
+                    writer.submitFrame(pixels);
+
+                    if (progressListener != null) {
+                        progressListener.onProgress(frame + 1, frameCount);
+                    }
+                    if ((frame + 1) % LOG_INTERVAL_FRAMES == 0) {
+                        long elapsedMs = Math.max(1, System.currentTimeMillis() - startMs);
+                        Log.d(TAG, (frame + 1) + "/" + frameCount + " frames, "
+                                + ((frame + 1) * 1000 / elapsedMs) + " fps");
+                    }
+                }
+                writer.finish();
+            } finally {
+                // Without this, a failure partway through would leave the writer thread blocked
+                // waiting for more frames and the output file open. No-op after finish().
+                writer.abort();
+            }
+            Log.d(TAG, "Exported " + frameCount + " frames in "
+                    + (System.currentTimeMillis() - startMs) + "ms");
+            return frameCount;
+        } finally {
+            wav.close();
+        }
+    }
+}
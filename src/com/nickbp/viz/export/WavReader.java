@@ -0,0 +1,191 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.export;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams PCM samples out of a RIFF WAV file, mixed down to mono 16-bit samples. Supports 8-bit
+ * and 16-bit integer PCM with any number of channels.
+ */
+public class WavReader {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final InputStream in;
+    private final int sampleRateHz;
+    private final int channels;
+    private final int bytesPerSample;
+    private final long frameCount;
+    private long framesRead = 0;
+    private final byte[] frameBytes;
+
+    /**
+     * Reads the WAV header from {@code in}, leaving the stream positioned at the start of the
+     * sample data.
+     *
+     * @throws IOException if the header is malformed or describes an unsupported format
+     */
+    public WavReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in);
+        if (readTag() != tag("RIFF")) {
+            throw new IOException("Not a RIFF file");
+        }
+        readLE(4);// RIFF size
+        if (readTag() != tag("WAVE")) {
+            throw new IOException("Not a WAVE file");
+        }
+
+        int format = -1, channels = 0, sampleRateHz = 0, bitsPerSample = 0;
+        while (true) {
+            int chunkTag = readTag();
+            long chunkSize = readLE(4) & 0xffffffffL;
+            if (chunkTag == tag("fmt ")) {
+                format = (int)readLE(2);
+                channels = (int)readLE(2);
+                sampleRateHz = (int)readLE(4);
+                readLE(4);// byte rate
+                readLE(2);// block align
+                bitsPerSample = (int)readLE(2);
+                skipFully(chunkSize - 16 + (chunkSize & 1));
+            } else if (chunkTag == tag("data")) {
+                if (format != FORMAT_PCM && format != FORMAT_EXTENSIBLE) {
+                    throw new IOException("Unsupported WAV format: " + format);
+                }
+                if (bitsPerSample != 8 && bitsPerSample != 16) {
+                    throw new IOException("Unsupported bits per sample: " + bitsPerSample);
+                }
+                if (channels < 1 || sampleRateHz < 1) {
+                    throw new IOException("Bad channels=" + channels + " rate=" + sampleRateHz);
+                }
+                this.channels = channels;
+                this.sampleRateHz = sampleRateHz;
+                this.bytesPerSample = bitsPerSample / 8;
+                this.frameCount = chunkSize / (channels * bytesPerSample);
+                this.frameBytes = new byte[channels * bytesPerSample];
+                return;
+            } else {
+                skipFully(chunkSize + (chunkSize & 1));
+            }
+        }
+    }
+
+    /**
+     * Returns the sample rate of the file, in Hz.
+     */
+    public int getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    /**
+     * Returns the total number of (mono) samples in the file.
+     */
+    public long getSampleCount() {
+        return frameCount;
+    }
+
+    /**
+     * Reads up to {@code count} mono samples into {@code buf} at {@code offset}. Returns the number
+     * of samples read, which is only less than {@code count} at the end of the file.
+     */
+    public int read(short[] buf, int offset, int count) throws IOException {
+        int read = 0;
+        while (read < count && framesRead < frameCount) {
+            readFully(frameBytes);
+            int sum = 0;
+            for (int c = 0; c < channels; ++c) {
+                if (bytesPerSample == 1) {
+                    // 8-bit WAV is unsigned
+                    sum += ((frameBytes[c] & 0xff) - 128) << 8;
+                } else {
+                    sum += (frameBytes[c * 2] & 0xff) | (frameBytes[c * 2 + 1] << 8);
+                }
+            }
+            buf[offset + read] = (short)(sum / channels);
+            ++read;
+            ++framesRead;
+        }
+        return read;
+    }
+
+    /**
+     * Skips up to {@code count} mono samples, returning the number skipped.
+     */
+    public long skip(long count) throws IOException {
+        long skip = Math.min(count, frameCount - framesRead);
+        skipFully(skip * frameBytes.length);
+        framesRead += skip;
+        return skip;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static int tag(String s) {
+        return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+    }
+
+    private int readTag() throws IOException {
+        int tag = 0;
+        for (int i = 0; i < 4; ++i) {
+            tag = (tag << 8) | readByte();
+        }
+        return tag;
+    }
+
+    private long readLE(int bytes) throws IOException {
+        long val = 0;
+        for (int i = 0; i < bytes; ++i) {
+            val |= (long)readByte() << (8 * i);
+        }
+        return val;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of WAV file");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of WAV data");
+            }
+            off += n;
+        }
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                readByte();
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+}
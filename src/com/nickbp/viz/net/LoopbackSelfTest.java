@@ -0,0 +1,87 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.nickbp.viz.util.DataBuffers;
+
+import android.util.Log;
+
+/**
+ * Checks broadcasting end to end over loopback: a {@link SpectrumBroadcaster} sends synthetic
+ * frames to a {@link SpectrumReceiver} in the same process, and the frame rate, latency and loss
+ * seen by the receiver are reported. Nothing is sent off of the device.
+ */
+public class LoopbackSelfTest {
+    private static final String TAG = "LoopbackSelfTest";
+    private static final String LOOPBACK_HOST = "127.0.0.1";
+    private static final int FFT_SIZE = 1024;
+    // How long to wait for the last frames to arrive after sending.
+    private static final int SETTLE_MS = 200;
+
+    private LoopbackSelfTest() {
+    }
+
+    /**
+     * Sends {@code frames} frames at {@code rateHz} over loopback to {@code port}, using
+     * {@code transport} as in {@link SpectrumBroadcaster#SpectrumBroadcaster(String, int, int)},
+     * and returns a summary of what was received. Blocks until done, so shouldn't be called from
+     * the UI thread.
+     *
+     * @throws IOException if the receiver couldn't listen on {@code port}
+     */
+    public static String run(int port, int transport, int frames, int rateHz)
+            throws IOException, InterruptedException {
+        SpectrumReceiver receiver = new SpectrumReceiver(port, new SpectrumReceiver.Listener() {
+            @Override
+            public void onFrame(SpectrumFrame frame) {
+                // only the receiver's statistics are of interest
+            }
+        });
+        receiver.start();
+        SpectrumBroadcaster broadcaster = new SpectrumBroadcaster(LOOPBACK_HOST, port, transport);
+        broadcaster.start();
+        try {
+            DataBuffers data = new DataBuffers(FFT_SIZE);
+            data.setFeatures(SpectrumBroadcaster.REQUIRED_FEATURES);
+            data.setFrameRateHz(rateHz);
+            // a fixed seed, so that runs are comparable
+            Random random = new Random(0);
+            byte[] fft = new byte[FFT_SIZE];
+            long intervalMs = 1000 / rateHz;
+            for (int i = 0; i < frames; ++i) {
+                random.nextBytes(fft);
+                data.updateData(fft);
+                broadcaster.onReceive(data, true);
+                Thread.sleep(intervalMs);
+            }
+            Thread.sleep(SETTLE_MS);
+        } finally {
+            broadcaster.stop();
+            receiver.stop();
+        }
+        String summary = ((transport == SpectrumBroadcaster.TRANSPORT_TCP) ? "TCP" : "UDP")
+            + ": sent=" + frames + " received=" + receiver.getFramesReceived()
+            + " lost=" + receiver.getLostFrames()
+            + " fps=" + receiver.getFramesPerSecond()
+            + " meanLatencyMs=" + receiver.getMeanLatencyMs();
+        Log.i(TAG, summary);
+        return summary;
+    }
+}
@@ -0,0 +1,404 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A pipeline sink which publishes each frame to another device or process, in the format
+ * described by {@link SpectrumProtocol}, for driving secondary displays or lighting.
+ *
+ * Frames are sent over UDP, which may be unicast, broadcast, or loopback depending on the host.
+ * If UDP fails, or if TCP was requested, frames are instead sent over a TCP connection to the same
+ * host and port, as accepted by {@link SpectrumReceiver}.
+ *
+ * Sending happens on a dedicated thread. {@link #onReceive(DataBuffers, boolean)} only quantizes
+ * the frame into a small preallocated queue, and never waits on the network. If the sender falls
+ * behind, queued frames are batched into shared packets, and if the queue fills, the oldest
+ * queued frames are dropped.
+ */
+public class SpectrumBroadcaster implements DataBufferListener {
+    private static final String TAG = "SpectrumBroadcaster";
+
+    public static final int TRANSPORT_UDP = 0;
+    public static final int TRANSPORT_TCP = 1;
+
+    /**
+     * The {@code DataBuffers.FEATURE_*} flags which are read by the broadcaster.
+     */
+    public static final int REQUIRED_FEATURES =
+        DataBuffers.FEATURE_BANDS | DataBuffers.FEATURE_RHYTHM | DataBuffers.FEATURE_LEVELS;
+
+    // Number of frames which may be waiting to be sent.
+    private static final int QUEUE_SIZE = 8;
+    // Maximum number of messages between keyframes, so that receivers can recover from loss.
+    private static final int KEYFRAME_INTERVAL = 32;
+    // Band changes of this many quantization steps or fewer are left out of deltas.
+    private static final int DELTA_DEADBAND = 1;
+    // How long to wait before reconnecting after a failure.
+    private static final int RETRY_DELAY_MS = 2000;
+    private static final int TCP_CONNECT_TIMEOUT_MS = 1000;
+    // Space reserved at the start of the packet buffer for the TCP record length.
+    private static final int TCP_PREFIX_SIZE = 2;
+
+    private final String host;
+    private final int port;
+    private final int transport;
+
+    /**
+     * A frame which has been quantized for sending.
+     */
+    private static class PendingFrame {
+        private final byte[] bands = new byte[SpectrumProtocol.MAX_BANDS];
+        private int bandCount;
+        private int flags;
+        private int timestampMs;
+        private int tempoTenths;
+        private int beatPhase, rmsLevel, peakLevel;
+    }
+
+    /**
+     * Guards the queue and {@link #running}. Only held while copying frames in or out.
+     */
+    private final Object queueLock = new Object();
+    // A ring of queued frames, and the sender's batch of frames taken from the ring. Slots are
+    // exchanged between the two rather than copied.
+    private final PendingFrame[] queue = new PendingFrame[QUEUE_SIZE];
+    private final PendingFrame[] batch = new PendingFrame[QUEUE_SIZE];
+    private int queueStart = 0, queueCount = 0;
+    private int droppedFrames = 0;
+    private boolean running = false;
+    private Thread senderThread;
+
+    // Sender thread state.
+    private final byte[] packet = new byte[TCP_PREFIX_SIZE + SpectrumProtocol.MAX_PACKET_SIZE];
+    private final DatagramPacket datagram = new DatagramPacket(packet, 0);
+    private final int[] lastSentBands = new int[SpectrumProtocol.MAX_BANDS];
+    private int lastSentBandCount = -1;
+    private int sequence = 0;
+    private int messagesSinceKeyframe = 0;
+    private boolean useTcp;
+    private long retryAtMs = 0;
+    private volatile DatagramSocket udpSocket;
+    private volatile Socket tcpSocket;
+    private volatile OutputStream tcpOut;
+
+    /**
+     * Creates a broadcaster which sends to the provided {@code host} and {@code port}, using either
+     * {@link #TRANSPORT_UDP} (with TCP as a fallback) or {@link #TRANSPORT_TCP}.
+     */
+    public SpectrumBroadcaster(String host, int port, int transport) {
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+        for (int i = 0; i < QUEUE_SIZE; ++i) {
+            queue[i] = new PendingFrame();
+            batch[i] = new PendingFrame();
+        }
+    }
+
+    /**
+     * Starts the sender thread, or does nothing if it's already started.
+     */
+    public void start() {
+        synchronized (queueLock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            queueCount = 0;
+        }
+        useTcp = (transport == TRANSPORT_TCP);
+        retryAtMs = 0;
+        senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, TAG);
+        senderThread.start();
+    }
+
+    /**
+     * Stops the sender thread and waits for it to exit, or does nothing if it's already stopped.
+     */
+    public void stop() {
+        synchronized (queueLock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            queueLock.notify();
+        }
+        // Unblock any in-progress send.
+        closeTransport();
+        try {
+            senderThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        senderThread = null;
+    }
+
+    /**
+     * Queues the provided frame for sending. Never blocks on the network.
+     */
+    @Override
+    public void onReceive(DataBuffers data, boolean otherThread) {
+        synchronized (queueLock) {
+            if (!running) {
+                return;
+            }
+            if (queueCount == QUEUE_SIZE) {
+                // The sender has fallen far behind: drop the oldest frame.
+                queueStart = (queueStart + 1) % QUEUE_SIZE;
+                --queueCount;
+                ++droppedFrames;
+            }
+            PendingFrame frame = queue[(queueStart + queueCount) % QUEUE_SIZE];
+            int bandCount = Math.min(SpectrumProtocol.MAX_BANDS, data.bandBuffer.length);
+            for (int i = 0; i < bandCount; ++i) {
+                frame.bands[i] = (byte)SpectrumProtocol.quantize(data.bandBuffer[i]);
+            }
+            frame.bandCount = bandCount;
+            frame.flags = data.onset ? SpectrumProtocol.FLAG_ONSET : 0;
+            frame.timestampMs = (int)System.currentTimeMillis();
+            frame.tempoTenths = Math.min(0xffff, Math.round(data.tempoBpm * 10));
+            frame.beatPhase = SpectrumProtocol.quantize(data.beatPhase);
+            frame.rmsLevel = SpectrumProtocol.quantize(data.rmsLevel);
+            frame.peakLevel = SpectrumProtocol.quantize(data.peakLevel);
+            ++queueCount;
+            queueLock.notify();
+        }
+    }
+
+    private void runSender() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Log.d(TAG, "Sending to " + host + ":" + port + (useTcp ? " over TCP" : " over UDP"));
+        int lastDropped = 0;
+        while (true) {
+            int count;
+            synchronized (queueLock) {
+                while (running && queueCount == 0) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+                count = queueCount;
+                for (int i = 0; i < count; ++i) {
+                    int slot = (queueStart + i) % QUEUE_SIZE;
+                    PendingFrame tmp = batch[i];
+                    batch[i] = queue[slot];
+                    queue[slot] = tmp;
+                }
+                queueStart = 0;
+                queueCount = 0;
+                if (droppedFrames != lastDropped) {
+                    Log.w(TAG, "Dropped " + (droppedFrames - lastDropped) + " frames");
+                    lastDropped = droppedFrames;
+                }
+            }
+
+            if (!ensureTransport()) {
+                continue;
+            }
+            int len = 0;
+            for (int i = 0; i < count; ++i) {
+                if (len + SpectrumProtocol.maxMessageSize(batch[i].bandCount)
+                        > SpectrumProtocol.MAX_PACKET_SIZE) {
+                    send(len);
+                    len = 0;
+                }
+                len = encode(batch[i], len);
+            }
+            if (len > 0) {
+                send(len);
+            }
+        }
+        closeTransport();
+        Log.d(TAG, "Sender exiting");
+    }
+
+    /**
+     * Encodes {@code frame} into {@link #packet} at offset {@code len} (after the TCP prefix), and
+     * returns the new length.
+     */
+    private int encode(PendingFrame frame, int len) {
+        int bandCount = frame.bandCount;
+        int changes = 0;
+        if (bandCount == lastSentBandCount) {
+            for (int i = 0; i < bandCount; ++i) {
+                if (Math.abs((frame.bands[i] & 0xff) - lastSentBands[i]) > DELTA_DEADBAND) {
+                    ++changes;
+                }
+            }
+        }
+        boolean keyframe = bandCount != lastSentBandCount
+            || messagesSinceKeyframe >= KEYFRAME_INTERVAL
+            // a delta entry is twice the size of a keyframe entry
+            || changes * 2 >= bandCount;
+
+        int offset = TCP_PREFIX_SIZE + len;
+        packet[offset] = (byte)SpectrumProtocol.MAGIC;
+        packet[offset + 1] = (byte)SpectrumProtocol.VERSION;
+        packet[offset + 2] = (byte)(keyframe
+            ? SpectrumProtocol.TYPE_KEYFRAME : SpectrumProtocol.TYPE_DELTA);
+        packet[offset + 3] = (byte)frame.flags;
+        SpectrumProtocol.putInt(packet, offset + 4, sequence++);
+        SpectrumProtocol.putInt(packet, offset + 8, frame.timestampMs);
+        SpectrumProtocol.putShort(packet, offset + 12, frame.tempoTenths);
+        packet[offset + 14] = (byte)frame.beatPhase;
+        packet[offset + 15] = (byte)frame.rmsLevel;
+        packet[offset + 16] = (byte)frame.peakLevel;
+        packet[offset + 17] = (byte)bandCount;
+        offset += SpectrumProtocol.HEADER_SIZE;
+
+        if (keyframe) {
+            for (int i = 0; i < bandCount; ++i) {
+                int val = frame.bands[i] & 0xff;
+                packet[offset++] = (byte)val;
+                lastSentBands[i] = val;
+            }
+            lastSentBandCount = bandCount;
+            messagesSinceKeyframe = 0;
+        } else {
+            packet[offset++] = (byte)changes;
+            for (int i = 0; i < bandCount; ++i) {
+                int val = frame.bands[i] & 0xff;
+                if (Math.abs(val - lastSentBands[i]) > DELTA_DEADBAND) {
+                    packet[offset++] = (byte)i;
+                    packet[offset++] = (byte)val;
+                    lastSentBands[i] = val;
+                }
+            }
+            ++messagesSinceKeyframe;
+        }
+        return offset - TCP_PREFIX_SIZE;
+    }
+
+    /**
+     * Sends the first {@code len} bytes after the TCP prefix of {@link #packet}.
+     */
+    private void send(int len) {
+        // The transport may be closed at any time by stop().
+        OutputStream out = tcpOut;
+        DatagramSocket udp = udpSocket;
+        try {
+            if (useTcp && out != null) {
+                SpectrumProtocol.putShort(packet, 0, len);
+                out.write(packet, 0, TCP_PREFIX_SIZE + len);
+            } else if (!useTcp && udp != null) {
+                datagram.setData(packet, TCP_PREFIX_SIZE, len);
+                udp.send(datagram);
+            }
+        } catch (IOException e) {
+            synchronized (queueLock) {
+                if (!running) {
+                    // closed by stop()
+                    return;
+                }
+            }
+            onTransportFailed(e);
+        }
+    }
+
+    /**
+     * Opens the current transport if it isn't already open. Returns whether it's ready to send.
+     */
+    private boolean ensureTransport() {
+        if ((useTcp ? tcpSocket : udpSocket) != null) {
+            return true;
+        }
+        if (SystemClock.elapsedRealtime() < retryAtMs) {
+            return false;
+        }
+        try {
+            if (useTcp) {
+                Socket socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), TCP_CONNECT_TIMEOUT_MS);
+                tcpOut = socket.getOutputStream();
+                tcpSocket = socket;
+            } else {
+                DatagramSocket socket = new DatagramSocket();
+                socket.setBroadcast(true);
+                datagram.setAddress(InetAddress.getByName(host));
+                datagram.setPort(port);
+                udpSocket = socket;
+            }
+        } catch (IOException e) {
+            onTransportFailed(e);
+            return false;
+        }
+        // Receivers need a fresh keyframe on a new connection.
+        lastSentBandCount = -1;
+        return true;
+    }
+
+    /**
+     * Closes the failed transport. A failed UDP transport falls back to TCP immediately, while a
+     * failed TCP transport is retried after a delay, starting again with the requested transport.
+     */
+    private void onTransportFailed(IOException e) {
+        Log.w(TAG, "Sending to " + host + ":" + port + (useTcp ? " over TCP" : " over UDP")
+            + " failed", e);
+        closeTransport();
+        lastSentBandCount = -1;
+        if (!useTcp) {
+            useTcp = true;
+        } else {
+            useTcp = (transport == TRANSPORT_TCP);
+            retryAtMs = SystemClock.elapsedRealtime() + RETRY_DELAY_MS;
+        }
+    }
+
+    private void closeTransport() {
+        DatagramSocket udp = udpSocket;
+        if (udp != null) {
+            udp.close();
+            udpSocket = null;
+        }
+        Socket tcp = tcpSocket;
+        if (tcp != null) {
+            try {
+                tcp.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            tcpSocket = null;
+            tcpOut = null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+/**
+ * Reassembles {@link SpectrumFrame}s from a single stream of {@link SpectrumProtocol} messages,
+ * tracking sequence numbers so that deltas are only applied on top of the frame they follow.
+ */
+class SpectrumDecoder {
+    private final SpectrumFrame frame = new SpectrumFrame();
+    private boolean synced = false;
+    private boolean started = false;
+    private int expectedSequence = 0;
+    private int lostFrames = 0;
+
+    /**
+     * Decodes all messages in {@code buf} between {@code offset} and {@code offset + len}, passing
+     * each complete frame to {@code listener}. Deltas which don't follow the previous message are
+     * skipped until the next keyframe.
+     *
+     * @throws IllegalArgumentException if the data is malformed or from an unsupported version
+     */
+    public void decode(byte[] buf, int offset, int len, SpectrumReceiver.Listener listener) {
+        int end = offset + len;
+        while (offset < end) {
+            if (end - offset < SpectrumProtocol.HEADER_SIZE) {
+                throw new IllegalArgumentException("Truncated header");
+            }
+            if ((buf[offset] & 0xff) != SpectrumProtocol.MAGIC) {
+                throw new IllegalArgumentException("Bad magic: " + (buf[offset] & 0xff));
+            }
+            if ((buf[offset + 1] & 0xff) != SpectrumProtocol.VERSION) {
+                throw new IllegalArgumentException(
+                    "Unsupported version: " + (buf[offset + 1] & 0xff));
+            }
+            int type = buf[offset + 2] & 0xff;
+            int flags = buf[offset + 3] & 0xff;
+            int sequence = SpectrumProtocol.getInt(buf, offset + 4);
+            int bandCount = buf[offset + 17] & 0xff;
+            int payload = offset + SpectrumProtocol.HEADER_SIZE;
+
+            boolean gap = started && sequence != expectedSequence;
+            if (gap && sequence - expectedSequence > 0) {
+                lostFrames += sequence - expectedSequence;
+            }
+            started = true;
+            expectedSequence = sequence + 1;
+
+            int next;
+            boolean apply;
+            if (type == SpectrumProtocol.TYPE_KEYFRAME) {
+                next = payload + bandCount;
+                checkLength(next, end);
+                for (int i = 0; i < bandCount; ++i) {
+                    frame.bands[i] = SpectrumProtocol.dequantize(buf[payload + i]);
+                }
+                synced = true;
+                apply = true;
+            } else if (type == SpectrumProtocol.TYPE_DELTA) {
+                checkLength(payload + 1, end);
+                int changes = buf[payload] & 0xff;
+                next = payload + 1 + changes * 2;
+                checkLength(next, end);
+                if (synced && !gap && bandCount == frame.bandCount) {
+                    for (int i = payload + 1; i < next; i += 2) {
+                        int band = buf[i] & 0xff;
+                        if (band >= bandCount) {
+                            throw new IllegalArgumentException("Bad band index: " + band);
+                        }
+                        frame.bands[band] = SpectrumProtocol.dequantize(buf[i + 1]);
+                    }
+                    apply = true;
+                } else {
+                    // Missed the frame which this delta applies to: wait for the next keyframe.
+                    synced = false;
+                    apply = false;
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown message type: " + type);
+            }
+
+            if (apply) {
+                frame.sequence = sequence;
+                frame.timestampMs = SpectrumProtocol.getInt(buf, offset + 8);
+                frame.onset = (flags & SpectrumProtocol.FLAG_ONSET) != 0;
+                frame.tempoBpm = SpectrumProtocol.getShort(buf, offset + 12) / 10f;
+                frame.beatPhase = SpectrumProtocol.dequantize(buf[offset + 14]);
+                frame.rmsLevel = SpectrumProtocol.dequantize(buf[offset + 15]);
+                frame.peakLevel = SpectrumProtocol.dequantize(buf[offset + 16]);
+                frame.bandCount = bandCount;
+                listener.onFrame(frame);
+            }
+            offset = next;
+        }
+    }
+
+    /**
+     * Returns the number of messages which never arrived, according to gaps in the sequence
+     * numbers.
+     */
+    public int getLostFrames() {
+        return lostFrames;
+    }
+
+    private static void checkLength(int needed, int end) {
+        if (needed > end) {
+            throw new IllegalArgumentException("Truncated message");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+/**
+ * A decoded frame, as passed to {@link SpectrumReceiver.Listener}s.
+ */
+public class SpectrumFrame {
+    /** Sequence number of the message which produced this frame. */
+    public int sequence;
+    /** Sender wall clock time in milliseconds, truncated to 32 bits. */
+    public int timestampMs;
+    /** Whether an onset was detected in this frame. */
+    public boolean onset;
+    /** Estimated tempo in BPM, or zero if unknown. */
+    public float tempoBpm;
+    /** Position within the current beat, from 0.0f up to 1.0f. */
+    public float beatPhase;
+    /** RMS level, from 0.0f to 1.0f. */
+    public float rmsLevel;
+    /** Peak level, from 0.0f to 1.0f. */
+    public float peakLevel;
+    /** Number of valid values in {@link #bands}. */
+    public int bandCount;
+    /** Band values from lowest frequency to highest, each from 0.0f to 1.0f. */
+    public final float[] bands = new float[SpectrumProtocol.MAX_BANDS];
+}
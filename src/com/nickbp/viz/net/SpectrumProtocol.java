@@ -0,0 +1,111 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+/**
+ * The wire format used by {@link SpectrumBroadcaster} and {@link SpectrumReceiver}.
+ *
+ * Each UDP datagram, or each length-prefixed TCP record, holds one or more messages back to back.
+ * All multi-byte values are big-endian. Each message is:
+ *
+ * <pre>
+ * offset size  field
+ * 0      1     magic ({@link #MAGIC})
+ * 1      1     version ({@link #VERSION})
+ * 2      1     type ({@link #TYPE_KEYFRAME} or {@link #TYPE_DELTA})
+ * 3      1     flags ({@link #FLAG_ONSET})
+ * 4      4     sequence number, incremented by one for each message
+ * 8      4     sender wall clock time in milliseconds, truncated to 32 bits
+ * 12     2     tempo in tenths of a BPM, or zero if unknown
+ * 14     1     beat phase, quantized from [0, 1) to [0, 255]
+ * 15     1     RMS level, quantized from [0, 1] to [0, 255]
+ * 16     1     peak level, quantized from [0, 1] to [0, 255]
+ * 17     1     band count N
+ * 18     ...   keyframe: N band values, each quantized from [0, 1] to [0, 255]
+ *              delta: change count C, then C pairs of (band index, new band value)
+ * </pre>
+ *
+ * A delta only applies on top of the message with the immediately preceding sequence number. A
+ * receiver which misses a message must wait for the next keyframe, which are sent periodically.
+ */
+public class SpectrumProtocol {
+    public static final int MAGIC = 0x56;// 'V'
+    public static final int VERSION = 1;
+
+    public static final int TYPE_KEYFRAME = 0;
+    public static final int TYPE_DELTA = 1;
+
+    public static final int FLAG_ONSET = 1 << 0;
+
+    public static final int HEADER_SIZE = 18;
+    /** Band values are sent in a single byte each, as are band indexes in deltas. */
+    public static final int MAX_BANDS = 255;
+    /** Default port for both UDP and TCP. */
+    public static final int DEFAULT_PORT = 47800;
+    /** Largest datagram or TCP record, chosen to fit in a single unfragmented UDP packet. */
+    public static final int MAX_PACKET_SIZE = 1400;
+
+    private SpectrumProtocol() {
+    }
+
+    /**
+     * Returns the largest possible size of a single message with {@code bandCount} bands.
+     */
+    public static int maxMessageSize(int bandCount) {
+        return HEADER_SIZE + 1 + bandCount * 2;
+    }
+
+    /**
+     * Quantizes a value from 0.0f to 1.0f into an unsigned byte value from 0 to 255.
+     */
+    public static int quantize(float val) {
+        if (val <= 0) {
+            return 0;
+        } else if (val >= 1) {
+            return 255;
+        }
+        return Math.round(val * 255);
+    }
+
+    /**
+     * Reverses {@link #quantize(float)}.
+     */
+    public static float dequantize(int val) {
+        return (val & 0xff) / 255f;
+    }
+
+    static void putShort(byte[] buf, int offset, int val) {
+        buf[offset] = (byte)(val >> 8);
+        buf[offset + 1] = (byte)val;
+    }
+
+    static void putInt(byte[] buf, int offset, int val) {
+        buf[offset] = (byte)(val >> 24);
+        buf[offset + 1] = (byte)(val >> 16);
+        buf[offset + 2] = (byte)(val >> 8);
+        buf[offset + 3] = (byte)val;
+    }
+
+    static int getShort(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff);
+    }
+
+    static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+            | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+}
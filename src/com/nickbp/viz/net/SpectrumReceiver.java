@@ -0,0 +1,250 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Receives frames sent by a {@link SpectrumBroadcaster}, over both UDP and TCP on the same port.
+ *
+ * This only depends on the standard Java library, so it may be used from non-Android programs
+ * which drive secondary displays or lighting. Frames from each transport are decoded on their own
+ * thread, but listener calls are serialized.
+ */
+public class SpectrumReceiver {
+    /**
+     * Accepts decoded frames.
+     */
+    public interface Listener {
+        /**
+         * Accepts a decoded frame. The {@code frame} instance is reused for later frames, so any
+         * values which are needed after this call returns must be copied.
+         */
+        public void onFrame(SpectrumFrame frame);
+    }
+
+    private final int port;
+    private final Listener listener;
+    private final Object listenerLock = new Object();
+
+    private volatile boolean running = false;
+    private DatagramSocket udpSocket;
+    private ServerSocket tcpServer;
+    private volatile Socket tcpClient;
+    private Thread udpThread, tcpThread;
+
+    // Statistics, guarded by listenerLock.
+    private long framesReceived = 0;
+    private long totalLatencyMs = 0;
+    private int lostFrames = 0;
+    private long statsStartMs;
+
+    /**
+     * Creates a receiver which listens on the provided {@code port}, and passes frames to
+     * {@code listener}.
+     */
+    public SpectrumReceiver(int port, Listener listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening for frames.
+     *
+     * @throws IOException if the port couldn't be opened for UDP or TCP
+     */
+    public void start() throws IOException {
+        udpSocket = new DatagramSocket(port);
+        try {
+            tcpServer = new ServerSocket(port);
+        } catch (IOException e) {
+            udpSocket.close();
+            throw e;
+        }
+        running = true;
+        statsStartMs = System.currentTimeMillis();
+        udpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runUdp();
+            }
+        }, "SpectrumReceiver-UDP");
+        tcpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTcp();
+            }
+        }, "SpectrumReceiver-TCP");
+        udpThread.start();
+        tcpThread.start();
+    }
+
+    /**
+     * Stops listening and waits for the receiving threads to exit.
+     */
+    public void stop() {
+        running = false;
+        udpSocket.close();
+        closeQuietly(tcpServer);
+        closeQuietly(tcpClient);
+        try {
+            udpThread.join();
+            tcpThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the number of frames which have been passed to the listener.
+     */
+    public long getFramesReceived() {
+        synchronized (listenerLock) {
+            return framesReceived;
+        }
+    }
+
+    /**
+     * Returns the rate of frames passed to the listener since {@link #start()}.
+     */
+    public float getFramesPerSecond() {
+        synchronized (listenerLock) {
+            long elapsedMs = System.currentTimeMillis() - statsStartMs;
+            return (elapsedMs > 0) ? framesReceived * 1000f / elapsedMs : 0;
+        }
+    }
+
+    /**
+     * Returns the mean time between a frame being queued by the sender and it being passed to the
+     * listener, in milliseconds. This relies on both clocks agreeing, as they do over loopback.
+     */
+    public float getMeanLatencyMs() {
+        synchronized (listenerLock) {
+            return (framesReceived > 0) ? totalLatencyMs / (float)framesReceived : 0;
+        }
+    }
+
+    /**
+     * Returns the number of frames which were sent but never arrived.
+     */
+    public int getLostFrames() {
+        synchronized (listenerLock) {
+            return lostFrames;
+        }
+    }
+
+    private void runUdp() {
+        byte[] buf = new byte[SpectrumProtocol.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        SpectrumDecoder decoder = new SpectrumDecoder();
+        while (running) {
+            try {
+                packet.setLength(buf.length);
+                udpSocket.receive(packet);
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+            dispatch(decoder, buf, packet.getLength());
+        }
+    }
+
+    private void runTcp() {
+        byte[] buf = new byte[0xffff];
+        while (running) {
+            Socket client;
+            try {
+                client = tcpServer.accept();
+                client.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+            tcpClient = client;
+            SpectrumDecoder decoder = new SpectrumDecoder();
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                while (running) {
+                    int len = in.readUnsignedShort();
+                    in.readFully(buf, 0, len);
+                    dispatch(decoder, buf, len);
+                }
+            } catch (IOException e) {
+                // Sender disconnected: wait for the next one.
+            } finally {
+                closeQuietly(client);
+                tcpClient = null;
+            }
+        }
+    }
+
+    /**
+     * Updates statistics for each frame before passing it on. Only called with listenerLock held.
+     */
+    private final Listener statsListener = new Listener() {
+        @Override
+        public void onFrame(SpectrumFrame frame) {
+            ++framesReceived;
+            totalLatencyMs += (int)System.currentTimeMillis() - frame.timestampMs;
+            listener.onFrame(frame);
+        }
+    };
+
+    private void dispatch(SpectrumDecoder decoder, byte[] buf, int len) {
+        synchronized (listenerLock) {
+            int lostBefore = decoder.getLostFrames();
+            try {
+                decoder.decode(buf, 0, len, statsListener);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+            lostFrames += decoder.getLostFrames() - lostBefore;
+        }
+    }
+
+    // Sockets don't implement Closeable until API 19.
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.pipeline;
+
+import com.nickbp.viz.util.DataBuffers;
+
+/**
+ * Reports which {@code DataBuffers.FEATURE_*} flags a sink currently reads, for sinks whose needs
+ * change while running, such as a view which swaps between visualizations. Passed to
+ * {@link Pipeline.Builder#addSink(com.nickbp.viz.util.DataBufferListener, FeatureDemand)}.
+ */
+public interface FeatureDemand {
+    /**
+     * Returns the {@code DataBuffers.FEATURE_*} flags which are currently read. Called on the audio
+     * threads before each frame is analyzed, so this must be cheap and must not block. Changes
+     * take effect from the next frame, except for {@link DataBuffers#FEATURE_LEVELS}, which audio
+     * sources only check when they're started.
+     */
+    public int getRequiredFeatures();
+}
@@ -0,0 +1,49 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.pipeline;
+
+import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A sink which periodically logs the rate of frames flowing through the pipeline.
+ */
+public class FrameRateSink implements DataBufferListener {
+    private static final String TAG = "FrameRateSink";
+    private static final long LOG_INTERVAL_MS = 10000;
+
+    private long intervalStartMs = -1;
+    private int frames = 0;
+
+    @Override
+    public void onReceive(DataBuffers buffers, boolean otherThread) {
+        long nowMs = SystemClock.elapsedRealtime();
+        if (intervalStartMs < 0) {
+            intervalStartMs = nowMs;
+        }
+        ++frames;
+        long elapsedMs = nowMs - intervalStartMs;
+        if (elapsedMs >= LOG_INTERVAL_MS) {
+            Log.d(TAG, frames * 1000f / elapsedMs + " frames/sec over " + elapsedMs + "ms");
+            intervalStartMs = nowMs;
+            frames = 0;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.pipeline;
+
+import com.nickbp.viz.util.DataBuffers;
+
+/**
+ * An analysis step which runs on each frame after {@link DataBuffers#updateData(byte[])}, before the
+ * frame is passed to any sinks. Stages may read any enabled fields of the frame, and write to
+ * their own preallocated outputs.
+ */
+public interface FrameStage {
+    /**
+     * Processes the provided frame. Called on the audio thread, so this must not block.
+     */
+    public void process(DataBuffers data);
+}
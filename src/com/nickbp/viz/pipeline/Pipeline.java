@@ -0,0 +1,152 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.util.Log;
+
+/**
+ * Routes each analyzed frame through a fixed list of {@link FrameStage}s and then out to any
+ * number of sinks, such as the view, a recorder, or metrics.
+ *
+ * A pipeline is assembled with a {@link Builder}, which validates it once up front. Every stage
+ * and sink declares which {@code DataBuffers.FEATURE_*} flags it reads, either as fixed flags or
+ * as a {@link FeatureDemand} which may change while running, so that only the analysis which is
+ * currently consumed gets run (see {@link #getRequiredFeatures()}). Each frame is handed
+ * to every sink as the same {@link DataBuffers} instance on the audio thread: adding a sink
+ * doesn't add any copies or thread hops, so sinks which need to keep data past
+ * {@link DataBufferListener#onReceive(DataBuffers, boolean)} must copy what they need themselves.
+ * The instance is overwritten in place by the next frame. The one exception is drawing: renderers
+ * such as {@code CanvasRenderThread} read the instance on their own thread without copying, as a
+ * drawn frame which mixes in part of the next one is harmless and gone a frame later.
+ *
+ * Only the feature analysis and the sinks are pluggable here. The audio sources, windowing, FFT,
+ * magnitude decoding, rebinning, and smoothing all run in one pass in the sources and
+ * {@link DataBuffers}, where splitting them into separate nodes would add a buffer copy per step
+ * without letting any consumer skip work. {@link FrameStage} is an extension point for analysis
+ * which doesn't belong in {@link DataBuffers}, and currently has no implementations.
+ */
+public class Pipeline implements DataBufferListener {
+    private static final String TAG = "Pipeline";
+
+    private final FrameStage[] stages;
+    private final DataBufferListener[] sinks;
+    private final int fixedFeatures;
+    private final FeatureDemand[] demands;
+
+    /**
+     * Assembles and validates a {@link Pipeline}.
+     */
+    public static class Builder {
+        private final List<FrameStage> stages = new ArrayList<FrameStage>();
+        private final List<DataBufferListener> sinks = new ArrayList<DataBufferListener>();
+        private final List<FeatureDemand> demands = new ArrayList<FeatureDemand>();
+        private int requiredFeatures = 0;
+
+        /**
+         * Adds a stage which runs on each frame after all previously added stages, and which reads
+         * the fields for the provided {@code DataBuffers.FEATURE_*} flags.
+         */
+        public Builder addStage(FrameStage stage, int requiredFeatures) {
+            stages.add(stage);
+            this.requiredFeatures |= requiredFeatures;
+            return this;
+        }
+
+        /**
+         * Adds a sink which receives each frame after all stages have run, and which reads the
+         * fields for the provided {@code DataBuffers.FEATURE_*} flags. Sinks receive each frame in
+         * the order they were added.
+         */
+        public Builder addSink(DataBufferListener sink, int requiredFeatures) {
+            sinks.add(sink);
+            this.requiredFeatures |= requiredFeatures;
+            return this;
+        }
+
+        /**
+         * Adds a sink which receives each frame after all stages have run, and which reads the
+         * fields for the {@code DataBuffers.FEATURE_*} flags currently returned by
+         * {@code demand}. Sinks receive each frame in the order they were added.
+         */
+        public Builder addSink(DataBufferListener sink, FeatureDemand demand) {
+            sinks.add(sink);
+            demands.add(demand);
+            return this;
+        }
+
+        /**
+         * Returns the assembled pipeline.
+         *
+         * @throws IllegalArgumentException if any unknown feature flags were provided, or are
+         *     currently demanded
+         * @throws IllegalStateException if no sinks were added
+         */
+        public Pipeline build() {
+            if (sinks.isEmpty()) {
+                throw new IllegalStateException("Pipeline has no sinks");
+            }
+            Pipeline pipeline = new Pipeline(
+                stages.toArray(new FrameStage[stages.size()]),
+                sinks.toArray(new DataBufferListener[sinks.size()]),
+                DataBuffers.resolveFeatures(requiredFeatures),
+                demands.toArray(new FeatureDemand[demands.size()]));
+            Log.d(TAG, "Built pipeline: stages=" + stages.size() + " sinks=" + sinks.size()
+                + " features=" + Integer.toHexString(pipeline.getRequiredFeatures()));
+            return pipeline;
+        }
+    }
+
+    private Pipeline(FrameStage[] stages, DataBufferListener[] sinks, int fixedFeatures,
+            FeatureDemand[] demands) {
+        this.stages = stages;
+        this.sinks = sinks;
+        this.fixedFeatures = fixedFeatures;
+        this.demands = demands;
+    }
+
+    /**
+     * Returns the {@code DataBuffers.FEATURE_*} flags which are currently read by any stage or
+     * sink, for passing to {@link DataBuffers#setFeatures(int)}. May change between frames if any
+     * sink was added with a {@link FeatureDemand}, so this is checked before each frame.
+     */
+    public int getRequiredFeatures() {
+        int features = fixedFeatures;
+        for (int i = 0; i < demands.length; ++i) {
+            features |= demands[i].getRequiredFeatures();
+        }
+        return DataBuffers.resolveFeatures(features);
+    }
+
+    /**
+     * Runs all stages on the provided frame, then passes it to all sinks.
+     */
+    @Override
+    public void onReceive(DataBuffers buffers, boolean otherThread) {
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i].process(buffers);
+        }
+        for (int i = 0; i < sinks.length; ++i) {
+            sinks[i].onReceive(buffers, otherThread);
+        }
+    }
+}
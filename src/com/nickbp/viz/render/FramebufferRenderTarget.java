@@ -0,0 +1,250 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.render;
+
+import java.util.Arrays;
+
+/**
+ * A pure-Java {@link RenderTarget} which rasterizes into an ARGB {@code int[]} framebuffer.
+ * Doesn't depend on any Android graphics classes, so it can be used to render or benchmark
+ * visualizations off-device, or to render offscreen.
+ *
+ * Images are stored as RGB_565 {@code short[]} rings, matching the configuration used on-device,
+ * and are expanded back to ARGB as they're copied to the framebuffer.
+ */
+public class FramebufferRenderTarget implements RenderTarget {
+    /**
+     * The framebuffer contents, one ARGB value per pixel, in rows from top to bottom.
+     */
+    public final int[] pixels;
+
+    private final int width, height;
+
+    /**
+     * Reusable source column for each destination column in
+     * {@link #drawImageScaled(RenderImage, int, int, int, int, int, int, int, int)}.
+     */
+    private int[] srcCols = new int[0];
+
+    public FramebufferRenderTarget(int width, int height) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void fillRect(float left, float top, float right, float bottom, int color) {
+        int l = Math.max(0, Math.round(left));
+        int r = Math.min(width, Math.round(right));
+        int t = Math.max(0, Math.round(top));
+        int b = Math.min(height, Math.round(bottom));
+        if (l >= r || t >= b) {
+            return;
+        }
+        color |= 0xff000000;
+        if (l == 0 && r == width) {
+            // full-width spans are contiguous, so do them all at once
+            Arrays.fill(pixels, t * width, b * width, color);
+            return;
+        }
+        for (int rowStart = t * width; rowStart < b * width; rowStart += width) {
+            Arrays.fill(pixels, rowStart + l, rowStart + r, color);
+        }
+    }
+
+    @Override
+    public void drawLines(float[] lines, int offset, int count, float thickness, int color) {
+        float halfThickness = thickness / 2;
+        for (int i = offset; i < offset + count * 4; i += 4) {
+            float x0 = lines[i], y0 = lines[i + 1], x1 = lines[i + 2], y1 = lines[i + 3];
+            if (y0 == y1) {
+                fillRect(Math.min(x0, x1), y0 - halfThickness,
+                    Math.max(x0, x1), y0 + halfThickness, color);
+            } else {
+                fillRect(x0 - halfThickness, Math.min(y0, y1),
+                    x0 + halfThickness, Math.max(y0, y1), color);
+            }
+        }
+    }
+
+    @Override
+    public RenderImage createImage(int width, int height) {
+        return new Image(width, height);
+    }
+
+    @Override
+    public void releaseImage(RenderImage image) {
+        // nothing to do: offscreen rendering doesn't churn through images often enough to pool them
+    }
+
+    @Override
+    public void drawImage(RenderImage image,
+            int srcLeft, int srcTop, int srcRight, int srcBottom, int dstLeft, int dstTop) {
+        Image src = (Image)image;
+        // clip against the destination, adjusting the source region to match
+        if (dstLeft < 0) {
+            srcLeft -= dstLeft;
+            dstLeft = 0;
+        }
+        if (dstTop < 0) {
+            srcTop -= dstTop;
+            dstTop = 0;
+        }
+        int copyWidth = Math.min(srcRight - srcLeft, width - dstLeft);
+        int copyHeight = Math.min(srcBottom - srcTop, height - dstTop);
+        for (int row = 0; row < copyHeight; ++row) {
+            int srcPos = (srcTop + row) * src.width + srcLeft;
+            int dstPos = (dstTop + row) * width + dstLeft;
+            for (int i = 0; i < copyWidth; ++i) {
+                pixels[dstPos + i] = rgb565ToArgb(src.pixels[srcPos + i]);
+            }
+        }
+    }
+
+    @Override
+    public void drawImageScaled(RenderImage image, int srcLeft, int srcTop, int srcRight,
+            int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom) {
+        Image src = (Image)image;
+        int dstWidth = dstRight - dstLeft;
+        int dstHeight = dstBottom - dstTop;
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            return;
+        }
+        int srcWidth = srcRight - srcLeft;
+        int srcHeight = srcBottom - srcTop;
+        // nearest neighbor, sampling from the center of each destination pixel, and skipping any
+        // destination pixels which are outside the framebuffer
+        int startRow = Math.max(0, -dstTop);
+        int endRow = Math.min(dstHeight, height - dstTop);
+        int startCol = Math.max(0, -dstLeft);
+        int endCol = Math.min(dstWidth, width - dstLeft);
+        if (srcCols.length < dstWidth) {
+            srcCols = new int[dstWidth];
+        }
+        for (int i = startCol; i < endCol; ++i) {
+            srcCols[i] = srcLeft + (int)(((2L * i + 1) * srcWidth) / (2L * dstWidth));
+        }
+        for (int row = startRow; row < endRow; ++row) {
+            int srcRow = srcTop + (int)(((2L * row + 1) * srcHeight) / (2L * dstHeight));
+            int srcRowStart = srcRow * src.width;
+            int dstRowStart = (dstTop + row) * width + dstLeft;
+            for (int i = startCol; i < endCol; ++i) {
+                pixels[dstRowStart + i] = rgb565ToArgb(src.pixels[srcRowStart + srcCols[i]]);
+            }
+        }
+    }
+
+    /**
+     * Always returns 1.0f, so that offscreen rendering doesn't depend on how long it takes.
+     */
+    @Override
+    public float getImageScale() {
+        return 1.0f;
+    }
+
+    /**
+     * Packs an ARGB color into RGB_565, dropping alpha and the low bits of each channel.
+     */
+    public static short argbToRgb565(int argb) {
+        return (short)(((argb >> 8) & 0xf800) | ((argb >> 5) & 0x07e0) | ((argb >> 3) & 0x001f));
+    }
+
+    /**
+     * Expands an RGB_565 color to opaque ARGB, replicating the high bits of each channel into the
+     * low bits so that full intensity maps to 0xff.
+     */
+    public static int rgb565ToArgb(short rgb565) {
+        int r = (rgb565 >> 11) & 0x1f;
+        int g = (rgb565 >> 5) & 0x3f;
+        int b = rgb565 & 0x1f;
+        return 0xff000000
+            | (((r << 3) | (r >> 2)) << 16)
+            | (((g << 2) | (g >> 4)) << 8)
+            | ((b << 3) | (b >> 2));
+    }
+
+    private static class Image implements RenderImage {
+        private final short[] pixels;
+        private final int width, height;
+
+        private Image(int width, int height) {
+            this.width = width;
+            this.height = height;
+            pixels = new short[width * height];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void setPixels(
+                int[] colors, int offset, int stride, int x, int y, int width, int height) {
+            for (int row = 0; row < height; ++row) {
+                int srcPos = offset + row * stride;
+                int dstPos = (y + row) * this.width + x;
+                for (int i = 0; i < width; ++i) {
+                    pixels[dstPos + i] = argbToRgb565(colors[srcPos + i]);
+                }
+            }
+        }
+
+        @Override
+        public void fill(int color) {
+            Arrays.fill(pixels, argbToRgb565(color));
+        }
+
+        @Override
+        public void copyScaled(RenderImage image, int srcLeft, int srcTop, int srcRight,
+                int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom) {
+            Image src = (Image)image;
+            int dstWidth = dstRight - dstLeft;
+            int dstHeight = dstBottom - dstTop;
+            if (dstWidth <= 0 || dstHeight <= 0) {
+                return;
+            }
+            int srcWidth = srcRight - srcLeft;
+            int srcHeight = srcBottom - srcTop;
+            // nearest neighbor, sampling from the center of each destination pixel
+            for (int row = 0; row < dstHeight; ++row) {
+                int srcRow = srcTop + (int)(((2L * row + 1) * srcHeight) / (2L * dstHeight));
+                int srcRowStart = srcRow * src.width;
+                int dstPos = (dstTop + row) * width + dstLeft;
+                for (int i = 0; i < dstWidth; ++i) {
+                    int srcCol = srcLeft + (int)(((2L * i + 1) * srcWidth) / (2L * dstWidth));
+                    pixels[dstPos + i] = src.pixels[srcRowStart + srcCol];
+                }
+            }
+        }
+    }
+}
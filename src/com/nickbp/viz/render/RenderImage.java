@@ -0,0 +1,54 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.render;
+
+/**
+ * An offscreen image which is created by, and may be drawn to, a {@link RenderTarget}.
+ * Images are opaque and may store colors at reduced precision (eg RGB_565).
+ */
+public interface RenderImage {
+    /**
+     * Returns the width of the image, in pixels.
+     */
+    public int getWidth();
+
+    /**
+     * Returns the height of the image, in pixels.
+     */
+    public int getHeight();
+
+    /**
+     * Replaces the pixels in the region {@code x, y, width, height} with the provided ARGB
+     * {@code colors}, which are read starting at {@code offset} with {@code stride} values per row.
+     * Matches the semantics of {@link android.graphics.Bitmap#setPixels}.
+     */
+    public void setPixels(int[] colors, int offset, int stride, int x, int y, int width, int height);
+
+    /**
+     * Fills the entire image with the provided {@code color}.
+     */
+    public void fill(int color);
+
+    /**
+     * Copies the region {@code [srcLeft, srcRight) x [srcTop, srcBottom)} of the provided
+     * {@code src} image into the region {@code [dstLeft, dstRight) x [dstTop, dstBottom)} of this
+     * image, stretching it to fit. {@code src} must have been created by the same
+     * {@link RenderTarget} as this image.
+     */
+    public void copyScaled(RenderImage src, int srcLeft, int srcTop, int srcRight, int srcBottom,
+            int dstLeft, int dstTop, int dstRight, int dstBottom);
+}
@@ -0,0 +1,90 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.render;
+
+/**
+ * A destination for visualizer drawing. Implementations may draw to an Android
+ * {@link android.graphics.Canvas}, or rasterize into a plain pixel array, so that visualizations
+ * don't depend on any particular graphics API.
+ *
+ * Coordinates are in pixels, with 0,0 at the top left. Colors are packed ARGB ints, as produced by
+ * {@link com.nickbp.viz.util.PrecalcColorUtil}.
+ */
+public interface RenderTarget {
+    /**
+     * Returns the width of the drawable area, in pixels.
+     */
+    public int getWidth();
+
+    /**
+     * Returns the height of the drawable area, in pixels.
+     */
+    public int getHeight();
+
+    /**
+     * Fills the provided rectangle with an opaque {@code color}. Edges are rounded to the nearest
+     * pixel, with no antialiasing.
+     */
+    public void fillRect(float left, float top, float right, float bottom, int color);
+
+    /**
+     * Draws {@code count} horizontal or vertical lines in a single call, all with the same
+     * {@code thickness} and opaque {@code color}. Each line is read from {@code lines} as an
+     * {@code x0, y0, x1, y1} quad, starting at {@code offset}. The thickness is centered on the
+     * line and the ends are square. Where all four edges of a line fall on whole pixels, it covers
+     * the same pixels as the equivalent {@link #fillRect(float, float, float, float, int)}.
+     * Otherwise the edges may be rounded differently, depending on the target.
+     */
+    public void drawLines(float[] lines, int offset, int count, float thickness, int color);
+
+    /**
+     * Returns an offscreen image of the provided dimensions, suitable for passing to
+     * {@link #drawImage(RenderImage, int, int, int, int, int, int)} on this target. The image may
+     * have been recycled via {@link #releaseImage(RenderImage)}, in which case its contents are
+     * undefined.
+     */
+    public RenderImage createImage(int width, int height);
+
+    /**
+     * Returns an image obtained from {@link #createImage(int, int)} which is no longer in use, so
+     * that it may be reused by a later call to {@link #createImage(int, int)}.
+     */
+    public void releaseImage(RenderImage image);
+
+    /**
+     * Copies the region {@code [srcLeft, srcRight) x [srcTop, srcBottom)} of the provided
+     * {@code image} to this target, with its top left corner at {@code dstLeft}, {@code dstTop}.
+     */
+    public void drawImage(RenderImage image,
+            int srcLeft, int srcTop, int srcRight, int srcBottom, int dstLeft, int dstTop);
+
+    /**
+     * Copies the region {@code [srcLeft, srcRight) x [srcTop, srcBottom)} of the provided
+     * {@code image} into the region {@code [dstLeft, dstRight) x [dstTop, dstBottom)} of this
+     * target, stretching it to fit. Implementations filter the result where they're able to.
+     */
+    public void drawImageScaled(RenderImage image, int srcLeft, int srcTop, int srcRight,
+            int srcBottom, int dstLeft, int dstTop, int dstRight, int dstBottom);
+
+    /**
+     * Returns the fraction of native resolution, from 0.0f (exclusive) to 1.0f, at which large
+     * offscreen images such as a scrolling history should be kept. Such images are then stretched
+     * back to size via {@link #drawImageScaled}. May change between frames, in which case
+     * visualizations should recreate their images at the new scale.
+     */
+    public float getImageScale();
+}
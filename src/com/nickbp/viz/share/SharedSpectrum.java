@@ -0,0 +1,94 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.share;
+
+/**
+ * Layout of the shared memory region written by {@link SharedSpectrumWriter} and read by
+ * {@link SharedSpectrumReader}. All values are in the device's native byte order:
+ *
+ * <pre>
+ * offset size  field
+ * 0      4     magic ({@link #MAGIC})
+ * 4      4     version ({@link #VERSION})
+ * 8      4     sequence: odd while a frame is being written, even once it's complete
+ * 12     4     capacity C: maximum number of values in each buffer
+ * 16     4     value count N: number of valid values in each buffer, at most C
+ * 20     4     checksum of the frame, see {@link #checksum(int, float[], float[], int)}
+ * 24     8     SystemClock.elapsedRealtime() when the frame was written
+ * 32     4*C   DataBuffers.valBuffer, with N valid values
+ * 32+4*C 4*C   DataBuffers.timeSmoothedValBuffer, with N valid values
+ * </pre>
+ *
+ * Readers use the sequence as a seqlock: a snapshot may be consistent if the sequence was even
+ * before copying the buffers, and unchanged afterwards. However, Java doesn't guarantee the order
+ * in which another process sees writes to a memory-mapped file, so a frame which passes that check
+ * may still be torn. Readers therefore also verify the copied frame against its checksum, which
+ * covers the sequence number as well as the values.
+ */
+public class SharedSpectrum {
+    public static final int MAGIC = 0x56495a53;// 'VIZS'
+    public static final int VERSION = 2;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_SEQUENCE = 8;
+    static final int OFFSET_CAPACITY = 12;
+    static final int OFFSET_COUNT = 16;
+    static final int OFFSET_CHECKSUM = 20;
+    static final int OFFSET_TIMESTAMP = 24;
+    static final int HEADER_SIZE = 32;
+    /** Byte offset of the first value of {@code DataBuffers.valBuffer}. */
+    static final int OFFSET_VALS = HEADER_SIZE;
+
+    /**
+     * Maximum number of values in each buffer. This covers the largest microphone buffer size.
+     */
+    static final int CAPACITY = 4096;
+
+    /** Total size of the region, in bytes. */
+    static final int REGION_SIZE = HEADER_SIZE + CAPACITY * 4 * 2;
+
+    /** Binder transaction which returns a read-only file descriptor for the region. */
+    static final int TRANSACTION_GET_REGION = android.os.IBinder.FIRST_CALL_TRANSACTION;
+    static final String DESCRIPTOR = "com.nickbp.viz.share.SharedSpectrum";
+
+    /** File name of the region within the app's cache directory. */
+    static final String FILE_NAME = "spectrum.shm";
+
+    private SharedSpectrum() {
+    }
+
+    /**
+     * Returns the checksum of a frame with the provided even {@code sequence}, and the first
+     * {@code count} values of {@code vals} and {@code smoothedVals}.
+     */
+    static int checksum(int sequence, float[] vals, float[] smoothedVals, int count) {
+        int sum = sequence * 31 + count;
+        for (int i = 0; i < count; ++i) {
+            sum = sum * 31 + Float.floatToRawIntBits(vals[i]);
+            sum = sum * 31 + Float.floatToRawIntBits(smoothedVals[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the byte offset of the first value of {@code DataBuffers.timeSmoothedValBuffer}.
+     */
+    static int smoothedOffset(int capacity) {
+        return HEADER_SIZE + capacity * 4;
+    }
+}
@@ -0,0 +1,187 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.share;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * Client library for reading the spectrum exported by {@link SpectrumExportService}. Connecting
+ * makes a single binder call to fetch the shared region. After that, each read is a direct copy
+ * out of shared memory, with no IPC.
+ *
+ * Instances are not thread-safe.
+ */
+public class SharedSpectrumReader {
+    // How many times a read is retried when it overlaps with a write, before giving up.
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private final MappedByteBuffer region;
+    private final FloatBuffer vals, smoothed;
+    private final int capacity;
+    // Each read is copied here and validated, before being passed to the caller.
+    private final float[] readVals, readSmoothedVals;
+    private int lastSequence = -1;
+
+    /**
+     * Fetches the shared region from a service binder, as provided to
+     * {@link android.content.ServiceConnection#onServiceConnected} after binding to
+     * {@link SpectrumExportService}.
+     *
+     * @throws IOException if the region couldn't be fetched or mapped
+     */
+    public static SharedSpectrumReader connect(IBinder service) throws IOException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        ParcelFileDescriptor pfd;
+        try {
+            data.writeInterfaceToken(SharedSpectrum.DESCRIPTOR);
+            service.transact(SharedSpectrum.TRANSACTION_GET_REGION, data, reply, 0);
+            reply.readException();
+            pfd = reply.readFileDescriptor();
+        } catch (RemoteException e) {
+            throw new IOException("Couldn't fetch shared spectrum region: " + e);
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+        if (pfd == null) {
+            throw new IOException("No shared spectrum region returned");
+        }
+        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            return new SharedSpectrumReader(in.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, SharedSpectrum.REGION_SIZE));
+        } finally {
+            // the mapping stays valid after the descriptor is closed
+            in.close();
+            pfd.close();
+        }
+    }
+
+    private SharedSpectrumReader(MappedByteBuffer region) throws IOException {
+        this.region = region;
+        region.order(ByteOrder.nativeOrder());
+        if (region.getInt(SharedSpectrum.OFFSET_MAGIC) != SharedSpectrum.MAGIC) {
+            throw new IOException("Shared spectrum region isn't initialized");
+        }
+        int version = region.getInt(SharedSpectrum.OFFSET_VERSION);
+        if (version != SharedSpectrum.VERSION) {
+            throw new IOException("Unsupported shared spectrum version: " + version);
+        }
+        capacity = region.getInt(SharedSpectrum.OFFSET_CAPACITY);
+        readVals = new float[capacity];
+        readSmoothedVals = new float[capacity];
+        region.position(SharedSpectrum.OFFSET_VALS);
+        vals = region.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        region.position(SharedSpectrum.smoothedOffset(capacity));
+        smoothed = region.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        region.position(0);
+    }
+
+    /**
+     * Returns the maximum number of values which may be returned by a read. Buffers passed to
+     * {@link #read(float[], float[])} should be at least this large.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns whether a frame has been written since the last successful
+     * {@link #read(float[], float[])}. This is a single memory read, and may be used to poll
+     * cheaply.
+     */
+    public boolean hasNewFrame() {
+        int sequence = region.getInt(SharedSpectrum.OFFSET_SEQUENCE);
+        return sequence != lastSequence && (sequence & 1) == 0;
+    }
+
+    /**
+     * Copies the latest frame's values into {@code vals} and {@code smoothedVals} (either may be
+     * {@code null} to skip it), and returns the number of values copied. Returns -1 if a
+     * consistent frame couldn't be read because the writer kept overwriting it, or 0 if no frame
+     * has been written yet.
+     *
+     * The whole frame is copied out of shared memory and checked against its checksum before
+     * anything is passed on, so a frame which was torn by a concurrent write is never returned.
+     */
+    public int read(float[] vals, float[] smoothedVals) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; ++attempt) {
+            int before = region.getInt(SharedSpectrum.OFFSET_SEQUENCE);
+            if ((before & 1) != 0) {
+                // mid-write
+                Thread.yield();
+                continue;
+            }
+            int count = region.getInt(SharedSpectrum.OFFSET_COUNT);
+            if (count < 0 || count > capacity) {
+                // torn header
+                continue;
+            }
+            this.vals.position(0);
+            this.vals.get(readVals, 0, count);
+            smoothed.position(0);
+            smoothed.get(readSmoothedVals, 0, count);
+            int checksum = region.getInt(SharedSpectrum.OFFSET_CHECKSUM);
+            if (region.getInt(SharedSpectrum.OFFSET_SEQUENCE) != before) {
+                continue;
+            }
+            if (before == 0) {
+                // nothing written yet
+                return 0;
+            }
+            if (checksum != SharedSpectrum.checksum(
+                    before, readVals, readSmoothedVals, count)) {
+                // torn, despite the sequence check
+                continue;
+            }
+            lastSequence = before;
+            if (vals != null) {
+                count = Math.min(count, vals.length);
+            }
+            if (smoothedVals != null) {
+                count = Math.min(count, smoothedVals.length);
+            }
+            if (vals != null) {
+                System.arraycopy(readVals, 0, vals, 0, count);
+            }
+            if (smoothedVals != null) {
+                System.arraycopy(readSmoothedVals, 0, smoothedVals, 0, count);
+            }
+            return count;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the {@link android.os.SystemClock#elapsedRealtime()} at which the latest frame was
+     * written, which may be used to detect that the visualizer has stopped.
+     */
+    public long getTimestampMs() {
+        return region.getLong(SharedSpectrum.OFFSET_TIMESTAMP);
+    }
+}
@@ -0,0 +1,155 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.share;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Copies each frame's spectrum into a memory-mapped file, in the layout described by
+ * {@link SharedSpectrum}. Other processes get read-only access to the file from
+ * {@link SpectrumExportService}, and then read frames directly from memory via
+ * {@link SharedSpectrumReader}, with no IPC per frame. Writing a frame costs two bulk copies,
+ * however many readers there are.
+ *
+ * The file only exists while a client is bound to {@link SpectrumExportService}, which creates it
+ * via {@link #open(Context)} and deletes it via {@link #close()}. Pipelines include {@link #SINK},
+ * which does nothing while no file is open.
+ */
+public class SharedSpectrumWriter implements DataBufferListener {
+    private static final String TAG = "SharedSpectrumWriter";
+
+    /**
+     * The process's writer while {@link SpectrumExportService} has clients, or {@code null}.
+     */
+    private static volatile SharedSpectrumWriter instance = null;
+
+    /**
+     * A pipeline sink which forwards each frame to the open writer, if any. When no clients are
+     * bound, frames aren't written anywhere.
+     */
+    public static final DataBufferListener SINK = new DataBufferListener() {
+        @Override
+        public void onReceive(DataBuffers data, boolean otherThread) {
+            SharedSpectrumWriter writer = instance;
+            if (writer != null) {
+                writer.onReceive(data, otherThread);
+            }
+        }
+    };
+
+    private final File file;
+    private final MappedByteBuffer region;
+    private final FloatBuffer vals, smoothed;
+    private int sequence = 0;
+
+    /**
+     * Returns the process's writer, creating the region if it isn't open yet. Any frames received
+     * by {@link #SINK} are written to the region until {@link #close()} is called.
+     *
+     * @throws IOException if the region couldn't be created
+     */
+    static synchronized SharedSpectrumWriter open(Context context) throws IOException {
+        if (instance == null) {
+            instance = new SharedSpectrumWriter(
+                new File(context.getApplicationContext().getCacheDir(), SharedSpectrum.FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Stops writing frames and deletes the region's file, or does nothing if it isn't open.
+     * Readers which are already mapped keep their mapping, which no longer receives updates.
+     */
+    static synchronized void close() {
+        if (instance == null) {
+            return;
+        }
+        if (!instance.file.delete()) {
+            Log.w(TAG, "Couldn't delete " + instance.file);
+        }
+        instance = null;
+    }
+
+    private SharedSpectrumWriter(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SharedSpectrum.REGION_SIZE);
+            region = raf.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, SharedSpectrum.REGION_SIZE);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        region.order(ByteOrder.nativeOrder());
+        region.putInt(SharedSpectrum.OFFSET_SEQUENCE, sequence);
+        region.putInt(SharedSpectrum.OFFSET_CAPACITY, SharedSpectrum.CAPACITY);
+        region.putInt(SharedSpectrum.OFFSET_COUNT, 0);
+        region.putInt(SharedSpectrum.OFFSET_VERSION, SharedSpectrum.VERSION);
+        // the magic goes last, so that a region with a valid magic is always fully set up
+        region.putInt(SharedSpectrum.OFFSET_MAGIC, SharedSpectrum.MAGIC);
+
+        region.position(SharedSpectrum.OFFSET_VALS);
+        vals = region.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        region.position(SharedSpectrum.smoothedOffset(SharedSpectrum.CAPACITY));
+        smoothed = region.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+        region.position(0);
+        Log.d(TAG, "Mapped " + SharedSpectrum.REGION_SIZE + " bytes at " + file);
+    }
+
+    /**
+     * Returns the file backing the region, for passing to readers.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Copies the provided frame into the region.
+     */
+    @Override
+    public synchronized void onReceive(DataBuffers data, boolean otherThread) {
+        int count = Math.min(SharedSpectrum.CAPACITY, data.valBuffer.length);
+
+        region.putInt(SharedSpectrum.OFFSET_SEQUENCE, ++sequence);// odd: writing
+
+        region.putInt(SharedSpectrum.OFFSET_COUNT, count);
+        region.putLong(SharedSpectrum.OFFSET_TIMESTAMP, SystemClock.elapsedRealtime());
+        vals.position(0);
+        vals.put(data.valBuffer, 0, count);
+        smoothed.position(0);
+        smoothed.put(data.timeSmoothedValBuffer, 0, count);
+        // lets readers detect a torn frame, whatever order they see these writes in
+        region.putInt(SharedSpectrum.OFFSET_CHECKSUM, SharedSpectrum.checksum(
+            sequence + 1, data.valBuffer, data.timeSmoothedValBuffer, count));
+
+        region.putInt(SharedSpectrum.OFFSET_SEQUENCE, ++sequence);// even: done
+    }
+}
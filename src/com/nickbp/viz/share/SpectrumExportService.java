@@ -0,0 +1,97 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.share;
+
+import java.io.IOException;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * A bound service which gives other apps read-only access to the shared spectrum region. Clients
+ * bind once and fetch the region via {@link SharedSpectrumReader#connect(IBinder)}, after which
+ * they read frames directly from memory without any further calls to this service.
+ *
+ * The region is created when the first client binds, and is updated whenever this app's pipeline
+ * is running, ie while the visualizer is shown. It's deleted once the last client unbinds, so
+ * nothing is written while nobody is reading. Binding requires the signature-level
+ * {@code READ_SPECTRUM} permission.
+ */
+public class SpectrumExportService extends Service {
+    private static final String TAG = "SpectrumExportService";
+
+    private final Binder binder = new Binder() {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            if (code != SharedSpectrum.TRANSACTION_GET_REGION) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            data.enforceInterface(SharedSpectrum.DESCRIPTOR);
+            ParcelFileDescriptor pfd;
+            try {
+                pfd = ParcelFileDescriptor.open(
+                    SharedSpectrumWriter.open(SpectrumExportService.this).getFile(),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't open shared spectrum region", e);
+                throw new RemoteException();
+            }
+            reply.writeNoException();
+            reply.writeFileDescriptor(pfd.getFileDescriptor());
+            try {
+                // the reply holds its own duplicate of the descriptor
+                pfd.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+    };
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        Log.d(TAG, "onBind");
+        try {
+            SharedSpectrumWriter.open(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't create shared spectrum region", e);
+            return null;
+        }
+        return binder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // called once every client has unbound
+        Log.d(TAG, "onUnbind");
+        SharedSpectrumWriter.close();
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
+        SharedSpectrumWriter.close();
+        super.onDestroy();
+    }
+}
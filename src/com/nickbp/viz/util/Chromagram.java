@@ -0,0 +1,138 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import android.util.Log;
+
+/**
+ * Folds spectrum data into a 12-bin pitch class profile (chromagram), where index 0 is C, 1 is C#,
+ * and so on up to 11 for B.
+ *
+ * Each spectrum value's contribution to the pitch classes is precomputed into a sparse weight
+ * table, which is only rebuilt when the spectrum size or sample rate changes. Each value is split
+ * between the two pitch classes nearest to its frequency, so the table has at most two entries
+ * per value, and each update is a single sparse multiply.
+ */
+public class Chromagram {
+    private static final String TAG = "Chromagram";
+
+    public static final int PITCH_CLASSES = 12;
+
+    // Frequencies below this are too coarsely resolved to say anything useful about pitch.
+    private static final float MIN_HZ = 55;
+    // Frequencies above this are mostly overtones and noise.
+    private static final float MAX_HZ = 5000;
+    private static final float A4_HZ = 440;
+    // Pitch class of A, relative to C.
+    private static final int A_PITCH_CLASS = 9;
+
+    private int binCount = -1;
+    private int sampleRateHz = -1;
+
+    // The sparse weight table: entry i adds binIndex[i]'s value * weight[i] to pitchClass[i].
+    private int[] binIndex = new int[0];
+    private int[] pitchClass = new int[0];
+    private float[] weight = new float[0];
+    private int entries = 0;
+
+    private final float[] scratch = new float[PITCH_CLASSES];
+    private float smoothing = 0;
+
+    /**
+     * Sets how much of the previous profile is retained on each update, from 0.0f (none, the
+     * default) up to but excluding 1.0f.
+     */
+    public void setSmoothing(float smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * Prepares the weight table for spectrum data with {@code binCount} values from an FFT at the
+     * provided sample rate, where value i is FFT bin i + 1, as in {@link DataBuffers#valBuffer}.
+     * Does nothing if the table is already configured for these parameters.
+     */
+    public void configure(int binCount, int sampleRateHz) {
+        if (binCount == this.binCount && sampleRateHz == this.sampleRateHz) {
+            return;
+        }
+        this.binCount = binCount;
+        this.sampleRateHz = sampleRateHz;
+
+        int fftSize = (binCount + 1) * 2;
+        float binWidthHz = sampleRateHz / (float)fftSize;
+        binIndex = new int[binCount * 2];
+        pitchClass = new int[binCount * 2];
+        weight = new float[binCount * 2];
+        entries = 0;
+        for (int i = 0; i < binCount; ++i) {
+            float hz = (i + 1) * binWidthHz;
+            if (hz < MIN_HZ || hz > MAX_HZ) {
+                continue;
+            }
+            // Bins which are wider than a semitone smear across several pitch classes, so they
+            // only get a partial vote.
+            float semitoneWidthHz = hz * 0.0595f;// 2^(1/12) - 1
+            float binWeight = Math.min(1, semitoneWidthHz / binWidthHz);
+
+            float semitonesFromA = (float)(12 * Math.log(hz / A4_HZ) / Math.log(2));
+            float pitch = semitonesFromA + A_PITCH_CLASS;
+            int lower = (int)Math.floor(pitch);
+            float frac = pitch - lower;
+            addEntry(i, lower, binWeight * (1 - frac));
+            addEntry(i, lower + 1, binWeight * frac);
+        }
+        Log.d(TAG, "Configured " + entries + " weights for bins=" + binCount
+            + " rate=" + sampleRateHz + "Hz");
+    }
+
+    private void addEntry(int bin, int pitch, float w) {
+        if (w <= 0) {
+            return;
+        }
+        binIndex[entries] = bin;
+        pitchClass[entries] = ((pitch % PITCH_CLASSES) + PITCH_CLASSES) % PITCH_CLASSES;
+        weight[entries] = w;
+        ++entries;
+    }
+
+    /**
+     * Folds the provided {@code spectrum} into {@code chroma}, which must have
+     * {@link #PITCH_CLASSES} values. The result is normalized so that the strongest pitch class is
+     * 1.0f, then blended with the previous contents of {@code chroma} according to
+     * {@link #setSmoothing(float)}. Does nothing until {@link #configure(int, int)} has been called.
+     */
+    public void update(float[] spectrum, float[] chroma) {
+        if (entries == 0) {
+            return;
+        }
+        for (int i = 0; i < PITCH_CLASSES; ++i) {
+            scratch[i] = 0;
+        }
+        for (int i = 0; i < entries; ++i) {
+            scratch[pitchClass[i]] += spectrum[binIndex[i]] * weight[i];
+        }
+
+        float max = 0;
+        for (int i = 0; i < PITCH_CLASSES; ++i) {
+            max = Math.max(max, scratch[i]);
+        }
+        float scale = (max > 0) ? (1 - smoothing) / max : 0;
+        for (int i = 0; i < PITCH_CLASSES; ++i) {
+            chroma[i] = chroma[i] * smoothing + scratch[i] * scale;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures how much CPU time this process uses, as CPU seconds per hour of elapsed time, to check
+ * long-running modes against a power budget. The figure covers every thread in the process.
+ */
+public class CpuUsageMonitor {
+    private static final String TAG = "CpuUsageMonitor";
+    private static final long MS_PER_HOUR = 60 * 60 * 1000;
+
+    private final String name;
+    private long startCpuMs;
+    private long startElapsedMs;
+
+    /**
+     * Creates a monitor whose reports are labeled with {@code name}. Measurement starts
+     * immediately.
+     */
+    public CpuUsageMonitor(String name) {
+        this.name = name;
+        reset();
+    }
+
+    /**
+     * Restarts measurement from now.
+     */
+    public void reset() {
+        startCpuMs = Process.getElapsedCpuTime();
+        startElapsedMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the CPU time used since the last {@link #reset()}, in milliseconds per hour of
+     * elapsed time, or zero if no time has elapsed.
+     */
+    public long getCpuMsPerHour() {
+        long elapsedMs = SystemClock.elapsedRealtime() - startElapsedMs;
+        if (elapsedMs <= 0) {
+            return 0;
+        }
+        return (Process.getElapsedCpuTime() - startCpuMs) * MS_PER_HOUR / elapsedMs;
+    }
+
+    /**
+     * Logs the CPU time used since the last {@link #reset()}, eg:
+     * {@code adb logcat -s CpuUsageMonitor}.
+     */
+    public void log() {
+        long elapsedMs = SystemClock.elapsedRealtime() - startElapsedMs;
+        long cpuMsPerHour = getCpuMsPerHour();
+        Log.i(TAG, String.format("%s: %d CPU s/hour (%.2f%% of one core) over the last %ds",
+            name, cpuMsPerHour / 1000, cpuMsPerHour * 100f / MS_PER_HOUR, elapsedMs / 1000));
+    }
+}
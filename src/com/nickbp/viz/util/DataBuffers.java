@@ -20,8 +20,43 @@ package com.nickbp.viz.util;
  * Takes raw FFT data and transforms it into suitable spectrum data.
  */
 public class DataBuffers {
-    // How quickly the smoothed data should be able to change. Smaller value = slower.
-    private static final float TIME_SMOOTHING_FALLOFF = 0.15f;
+    // How much of the previous pitch class profile to retain each frame. Larger value = slower.
+    private static final float CHROMA_SMOOTHING = 0.6f;
+    // Number of perceptual bands to produce in bandBuffer, and which scale to space them on.
+    private static final int BAND_COUNT = 96;
+    private static final int BAND_SCALE = PerceptualBands.SCALE_MEL;
+    // Sample rate to assume for the perceptual bands until one is provided. This is the usual rate
+    // for both playback and microphone capture.
+    private static final int DEFAULT_SAMPLE_RATE_HZ = 44100;
+
+    /**
+     * Feature flag for {@link #bandBuffer} and {@link #timeSmoothedBandBuffer}.
+     */
+    public static final int FEATURE_BANDS = 1 << 0;
+    /**
+     * Feature flag for the harmonic and percussive buffers. Implies {@link #FEATURE_BANDS}.
+     */
+    public static final int FEATURE_HPSS = 1 << 1;
+    /**
+     * Feature flag for {@link #onset}, {@link #onsetStrength}, {@link #tempoBpm}, and
+     * {@link #beatPhase}.
+     */
+    public static final int FEATURE_RHYTHM = 1 << 2;
+    /**
+     * Feature flag for {@link #chromaBuffer}.
+     */
+    public static final int FEATURE_CHROMA = 1 << 3;
+    /**
+     * Feature flag for the level fields, such as {@link #peakLevel} and {@link #rmsLevel}. These
+     * are measured by the audio source rather than by {@link #updateData(byte[])}, and sources may
+     * skip measuring them when this flag isn't required.
+     */
+    public static final int FEATURE_LEVELS = 1 << 4;
+    /**
+     * All feature flags. The spectrum, flux, and pitch fields are always updated.
+     */
+    public static final int FEATURE_ALL =
+        FEATURE_BANDS | FEATURE_HPSS | FEATURE_RHYTHM | FEATURE_CHROMA | FEATURE_LEVELS;
 
     /**
      * Immediate spectrum data, with no smoothing beyond simple cleanup from the original FFT.
@@ -31,24 +66,328 @@ public class DataBuffers {
 
     /**
      * Smoothed spectrum data, where values change more gradually with an eye to smooth movement
-     * over time. Otherwise the same type of data, with the same dimensions, as
-     * {@link #valBuffer}.
+     * over time, according to the {@link SmoothingConfig}. Otherwise the same type of data, with
+     * the same dimensions, as {@link #valBuffer}.
      */
     public final float[] timeSmoothedValBuffer;
 
+    /**
+     * {@link #valBuffer} rebinned into perceptually even (mel scale) bands, from lowest frequency
+     * to highest, with A-weighting applied. Each value is from 0.0f to 1.0f (inclusive). This is
+     * much smaller than {@link #valBuffer}, and each band may be displayed with the same width.
+     */
+    public final float[] bandBuffer;
+
+    /**
+     * Smoothed band data, smoothed in the same way as {@link #timeSmoothedValBuffer}. Otherwise the
+     * same type of data, with the same dimensions, as {@link #bandBuffer}.
+     */
+    public final float[] timeSmoothedBandBuffer;
+
+    /**
+     * Harmonic (sustained, tonal) part of {@link #valBuffer}. Each value is from 0.0f up to the
+     * corresponding value in {@link #valBuffer}, and adds with {@link #percussiveBuffer} to equal
+     * it.
+     */
+    public final float[] harmonicBuffer;
+
+    /**
+     * Percussive (brief, broadband) part of {@link #valBuffer}. Each value is from 0.0f up to the
+     * corresponding value in {@link #valBuffer}, and adds with {@link #harmonicBuffer} to equal it.
+     */
+    public final float[] percussiveBuffer;
+
+    /**
+     * {@link #harmonicBuffer} rebinned in the same way as {@link #bandBuffer}, with the same
+     * dimensions.
+     */
+    public final float[] harmonicBandBuffer;
+
+    /**
+     * {@link #percussiveBuffer} rebinned in the same way as {@link #bandBuffer}, with the same
+     * dimensions.
+     */
+    public final float[] percussiveBandBuffer;
+
+    /**
+     * Half-wave rectified spectral flux between the two most recent frames: the total increase in
+     * magnitude across all values of {@link #valBuffer}, divided by the number of values.
+     */
+    public float spectralFlux;
+
+    /**
+     * Whether an onset (eg a beat or note attack) was detected in the most recent frame.
+     */
+    public boolean onset;
+
+    /**
+     * When {@link #onset} is {@code true}, how strongly the flux exceeded the detection threshold,
+     * relative to the threshold. Otherwise zero.
+     */
+    public float onsetStrength;
+
+    /**
+     * Estimated tempo of the music, in beats per minute, or zero if no estimate is available yet.
+     */
+    public float tempoBpm;
+
+    /**
+     * Position within the current beat at {@link #tempoBpm}, from 0.0f (on the beat) up to 1.0f.
+     */
+    public float beatPhase;
+
+    /**
+     * Pitch class profile of {@link #valBuffer}, with one value per semitone from C (index 0) to B
+     * (index 11). Each value is from 0.0f to 1.0f, where the strongest pitch class is 1.0f. Stays
+     * empty until a sample rate is provided via {@link #setSampleRateHz(int)}.
+     */
+    public final float[] chromaBuffer = new float[Chromagram.PITCH_CLASSES];
+
+    /**
+     * Fundamental frequency of the audio, in Hz, or zero if no clear pitch was found. Only
+     * available when the audio source provides raw samples, ie the microphone.
+     */
+    public float pitchHz;
+
+    /**
+     * How confident the {@link #pitchHz} estimate is, from 0.0f to 1.0f.
+     */
+    public float pitchConfidence;
+
+    /**
+     * Whether the level fields reflect the actual level of the audio. When false, the audio
+     * source couldn't measure levels, and the level fields are all at silence.
+     */
+    public boolean levelsAvailable = false;
+
+    /**
+     * Largest sample magnitude in the audio's most recent buffer, from 0.0f to 1.0f (full scale).
+     */
+    public float peakLevel;
+
+    /**
+     * Recent {@link #peakLevel}, held for a moment and then falling gradually.
+     */
+    public float peakHoldLevel;
+
+    /**
+     * RMS level of the audio over the last 300ms, from 0.0f to 1.0f.
+     */
+    public float rmsLevel;
+
+    /**
+     * Approximate short-term loudness of the audio in LUFS, or {@link LevelMeter#SILENCE_LUFS}.
+     */
+    public float loudnessLufs = LevelMeter.SILENCE_LUFS;
+
+    /**
+     * Total number of clipped samples seen by the audio source.
+     */
+    public int clipCount;
+
+    private final OnsetDetector onsetDetector = new OnsetDetector();
+    private final TempoTracker tempoTracker = new TempoTracker();
+    private final Chromagram chromagram = new Chromagram();
+    private final PerceptualBands bands = new PerceptualBands(BAND_COUNT, BAND_SCALE);
+    private final HarmonicPercussiveSeparator hpss;
+    private final SmoothingConfig smoothingConfig;
+    private final SmoothingChain valSmoothing, bandSmoothing;
+    private final NoiseFloorTracker noiseFloor;
+    private boolean noiseSuppression = false;
+    private int features = FEATURE_ALL;
+
     /**
      * Creates a buffer instance which expects raw FFT data of size equal to {@code customFftSize}.
      */
     public DataBuffers(int customFftSize) {
+        this(customFftSize, new SmoothingConfig());
+    }
+
+    /**
+     * Creates a buffer instance which expects raw FFT data of size equal to {@code customFftSize},
+     * and which smooths data according to {@code smoothingConfig}. The config may be shared with
+     * other instances.
+     */
+    public DataBuffers(int customFftSize, SmoothingConfig smoothingConfig) {
         int keptDataSize = getKeptDataSize(customFftSize);
         valBuffer = new float[keptDataSize];
         timeSmoothedValBuffer = new float[keptDataSize];
+        bandBuffer = new float[BAND_COUNT];
+        timeSmoothedBandBuffer = new float[BAND_COUNT];
+        harmonicBuffer = new float[keptDataSize];
+        percussiveBuffer = new float[keptDataSize];
+        harmonicBandBuffer = new float[BAND_COUNT];
+        percussiveBandBuffer = new float[BAND_COUNT];
+        hpss = new HarmonicPercussiveSeparator(keptDataSize);
+        noiseFloor = new NoiseFloorTracker(keptDataSize);
+        this.smoothingConfig = smoothingConfig;
+        valSmoothing = new SmoothingChain(keptDataSize, smoothingConfig);
+        bandSmoothing = new SmoothingChain(BAND_COUNT, smoothingConfig);
+        bands.configure(keptDataSize, DEFAULT_SAMPLE_RATE_HZ);
+        chromagram.setSmoothing(CHROMA_SMOOTHING);
+    }
+
+    /**
+     * Sets the sample rate, in Hz, of the audio which the FFT data was produced from. This is
+     * required for pitch analysis, which is disabled until a rate is set, and keeps
+     * {@link #bandBuffer} accurate, which otherwise assumes a rate of 44.1kHz.
+     */
+    public void setSampleRateHz(int sampleRateHz) {
+        bands.configure(valBuffer.length, sampleRateHz);
+        chromagram.configure(valBuffer.length, sampleRateHz);
     }
 
     /**
-     * Processes the provided FFT data and updates {@link #valBuffer} and
-     * {@link #timeSmoothedValBuffer} with it. Returns {@code true} if the passed FFT data contains
-     * any non-zero values.
+     * Sets the rate, in Hz, at which FFT data will be passed to {@link #updateData(byte[])}. This
+     * is required for tempo tracking, which is disabled until a rate is set.
+     */
+    public void setFrameRateHz(float frameRateHz) {
+        tempoTracker.setFrameRateHz(frameRateHz);
+        noiseFloor.setFrameRateHz(frameRateHz);
+        valSmoothing.setFrameRateHz(frameRateHz);
+        bandSmoothing.setFrameRateHz(frameRateHz);
+    }
+
+    /**
+     * Sets which of the optional analysis stages should be run by {@link #updateData(byte[])}, as a
+     * combination of {@code FEATURE_*} flags. Fields for disabled features keep their last values.
+     * All features are enabled by default.
+     *
+     * @throws IllegalArgumentException if {@code features} contains unknown flags
+     */
+    public void setFeatures(int features) {
+        this.features = resolveFeatures(features);
+    }
+
+    /**
+     * Returns the provided {@code FEATURE_*} flags, plus any flags which they depend on.
+     *
+     * @throws IllegalArgumentException if {@code features} contains unknown flags
+     */
+    public static int resolveFeatures(int features) {
+        if ((features & ~FEATURE_ALL) != 0) {
+            throw new IllegalArgumentException("Unknown feature flags: " + features);
+        }
+        if ((features & FEATURE_HPSS) != 0) {
+            features |= FEATURE_BANDS;
+        }
+        return features;
+    }
+
+    /**
+     * Returns the settings used to produce {@link #timeSmoothedValBuffer} and
+     * {@link #timeSmoothedBandBuffer}, which may be changed at any time from any thread.
+     */
+    public SmoothingConfig getSmoothingConfig() {
+        return smoothingConfig;
+    }
+
+    /**
+     * Sets whether steady background noise should be estimated and subtracted from the FFT data
+     * before it's stored in {@link #valBuffer}. This is intended for microphone input, where
+     * constant room noise would otherwise wash out the spectrum. Disabled by default.
+     */
+    public void setNoiseSuppression(boolean enabled) {
+        noiseSuppression = enabled;
+    }
+
+    /**
+     * Updates {@link #pitchHz} and {@link #pitchConfidence} with a pitch detected by the audio
+     * source for the current frame.
+     */
+    public void setPitch(float pitchHz, float pitchConfidence) {
+        this.pitchHz = pitchHz;
+        this.pitchConfidence = pitchConfidence;
+    }
+
+    /**
+     * Updates the level fields ({@link #peakLevel}, {@link #rmsLevel}, etc) with the current
+     * results from the audio source's {@link LevelMeter}, or marks them as unavailable if
+     * {@code meter} is {@code null}.
+     */
+    public void setLevels(LevelMeter meter) {
+        levelsAvailable = (meter != null);
+        if (meter == null) {
+            peakLevel = 0;
+            peakHoldLevel = 0;
+            rmsLevel = 0;
+            loudnessLufs = LevelMeter.SILENCE_LUFS;
+            clipCount = 0;
+            return;
+        }
+        peakLevel = meter.getPeak();
+        peakHoldLevel = meter.getPeakHold();
+        rmsLevel = meter.getRms();
+        loudnessLufs = meter.getLoudnessLufs();
+        clipCount = meter.getClipCount();
+    }
+
+    /**
+     * Overwrites the fields of this instance with a mix of {@code from} and {@code to}, where
+     * {@code toWeight} of 0.0f gives {@code from} and 1.0f gives {@code to}. This is used to
+     * crossfade between audio sources, so the inputs may have different FFT sizes: per-bin
+     * fields are mapped across by relative frequency. Fields which can't be meaningfully mixed,
+     * such as {@link #onset} and {@link #tempoBpm}, are taken from whichever input is weighted
+     * more heavily.
+     */
+    public void blend(DataBuffers from, DataBuffers to, float toWeight) {
+        blend(from.valBuffer, to.valBuffer, toWeight, valBuffer);
+        blend(from.timeSmoothedValBuffer, to.timeSmoothedValBuffer, toWeight,
+            timeSmoothedValBuffer);
+        blend(from.harmonicBuffer, to.harmonicBuffer, toWeight, harmonicBuffer);
+        blend(from.percussiveBuffer, to.percussiveBuffer, toWeight, percussiveBuffer);
+        blend(from.bandBuffer, to.bandBuffer, toWeight, bandBuffer);
+        blend(from.timeSmoothedBandBuffer, to.timeSmoothedBandBuffer, toWeight,
+            timeSmoothedBandBuffer);
+        blend(from.harmonicBandBuffer, to.harmonicBandBuffer, toWeight, harmonicBandBuffer);
+        blend(from.percussiveBandBuffer, to.percussiveBandBuffer, toWeight, percussiveBandBuffer);
+        blend(from.chromaBuffer, to.chromaBuffer, toWeight, chromaBuffer);
+
+        float fromWeight = 1 - toWeight;
+        spectralFlux = from.spectralFlux * fromWeight + to.spectralFlux * toWeight;
+        onsetStrength = from.onsetStrength * fromWeight + to.onsetStrength * toWeight;
+
+        DataBuffers major = (toWeight < 0.5f) ? from : to;
+        if (from.levelsAvailable && to.levelsAvailable) {
+            peakLevel = from.peakLevel * fromWeight + to.peakLevel * toWeight;
+            peakHoldLevel = from.peakHoldLevel * fromWeight + to.peakHoldLevel * toWeight;
+            rmsLevel = from.rmsLevel * fromWeight + to.rmsLevel * toWeight;
+            loudnessLufs = from.loudnessLufs * fromWeight + to.loudnessLufs * toWeight;
+        } else {
+            // mixing a real level with a placeholder would be meaningless
+            peakLevel = major.peakLevel;
+            peakHoldLevel = major.peakHoldLevel;
+            rmsLevel = major.rmsLevel;
+            loudnessLufs = major.loudnessLufs;
+        }
+        levelsAvailable = major.levelsAvailable;
+        onset = major.onset;
+        tempoBpm = major.tempoBpm;
+        beatPhase = major.beatPhase;
+        pitchHz = major.pitchHz;
+        pitchConfidence = major.pitchConfidence;
+        clipCount = major.clipCount;
+    }
+
+    private static void blend(float[] from, float[] to, float toWeight, float[] out) {
+        float fromWeight = 1 - toWeight;
+        if (from.length == out.length && to.length == out.length) {
+            for (int i = 0; i < out.length; ++i) {
+                out[i] = from[i] * fromWeight + to[i] * toWeight;
+            }
+            return;
+        }
+        for (int i = 0; i < out.length; ++i) {
+            out[i] = from[(int)((long)i * from.length / out.length)] * fromWeight
+                + to[(int)((long)i * to.length / out.length)] * toWeight;
+        }
+    }
+
+    /**
+     * Processes the provided FFT data and updates {@link #valBuffer},
+     * {@link #timeSmoothedValBuffer}, {@link #spectralFlux}, and the fields of any enabled
+     * features (see {@link #setFeatures(int)}) with it. Returns {@code true} if the passed FFT
+     * data contains any non-zero values.
      *
      * @param fft The raw FFT data of the format produced by a {@link Visualizer}.
      * @throws IllegalStateException if the provided buffer doesn't match the expected size provided
@@ -60,9 +399,11 @@ public class DataBuffers {
             throw new IllegalStateException(
                 "Data size=" + fft.length + " doesn't match expected size=" + expectfft);
         }
+        Tracer.begin("DataBuffers.updateData");
 
         int key;
         float magnitude;
+        float flux = 0;
         boolean valueFound = false;
         // combine and store the non-endcap real+imaginary pairs (pairwise from idx 2 onwards)
         for (int ffti = 2, bufferi = 0; ffti < fft.length; ffti += 2, ++bufferi) {
@@ -72,14 +413,46 @@ public class DataBuffers {
                 valueFound = true;
             }
             magnitude = PrecalcColorUtil.keyToMagnitude(key);
+            if (noiseSuppression) {
+                magnitude = noiseFloor.clean(bufferi, magnitude);
+            }
+            // Accumulate any increase from the previous frame, before it's overwritten.
+            if (magnitude > valBuffer[bufferi]) {
+                flux += magnitude - valBuffer[bufferi];
+            }
             valBuffer[bufferi] = magnitude;
+        }
+        valSmoothing.apply(valBuffer, timeSmoothedValBuffer);
+
+        if (noiseSuppression) {
+            noiseFloor.endFrame();
+        }
+
+        if ((features & FEATURE_BANDS) != 0) {
+            bands.update(valBuffer, bandBuffer);
+            bandSmoothing.apply(bandBuffer, timeSmoothedBandBuffer);
+        }
+
+        if ((features & FEATURE_HPSS) != 0) {
+            hpss.update(valBuffer, harmonicBuffer, percussiveBuffer);
+            bands.update(harmonicBuffer, harmonicBandBuffer);
+            bands.update(percussiveBuffer, percussiveBandBuffer);
+        }
+
+        spectralFlux = flux / valBuffer.length;
+        if ((features & FEATURE_RHYTHM) != 0) {
+            onset = onsetDetector.update(spectralFlux);
+            onsetStrength = onsetDetector.getStrength();
+
+            tempoTracker.update(spectralFlux, onset);
+            tempoBpm = tempoTracker.getTempoBpm();
+            beatPhase = tempoTracker.getBeatPhase();
+        }
 
-            // Update smoothed value using new raw value. Go with a linear decrease in the analyzer,
-            // this avoids the appearance of disconnectedness between analyzer and voiceprint,
-            // without making the analyzer look too jittery.
-            timeSmoothedValBuffer[bufferi] = Math.max(magnitude,
-                    timeSmoothedValBuffer[bufferi] - TIME_SMOOTHING_FALLOFF);
+        if ((features & FEATURE_CHROMA) != 0) {
+            chromagram.update(valBuffer, chromaBuffer);
         }
+        Tracer.end();
         return valueFound;
     }
 
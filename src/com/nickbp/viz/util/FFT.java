@@ -112,6 +112,7 @@ public class FFT {
             throw new IllegalArgumentException("FFT.forward: The length of the passed sample " +
                     "buffer must be equal to timeSize().");
         }
+        Tracer.begin("FFT.forward");
         // copy samples to real/imag in bit-reversed order
         for (int i = 0; i < buffer.length; i++) {
             real[i] = (byte)(buffer[reverse[i]] / 128);
@@ -119,5 +120,68 @@ public class FFT {
         }
         // perform the fft
         fft();
+        Tracer.end();
+    }
+
+    /**
+     * Writes the result of the last {@link #forward(short[])} into <code>fftData</code>, in the
+     * same format as produced by a {@link android.media.audiofx.Visualizer}: real+imaginary byte
+     * pairs from index 2 onwards. <code>fftData</code> must be <code>timeSize</code> long.
+     */
+    public void toVisualizerFormat(byte[] fftData) {
+        // Fill in indexes 2 thru end, to match Visualizer output. Drop the last value in the
+        // original fft data, in favor of the first value.
+        for (int i = 1; i < fftData.length/2; ++i) {
+            fftData[i*2] = (byte)real[i];
+            fftData[i*2 + 1] = (byte)imag[i];
+        }
+    }
+
+    /**
+     * Performs a forward transform on <code>buffer</code>, without any quantization of the input.
+     *
+     * @param buffer the buffer to analyze
+     */
+    public void forward(float[] buffer) {
+        if (buffer.length != timeSize) {
+            throw new IllegalArgumentException("FFT.forward: The length of the passed sample " +
+                    "buffer must be equal to timeSize().");
+        }
+        // copy samples to real/imag in bit-reversed order
+        for (int i = 0; i < buffer.length; i++) {
+            real[i] = buffer[reverse[i]];
+            imag[i] = 0;
+        }
+        // perform the fft
+        fft();
+    }
+
+    /**
+     * Performs an in-place inverse transform on the spectrum currently in the real and imag
+     * arrays, such as one produced by {@link #forward(float[])}. Afterwards, real and imag contain
+     * the time domain signal.
+     */
+    public void inverse() {
+        // conjugate, then bit-reverse in place so that fft() gets the order it expects
+        for (int i = 0; i < timeSize; i++) {
+            imag[i] = -imag[i];
+        }
+        for (int i = 0; i < timeSize; i++) {
+            int j = reverse[i];
+            if (i < j) {
+                float tmp = real[i];
+                real[i] = real[j];
+                real[j] = tmp;
+                tmp = imag[i];
+                imag[i] = imag[j];
+                imag[j] = tmp;
+            }
+        }
+        fft();
+        // conjugate again and scale
+        for (int i = 0; i < timeSize; i++) {
+            real[i] /= timeSize;
+            imag[i] = -imag[i] / timeSize;
+        }
     }
 }
@@ -0,0 +1,76 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Splits spectrum data into harmonic and percussive parts, using median filtering (HPSS).
+ *
+ * Harmonic energy is steady over time, so a median across recent frames of each value keeps it
+ * while rejecting brief spikes. Percussive energy is broadband within a frame, so a median across
+ * neighboring values keeps it while rejecting narrow peaks. Each value is then divided between the
+ * two parts with a soft (Wiener) mask based on the two medians.
+ *
+ * Both medians are sliding windows over {@link SlidingMedian}s: one per value along time, and one
+ * which is swept across each frame along frequency. Each update costs O(log n) per value.
+ */
+public class HarmonicPercussiveSeparator {
+    // Number of recent frames in each value's harmonic (time) median.
+    private static final int TIME_WINDOW = 17;
+    // Number of neighboring values in each frame's percussive (frequency) median. Must be odd.
+    private static final int FREQ_WINDOW = 17;
+
+    private final SlidingMedian[] timeMedians;
+    private final SlidingMedian freqMedian = new SlidingMedian(FREQ_WINDOW);
+
+    /**
+     * Creates an instance which expects spectrum data with {@code binCount} values.
+     */
+    public HarmonicPercussiveSeparator(int binCount) {
+        timeMedians = new SlidingMedian[binCount];
+        for (int i = 0; i < binCount; ++i) {
+            timeMedians[i] = new SlidingMedian(TIME_WINDOW);
+        }
+    }
+
+    /**
+     * Adds the provided {@code spectrum} frame, and writes its harmonic and percussive parts to
+     * {@code harmonic} and {@code percussive}, which must be the same size as {@code spectrum}.
+     * For each value, {@code harmonic[i] + percussive[i] == spectrum[i]}.
+     */
+    public void update(float[] spectrum, float[] harmonic, float[] percussive) {
+        final int binCount = spectrum.length;
+        final int halfWindow = FREQ_WINDOW / 2;
+
+        // Start the frequency window centered on value 0, padding beyond the edges with zeros.
+        freqMedian.reset(0);
+        for (int i = 0; i < halfWindow; ++i) {
+            freqMedian.add(i < binCount ? spectrum[i] : 0);
+        }
+
+        for (int i = 0; i < binCount; ++i) {
+            int next = i + halfWindow;
+            float p = freqMedian.add(next < binCount ? spectrum[next] : 0);
+            float h = timeMedians[i].add(spectrum[i]);
+
+            float h2 = h * h, p2 = p * p;
+            float total = h2 + p2;
+            float harmonicShare = (total > 0) ? h2 / total : 0.5f;
+            harmonic[i] = spectrum[i] * harmonicShare;
+            percussive[i] = spectrum[i] - harmonic[i];
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Measures the level of raw audio samples: sample peak with a decaying peak-hold, RMS, an
+ * approximation of short-term loudness, and a count of clipped samples.
+ *
+ * Loudness follows ITU-R BS.1770: samples are K-weighted by two biquad filters, then the mean
+ * square is taken over a 3 second window. Both the RMS and loudness windows are kept as rings of
+ * fixed-size block sums with a running total, so each sample costs a constant amount of work and
+ * nothing is allocated after construction.
+ *
+ * Audio is fed from a single audio thread, either as continuous samples via {@code process()} or
+ * as short snapshots separated by gaps via {@link #processSnapshot(byte[], int, int)}. In both
+ * cases the windows, the peak-hold, and its fall are timed by the audio's duration, so that they
+ * run in real time. The results may be read from any thread without locking. Each result is
+ * individually up to date as of the end of the most recent call.
+ */
+public class LevelMeter {
+    // Length of each block sum, in milliseconds.
+    private static final int BLOCK_MS = 100;
+    // Number of blocks in the RMS window (300ms).
+    private static final int RMS_BLOCKS = 3;
+    // Number of blocks in the short-term loudness window (3s).
+    private static final int LOUDNESS_BLOCKS = 30;
+    // How long the peak-hold stays at its peak before it starts to fall.
+    private static final float PEAK_HOLD_SECONDS = 1.5f;
+    // How quickly the peak-hold falls after the hold time, in dB per second.
+    private static final float PEAK_FALL_DB_PER_SECOND = 20;
+    /** The loudness which is reported when there's no signal at all. */
+    public static final float SILENCE_LUFS = -70;
+
+    private int sampleRateHz = -1;
+    private int blockLength;
+    private float peakFallPerSample;
+
+    // K-weighting stage 1 (high shelf) and stage 2 (high pass), as direct form I biquads.
+    private final Biquad shelf = new Biquad();
+    private final Biquad highPass = new Biquad();
+
+    // The block currently being filled, and how many samples' worth of audio it covers so far.
+    // Fractional only when a snapshot's interval doesn't line up with the blocks.
+    private double blockSamples = 0;
+    private double blockSquares = 0, blockWeightedSquares = 0;
+
+    // Completed blocks, with running totals across each window.
+    private final double[] rmsRing = new double[RMS_BLOCKS];
+    private final double[] loudnessRing = new double[LOUDNESS_BLOCKS];
+    private int rmsRingPos = 0, loudnessRingPos = 0;
+    private double rmsTotal = 0, loudnessTotal = 0;
+
+    private float peakHoldInternal = 0;
+    private int samplesSincePeak = 0;
+    private int clipCountInternal = 0;
+
+    // Published results, readable from any thread.
+    private volatile float peak = 0;
+    private volatile float peakHold = 0;
+    private volatile float rms = 0;
+    private volatile float loudnessLufs = SILENCE_LUFS;
+    private volatile int clipCount = 0;
+
+    /**
+     * Sets the sample rate of the audio to be processed, resetting the meter if it differs from the
+     * current rate.
+     */
+    public void setSampleRateHz(int sampleRateHz) {
+        if (sampleRateHz == this.sampleRateHz) {
+            return;
+        }
+        this.sampleRateHz = sampleRateHz;
+        blockLength = Math.max(1, sampleRateHz * BLOCK_MS / 1000);
+        peakFallPerSample = (float)Math.pow(10, -PEAK_FALL_DB_PER_SECOND / 20 / sampleRateHz);
+
+        // BS.1770 filters, recalculated for the actual sample rate.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRateHz);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        shelf.set((vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0,
+            (vh - vb * k / q + k * k) / a0, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRateHz);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        highPass.set(1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+
+        blockSamples = 0;
+        blockSquares = blockWeightedSquares = 0;
+        for (int i = 0; i < RMS_BLOCKS; ++i) {
+            rmsRing[i] = 0;
+        }
+        for (int i = 0; i < LOUDNESS_BLOCKS; ++i) {
+            loudnessRing[i] = 0;
+        }
+        rmsTotal = loudnessTotal = 0;
+        peakHoldInternal = 0;
+        samplesSincePeak = 0;
+    }
+
+    /**
+     * Processes the provided continuous 16-bit PCM samples, as produced by {@link android.media.AudioRecord}.
+     * Does nothing until a sample rate has been provided via {@link #setSampleRateHz(int)}.
+     */
+    public void process(short[] samples, int count) {
+        if (sampleRateHz <= 0) {
+            return;
+        }
+        float bufferPeak = 0;
+        for (int i = 0; i < count; ++i) {
+            short sample = samples[i];
+            bufferPeak = addSample(sample / 32768f,
+                sample == Short.MAX_VALUE || sample == Short.MIN_VALUE, bufferPeak);
+        }
+        publish(bufferPeak, count);
+    }
+
+    /**
+     * Processes a snapshot of {@code count} 8-bit unsigned PCM samples, which stands for
+     * {@code intervalSamples} of audio. This is the form produced by
+     * {@link android.media.audiofx.Visualizer} waveform capture, which only captures a short
+     * stretch of audio each time it calls back, leaving a gap until the next capture.
+     *
+     * The snapshot's levels are taken to hold for its whole interval, so that the windows and the
+     * peak-hold are timed by the capture interval rather than by the samples received. The
+     * K-weighting filters start afresh for each snapshot, so as not to filter across the gap. Does
+     * nothing until a sample rate has been provided via {@link #setSampleRateHz(int)}.
+     */
+    public void processSnapshot(byte[] samples, int count, int intervalSamples) {
+        if (sampleRateHz <= 0 || count <= 0) {
+            return;
+        }
+        shelf.reset();
+        highPass.reset();
+        float bufferPeak = 0;
+        double squares = 0, weightedSquares = 0;
+        for (int i = 0; i < count; ++i) {
+            int sample = samples[i] & 0xff;
+            if (sample == 0 || sample == 0xff) {
+                ++clipCountInternal;
+            }
+            float val = (sample - 128) / 128f;
+            double weighted = highPass.filter(shelf.filter(val));
+            squares += val * val;
+            weightedSquares += weighted * weighted;
+            bufferPeak = Math.max(bufferPeak, Math.abs(val));
+        }
+
+        // Spread the snapshot's mean squares over its interval, across as many blocks as that
+        // covers.
+        intervalSamples = Math.max(count, intervalSamples);
+        double meanSquare = squares / count;
+        double meanWeightedSquare = weightedSquares / count;
+        double remaining = intervalSamples;
+        while (remaining > 0) {
+            double take = Math.min(remaining, blockLength - blockSamples);
+            blockSquares += meanSquare * take;
+            blockWeightedSquares += meanWeightedSquare * take;
+            blockSamples += take;
+            remaining -= take;
+            if (blockSamples >= blockLength) {
+                endBlock();
+            }
+        }
+        publish(bufferPeak, intervalSamples);
+    }
+
+    private float addSample(float sample, boolean clipped, float bufferPeak) {
+        if (clipped) {
+            ++clipCountInternal;
+        }
+        float abs = Math.abs(sample);
+        double weighted = highPass.filter(shelf.filter(sample));
+        blockSquares += sample * sample;
+        blockWeightedSquares += weighted * weighted;
+        if (++blockSamples >= blockLength) {
+            endBlock();
+        }
+        return Math.max(bufferPeak, abs);
+    }
+
+    private void endBlock() {
+        rmsTotal += blockSquares - rmsRing[rmsRingPos];
+        rmsRing[rmsRingPos] = blockSquares;
+        rmsRingPos = (rmsRingPos + 1) % RMS_BLOCKS;
+
+        loudnessTotal += blockWeightedSquares - loudnessRing[loudnessRingPos];
+        loudnessRing[loudnessRingPos] = blockWeightedSquares;
+        loudnessRingPos = (loudnessRingPos + 1) % LOUDNESS_BLOCKS;
+        if (loudnessRingPos == 0) {
+            // Avoid accumulating rounding error in the running totals.
+            rmsTotal = sum(rmsRing);
+            loudnessTotal = sum(loudnessRing);
+        }
+
+        blockSamples = 0;
+        blockSquares = blockWeightedSquares = 0;
+    }
+
+    /**
+     * Publishes the results after {@code count} samples' worth of audio, whose peak was
+     * {@code bufferPeak}.
+     */
+    private void publish(float bufferPeak, int count) {
+        if (bufferPeak >= peakHoldInternal) {
+            peakHoldInternal = bufferPeak;
+            samplesSincePeak = 0;
+        } else {
+            int holdSamples = (int)(PEAK_HOLD_SECONDS * sampleRateHz);
+            int fallSamples = Math.min(count, samplesSincePeak + count - holdSamples);
+            if (fallSamples > 0) {
+                peakHoldInternal = Math.max(bufferPeak,
+                    peakHoldInternal * (float)Math.pow(peakFallPerSample, fallSamples));
+            }
+            samplesSincePeak += count;
+        }
+
+        double rmsMean = Math.max(0, rmsTotal) / (RMS_BLOCKS * blockLength);
+        double loudnessMean = Math.max(0, loudnessTotal) / (LOUDNESS_BLOCKS * blockLength);
+        peak = bufferPeak;
+        peakHold = peakHoldInternal;
+        rms = (float)Math.sqrt(rmsMean);
+        loudnessLufs = (loudnessMean > 0)
+            ? Math.max(SILENCE_LUFS, (float)(-0.691 + 10 * Math.log10(loudnessMean)))
+            : SILENCE_LUFS;
+        clipCount = clipCountInternal;
+    }
+
+    private static double sum(double[] vals) {
+        double total = 0;
+        for (double v : vals) {
+            total += v;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the largest sample magnitude in the most recently processed buffer, from 0.0f to
+     * 1.0f (full scale).
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * Returns the recent peak sample magnitude, which is held for a moment and then falls
+     * gradually. From 0.0f to 1.0f.
+     */
+    public float getPeakHold() {
+        return peakHold;
+    }
+
+    /**
+     * Returns the RMS level over the last 300ms, from 0.0f to 1.0f.
+     */
+    public float getRms() {
+        return rms;
+    }
+
+    /**
+     * Returns the short-term (3s) loudness in LUFS, or {@link #SILENCE_LUFS} if there's no signal.
+     */
+    public float getLoudnessLufs() {
+        return loudnessLufs;
+    }
+
+    /**
+     * Returns the total number of clipped (full scale) samples which have been processed.
+     */
+    public int getClipCount() {
+        return clipCount;
+    }
+
+    /**
+     * A single biquad filter section, with its history.
+     */
+    private static class Biquad {
+        private double b0, b1, b2, a1, a2;
+        private double x1, x2, y1, y2;
+
+        private void set(double b0, double b1, double b2, double a1, double a2) {
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+            x1 = x2 = y1 = y2 = 0;
+        }
+
+        private void reset() {
+            x1 = x2 = y1 = y2 = 0;
+        }
+
+        private double filter(double x) {
+            double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+            x2 = x1;
+            x1 = x;
+            y2 = y1;
+            y1 = y;
+            return y;
+        }
+    }
+}
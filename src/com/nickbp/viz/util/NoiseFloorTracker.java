@@ -0,0 +1,119 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Estimates the steady background noise in spectrum data, such as HVAC or crowd hum, and subtracts
+ * it from each frame.
+ *
+ * The noise floor of each value is tracked with minimum statistics: the minimum of a smoothed copy
+ * of the value over a window of a couple of seconds, on the basis that even busy audio has brief
+ * gaps where only the noise remains. The window is split into sub-windows, where only the current
+ * sub-window's minimum is updated per frame, and a ring of completed sub-window minima is folded
+ * in once per sub-window. This avoids any per-frame sorting or scanning of the window.
+ */
+public class NoiseFloorTracker {
+    private static final String TAG = "NoiseFloorTracker";
+
+    // Length of the minimum search window. Should be longer than any sustained note or word.
+    private static final float WINDOW_SECONDS = 2;
+    // Number of sub-windows which the window is split into.
+    private static final int SUBWINDOWS = 8;
+    // How much of the previous smoothed value to retain each frame. Larger value = smoother.
+    private static final float SMOOTHING = 0.8f;
+    // How much of the noise estimate to subtract. This is above 1 both to remove noise peaks above
+    // the average, and to make up for the minimum being biased below the average noise level.
+    private static final float OVER_SUBTRACTION = 2;
+    // Fraction of each value which is always kept, to avoid flickering ("musical noise") in bins
+    // which hover around the noise floor.
+    private static final float SPECTRAL_FLOOR = 0.05f;
+
+    private final int binCount;
+    private final float[] smoothed;
+    // Minimum of the current sub-window, per value.
+    private final float[] subMin;
+    // Ring of completed sub-window minima: sub-window s for value i is at [s * binCount + i].
+    private final float[] subMinRing;
+    // Minimum across the ring, per value.
+    private final float[] ringMin;
+    private int ringPos = 0;
+    private int framesPerSubwindow = 1;
+    private int frameInSubwindow = 0;
+
+    /**
+     * Creates an instance which expects spectrum data with {@code binCount} values.
+     */
+    public NoiseFloorTracker(int binCount) {
+        this.binCount = binCount;
+        smoothed = new float[binCount];
+        subMin = new float[binCount];
+        subMinRing = new float[binCount * SUBWINDOWS];
+        ringMin = new float[binCount];
+        Arrays.fill(subMin, Float.MAX_VALUE);
+        Arrays.fill(subMinRing, Float.MAX_VALUE);
+        Arrays.fill(ringMin, Float.MAX_VALUE);
+    }
+
+    /**
+     * Sets the rate, in Hz, at which frames will be provided. This determines how many frames make
+     * up the minimum search window.
+     */
+    public void setFrameRateHz(float frameRateHz) {
+        framesPerSubwindow = Math.max(1, Math.round(WINDOW_SECONDS * frameRateHz / SUBWINDOWS));
+        Log.d(TAG, "Using " + framesPerSubwindow + " frames per subwindow at " + frameRateHz + "Hz");
+    }
+
+    /**
+     * Updates the noise floor of value {@code bin} with the provided {@code magnitude}, and returns
+     * the magnitude with the noise subtracted. Should be called for each value of a frame, followed
+     * by {@link #endFrame()}.
+     */
+    public float clean(int bin, float magnitude) {
+        float s = SMOOTHING * smoothed[bin] + (1 - SMOOTHING) * magnitude;
+        smoothed[bin] = s;
+        if (s < subMin[bin]) {
+            subMin[bin] = s;
+        }
+        float noise = Math.min(ringMin[bin], subMin[bin]);
+        return Math.max(magnitude - OVER_SUBTRACTION * noise, SPECTRAL_FLOOR * magnitude);
+    }
+
+    /**
+     * Marks the end of a frame. Once per sub-window, this moves the sub-window minima into the ring
+     * and recomputes the minimum across the ring.
+     */
+    public void endFrame() {
+        if (++frameInSubwindow < framesPerSubwindow) {
+            return;
+        }
+        frameInSubwindow = 0;
+        System.arraycopy(subMin, 0, subMinRing, ringPos * binCount, binCount);
+        Arrays.fill(subMin, Float.MAX_VALUE);
+        ringPos = (ringPos + 1) % SUBWINDOWS;
+        for (int i = 0; i < binCount; ++i) {
+            float min = Float.MAX_VALUE;
+            for (int s = i; s < subMinRing.length; s += binCount) {
+                min = Math.min(min, subMinRing[s]);
+            }
+            ringMin[i] = min;
+        }
+    }
+}
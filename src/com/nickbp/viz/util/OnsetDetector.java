@@ -0,0 +1,82 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Detects note/beat onsets from the spectral flux of consecutive spectrum frames.
+ *
+ * Each frame's flux is compared against an adaptive threshold, derived from the mean flux over a
+ * fixed window of preceding frames. An onset is reported when the flux rises above that
+ * threshold. The window is kept in a preallocated ring with a running sum, so each update is O(1)
+ * and allocation-free.
+ */
+public class OnsetDetector {
+    // How many preceding frames the threshold is averaged over.
+    private static final int WINDOW_FRAMES = 16;
+    // How far above the recent mean the flux must be to count as an onset.
+    private static final float THRESHOLD_MULTIPLIER = 1.5f;
+    // Minimum threshold, which keeps near-silence from producing onsets out of noise.
+    private static final float THRESHOLD_MINIMUM = 0.005f;
+
+    private final float[] fluxHistory = new float[WINDOW_FRAMES];
+    private int historyPos = 0;
+    private int historyCount = 0;
+    private float historySum = 0;
+    private boolean aboveThreshold = false;
+
+    /**
+     * Whether the most recent frame passed to {@link #update(float)} was an onset.
+     */
+    private boolean onset = false;
+
+    /**
+     * How far the most recent onset's flux exceeded the threshold, relative to the threshold.
+     * Zero if the most recent frame wasn't an onset.
+     */
+    private float strength = 0;
+
+    /**
+     * Accepts the spectral flux for a new frame, and returns whether it's an onset.
+     */
+    public boolean update(float flux) {
+        float mean = (historyCount == 0) ? 0 : historySum / historyCount;
+        float threshold = Math.max(THRESHOLD_MINIMUM, mean * THRESHOLD_MULTIPLIER);
+
+        boolean nowAbove = flux > threshold;
+        // only report the rising edge, rather than every frame that stays above the threshold
+        onset = nowAbove && !aboveThreshold;
+        strength = onset ? (flux - threshold) / threshold : 0;
+        aboveThreshold = nowAbove;
+
+        // replace the oldest value in the window with this one
+        historySum += flux - fluxHistory[historyPos];
+        fluxHistory[historyPos] = flux;
+        historyPos = (historyPos + 1) % WINDOW_FRAMES;
+        if (historyCount < WINDOW_FRAMES) {
+            ++historyCount;
+        }
+        return onset;
+    }
+
+    public boolean isOnset() {
+        return onset;
+    }
+
+    public float getStrength() {
+        return strength;
+    }
+}
@@ -0,0 +1,267 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Rebins linear spectrum data into a smaller number of perceptually even bands, on either the mel
+ * or the Bark scale.
+ *
+ * Each band is a triangular filter over the spectrum values around its center frequency, with a
+ * softened A-weighting gain folded in so that the bands lean towards perceived loudness without
+ * hiding the bass, which full A-weighting would all but remove from the display. The filters are
+ * precomputed into a sparse matrix stored in compressed rows (CSR): row b lists the spectrum
+ * indexes and weights contributing to band b. Matrices are cached and shared across instances,
+ * keyed by spectrum size, sample rate, band count, and scale, so each update is a single sparse
+ * multiply.
+ */
+public class PerceptualBands {
+    private static final String TAG = "PerceptualBands";
+
+    public static final int SCALE_MEL = 0;
+    public static final int SCALE_BARK = 1;
+
+    // Frequencies below this are mostly rumble, and are too coarsely resolved to split into bands.
+    private static final float MIN_HZ = 20;
+    // Fraction of the A-weighting curve to apply, in dB, and the most that it may attenuate any
+    // band. Together these turn the -19dB that A-weighting gives 100Hz into -6dB.
+    private static final double WEIGHTING_AMOUNT = 0.5;
+    private static final double MIN_WEIGHTING_GAIN = 0.5;
+
+    private static final Map<MatrixKey, Matrix> matrixCache = new HashMap<MatrixKey, Matrix>();
+
+    private final int bandCount;
+    private final int scale;
+    private Matrix matrix = null;
+
+    /**
+     * Creates an instance which produces {@code bandCount} bands on the provided scale, one of
+     * {@link #SCALE_MEL} or {@link #SCALE_BARK}. {@link #configure(int, int)} must be called before
+     * any bands are produced.
+     */
+    public PerceptualBands(int bandCount, int scale) {
+        if (scale != SCALE_MEL && scale != SCALE_BARK) {
+            throw new IllegalArgumentException("Unknown scale: " + scale);
+        }
+        this.bandCount = bandCount;
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the number of bands which are written by {@link #update(float[], float[])}.
+     */
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Prepares the filter matrix for spectrum data with {@code binCount} values from an FFT at the
+     * provided sample rate, where value i is FFT bin i + 1, as in {@link DataBuffers#valBuffer}.
+     * Reuses a cached matrix if one already exists for these parameters.
+     */
+    public void configure(int binCount, int sampleRateHz) {
+        MatrixKey key = new MatrixKey(binCount, sampleRateHz, bandCount, scale);
+        if (matrix != null && matrix.key.equals(key)) {
+            return;
+        }
+        synchronized (matrixCache) {
+            matrix = matrixCache.get(key);
+            if (matrix == null) {
+                matrix = new Matrix(key);
+                matrixCache.put(key, matrix);
+            }
+        }
+    }
+
+    /**
+     * Rebins the provided {@code spectrum} into {@code bands}, which must have
+     * {@link #getBandCount()} values. Each band is a weighted average of the spectrum values it
+     * covers, so values stay within 0.0f to 1.0f. Does nothing until
+     * {@link #configure(int, int)} has been called.
+     */
+    public void update(float[] spectrum, float[] bands) {
+        if (matrix == null) {
+            return;
+        }
+        final int[] rowStart = matrix.rowStart;
+        final int[] binIndex = matrix.binIndex;
+        final float[] weight = matrix.weight;
+        for (int b = 0; b < bandCount; ++b) {
+            float sum = 0;
+            for (int i = rowStart[b]; i < rowStart[b + 1]; ++i) {
+                sum += spectrum[binIndex[i]] * weight[i];
+            }
+            bands[b] = sum;
+        }
+    }
+
+    private static double hzToScale(double hz, int scale) {
+        if (scale == SCALE_MEL) {
+            return 2595 * Math.log10(1 + hz / 700);
+        } else {
+            // Traunmueller's approximation
+            return 26.81 * hz / (1960 + hz) - 0.53;
+        }
+    }
+
+    private static double scaleToHz(double val, int scale) {
+        if (scale == SCALE_MEL) {
+            return 700 * (Math.pow(10, val / 2595) - 1);
+        } else {
+            return 1960 * (val + 0.53) / (26.28 - val);
+        }
+    }
+
+    /**
+     * Returns the A-weighting gain at the provided frequency, as a linear amplitude factor which
+     * is 1.0 at 1kHz.
+     */
+    private static double aWeightGain(double hz) {
+        double f2 = hz * hz;
+        double num = 12194.0 * 12194.0 * f2 * f2;
+        double den = (f2 + 20.6 * 20.6)
+            * Math.sqrt((f2 + 107.7 * 107.7) * (f2 + 737.9 * 737.9))
+            * (f2 + 12194.0 * 12194.0);
+        // +2.0dB normalizes the curve to 0dB at 1kHz
+        return num / den * 1.2589;
+    }
+
+    /**
+     * Returns the gain applied to a band at the provided frequency: a fraction of the A-weighting
+     * curve, with its low end cut off at {@link #MIN_WEIGHTING_GAIN}.
+     */
+    private static double weightingGain(double hz) {
+        return Math.max(MIN_WEIGHTING_GAIN, Math.pow(aWeightGain(hz), WEIGHTING_AMOUNT));
+    }
+
+    private static class MatrixKey {
+        private final int binCount, sampleRateHz, bandCount, scale;
+
+        private MatrixKey(int binCount, int sampleRateHz, int bandCount, int scale) {
+            this.binCount = binCount;
+            this.sampleRateHz = sampleRateHz;
+            this.bandCount = bandCount;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatrixKey)) {
+                return false;
+            }
+            MatrixKey k = (MatrixKey)o;
+            return binCount == k.binCount && sampleRateHz == k.sampleRateHz
+                && bandCount == k.bandCount && scale == k.scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((binCount * 31 + sampleRateHz) * 31 + bandCount) * 31 + scale;
+        }
+    }
+
+    /**
+     * A precomputed filter matrix in compressed row form. Immutable once built, so that it may be
+     * shared between threads.
+     */
+    private static class Matrix {
+        private final MatrixKey key;
+        // Row b's entries are at indexes rowStart[b] (inclusive) to rowStart[b + 1] (exclusive).
+        private final int[] rowStart;
+        private final int[] binIndex;
+        private final float[] weight;
+
+        private Matrix(MatrixKey key) {
+            this.key = key;
+            final int binCount = key.binCount;
+            final int bandCount = key.bandCount;
+            int fftSize = (binCount + 1) * 2;
+            double binWidthHz = key.sampleRateHz / (double)fftSize;
+            double minScale = hzToScale(Math.max(MIN_HZ, binWidthHz), key.scale);
+            double maxScale = hzToScale(binCount * binWidthHz, key.scale);
+            double step = (maxScale - minScale) / (bandCount + 1);
+
+            // Scratch space for the widest possible row, and the rows as they're built.
+            float[] rowWeights = new float[binCount];
+            // Neighboring triangles overlap by half, so each bin lands in at most two bands, plus up
+            // to two interpolated entries for each band narrower than a bin.
+            int[] tmpIndex = new int[(binCount + bandCount) * 2];
+            float[] tmpWeight = new float[(binCount + bandCount) * 2];
+            double maxGain = 0;
+            rowStart = new int[bandCount + 1];
+            int entries = 0;
+
+            for (int b = 0; b < bandCount; ++b) {
+                double loHz = scaleToHz(minScale + b * step, key.scale);
+                double centerHz = scaleToHz(minScale + (b + 1) * step, key.scale);
+                double hiHz = scaleToHz(minScale + (b + 2) * step, key.scale);
+
+                // Value i is FFT bin i + 1, centered at (i + 1) * binWidthHz.
+                int first = Math.max(0, (int)Math.ceil(loHz / binWidthHz) - 1);
+                int last = Math.min(binCount - 1, (int)Math.floor(hiHz / binWidthHz) - 1);
+                float rowSum = 0;
+                for (int i = first; i <= last; ++i) {
+                    double hz = (i + 1) * binWidthHz;
+                    double w = (hz < centerHz)
+                        ? (hz - loHz) / (centerHz - loHz)
+                        : (hiHz - hz) / (hiHz - centerHz);
+                    rowWeights[i] = (float)Math.max(0, w);
+                    rowSum += rowWeights[i];
+                }
+                if (rowSum <= 0) {
+                    // The band is narrower than the bin spacing (common for low bands): fall back
+                    // to interpolating between the two bins around the band's center.
+                    double pos = centerHz / binWidthHz - 1;
+                    first = Math.max(0, Math.min(binCount - 2, (int)Math.floor(pos)));
+                    last = first + 1;
+                    float frac = (float)Math.max(0, Math.min(1, pos - first));
+                    rowWeights[first] = 1 - frac;
+                    rowWeights[last] = frac;
+                    rowSum = 1;
+                }
+
+                double gain = weightingGain(centerHz);
+                maxGain = Math.max(maxGain, gain);
+                rowStart[b] = entries;
+                for (int i = first; i <= last; ++i) {
+                    if (rowWeights[i] > 0) {
+                        tmpIndex[entries] = i;
+                        tmpWeight[entries] = (float)(rowWeights[i] / rowSum * gain);
+                        ++entries;
+                    }
+                    rowWeights[i] = 0;
+                }
+            }
+            rowStart[bandCount] = entries;
+
+            // The weighting peaks slightly above 1.0 around 2.5kHz; scale it back so that bands
+            // never exceed 1.0.
+            binIndex = new int[entries];
+            weight = new float[entries];
+            for (int i = 0; i < entries; ++i) {
+                binIndex[i] = tmpIndex[i];
+                weight[i] = (float)(tmpWeight[i] / maxGain);
+            }
+            Log.d(TAG, "Built " + entries + " weights for bins=" + binCount
+                + " rate=" + key.sampleRateHz + "Hz bands=" + bandCount + " scale=" + key.scale);
+        }
+    }
+}
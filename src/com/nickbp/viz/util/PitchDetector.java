@@ -0,0 +1,153 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Estimates the fundamental frequency of raw PCM audio using the YIN algorithm.
+ *
+ * YIN's difference function {@code d(t) = sum((x[j] - x[j+t])^2)} is expanded into signal
+ * energies, taken from a running sum of squares, minus twice the autocorrelation, which is
+ * computed via {@link FFT} (power spectrum, then inverse transform). This makes each detection
+ * O(N log N) rather than O(N^2). All scratch buffers are allocated up front, so detection doesn't
+ * allocate.
+ *
+ * @see <a href="http://audition.ens.fr/adc/pdf/2002_JASA_YIN.pdf">YIN, a fundamental frequency
+ * estimator for speech and music</a>
+ */
+public class PitchDetector {
+    // Lowest and highest detectable pitches: roughly the range of voices and most instruments.
+    private static final float MIN_HZ = 60;
+    private static final float MAX_HZ = 1500;
+    // Cumulative mean normalized difference below which a lag is accepted as the period.
+    private static final float THRESHOLD = 0.15f;
+
+    private final int bufferSize;
+    private final int sampleRateHz;
+    private final int minLag, maxLag;
+
+    private final FFT fft;
+    private final float[] fftInput;
+    private final float[] energy;
+    private final float[] diff;
+
+    private float pitchHz = 0;
+    private float confidence = 0;
+
+    /**
+     * Creates a detector for buffers of {@code bufferSize} samples, recorded at the provided
+     * sample rate. {@code bufferSize} must be a power of two.
+     */
+    public PitchDetector(int bufferSize, int sampleRateHz) {
+        this.bufferSize = bufferSize;
+        this.sampleRateHz = sampleRateHz;
+        // lags beyond half the buffer don't leave enough overlap to compare
+        maxLag = Math.min(bufferSize / 2, (int)Math.ceil(sampleRateHz / MIN_HZ));
+        minLag = Math.max(2, (int)Math.floor(sampleRateHz / MAX_HZ));
+
+        // zero-padded to twice the buffer, so that the autocorrelation doesn't wrap around
+        fft = new FFT(bufferSize * 2);
+        fftInput = new float[bufferSize * 2];
+        energy = new float[bufferSize + 1];
+        diff = new float[maxLag + 2];
+    }
+
+    /**
+     * Analyzes the provided buffer of samples, which must be the size given to
+     * {@link #PitchDetector(int, int)}, and returns the detected pitch in Hz, or zero if no clear
+     * pitch was found.
+     */
+    public float detect(short[] samples) {
+        if (samples.length != bufferSize) {
+            throw new IllegalArgumentException(
+                "Buffer size=" + samples.length + " doesn't match expected size=" + bufferSize);
+        }
+
+        // running sum of squares: energy[k] = sum(x[0..k)^2)
+        energy[0] = 0;
+        for (int i = 0; i < bufferSize; ++i) {
+            float x = samples[i] / 32768f;
+            fftInput[i] = x;
+            energy[i + 1] = energy[i] + x * x;
+        }
+        for (int i = bufferSize; i < fftInput.length; ++i) {
+            fftInput[i] = 0;
+        }
+        if (energy[bufferSize] <= 0) {
+            return setResult(0, 0);
+        }
+
+        // autocorrelation: inverse transform of the power spectrum
+        fft.forward(fftInput);
+        for (int i = 0; i < fftInput.length; ++i) {
+            fft.real[i] = fft.real[i] * fft.real[i] + fft.imag[i] * fft.imag[i];
+            fft.imag[i] = 0;
+        }
+        fft.inverse();
+        final float[] acf = fft.real;
+
+        // difference function over the overlapping region, then cumulative mean normalization
+        diff[0] = 1;
+        float runningSum = 0;
+        for (int lag = 1; lag <= maxLag + 1; ++lag) {
+            float d = energy[bufferSize - lag] + (energy[bufferSize] - energy[lag]) - 2 * acf[lag];
+            runningSum += d;
+            diff[lag] = (runningSum > 0) ? d * lag / runningSum : 1;
+        }
+
+        // the first dip below the threshold, followed down to its local minimum
+        int lag = minLag;
+        while (lag <= maxLag && diff[lag] >= THRESHOLD) {
+            ++lag;
+        }
+        if (lag > maxLag) {
+            return setResult(0, 0);
+        }
+        while (lag < maxLag && diff[lag + 1] < diff[lag]) {
+            ++lag;
+        }
+
+        // refine with a parabolic fit around the minimum
+        float period = lag;
+        float prev = diff[lag - 1], min = diff[lag], next = diff[lag + 1];
+        float denom = prev - 2 * min + next;
+        if (denom > 0) {
+            period += 0.5f * (prev - next) / denom;
+        }
+        return setResult(sampleRateHz / period, 1 - min);
+    }
+
+    private float setResult(float pitchHz, float confidence) {
+        this.pitchHz = pitchHz;
+        this.confidence = Math.max(0, Math.min(1, confidence));
+        return pitchHz;
+    }
+
+    /**
+     * Returns the pitch found by the most recent {@link #detect(short[])}, or zero if none.
+     */
+    public float getPitchHz() {
+        return pitchHz;
+    }
+
+    /**
+     * Returns how periodic the most recently analyzed buffer was, from 0.0f to 1.0f, or zero if
+     * no pitch was found.
+     */
+    public float getConfidence() {
+        return confidence;
+    }
+}
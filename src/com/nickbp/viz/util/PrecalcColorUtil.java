@@ -16,7 +16,7 @@
 
 package com.nickbp.viz.util;
 
-import android.graphics.Color;
+import android.os.SystemClock;
 
 public class PrecalcColorUtil {
     // Exponent used for exaggerating the luminosity low values to make them more visible.
@@ -34,57 +34,88 @@ public class PrecalcColorUtil {
     private static final int KEY_TABLE_SIZE = (128 << 7) + 128 + 1;
 
     /**
-     * Each FFT data point consists of an imaginary byte and a real byte. The magnitude of the
-     * point is calculated as {@code magnitude = sqrt(real^2 + imaginary^2)}.
+     * Holds the tables, which take a noticeable amount of time to build. They're built when this
+     * class is first touched, either by {@link #warmUpAsync()} or by the first lookup, which
+     * waits for any build already in progress on another thread.
      */
-    private static final float[] FFTKEY_TO_MAGNITUDE_TABLE = new float[KEY_TABLE_SIZE];
-
-    /**
-     * Generate nearby colors for magnitude values between 0.0f and 1.0f (inclusive). The size of
-     * this table is inversely related to the size of the approximation error. Lets arbitrarily
-     * reuse the size of the other table for this one.
-     *
-     * Size is 10% greater than KEY_TABLE_SIZE, just to avoid barely-over-1.0 magnitudes exceeding
-     * the array.
-     */
-    private static final int[] FFTMAGNITUDE_TO_COLOR_TABLE = new int[(int)(1.1 * KEY_TABLE_SIZE)];
-
-    static {
-        final double maxCombinedVal = Math.sqrt(2 * (127 * 127));
-        for (int i = 0; i <= 128; ++i) {
-            for (int j = 0; j <= 128; ++j) {
-                int key = (i << 7) + j;
-                float value = (float)(Math.sqrt((i * i) + (j * j)) / maxCombinedVal);
-                FFTKEY_TO_MAGNITUDE_TABLE[key] = value;
+    private static class Tables {
+        /**
+         * Each FFT data point consists of an imaginary byte and a real byte. The magnitude of the
+         * point is calculated as {@code magnitude = sqrt(real^2 + imaginary^2)}.
+         */
+        private static final float[] FFTKEY_TO_MAGNITUDE_TABLE = new float[KEY_TABLE_SIZE];
+
+        /**
+         * Generate nearby colors for magnitude values between 0.0f and 1.0f (inclusive). The size
+         * of this table is inversely related to the size of the approximation error. Lets
+         * arbitrarily reuse the size of the other table for this one.
+         *
+         * Size is 10% greater than KEY_TABLE_SIZE, just to avoid barely-over-1.0 magnitudes
+         * exceeding the array.
+         */
+        private static final int[] FFTMAGNITUDE_TO_COLOR_TABLE =
+            new int[(int)(1.1 * KEY_TABLE_SIZE)];
+
+        static {
+            final double maxCombinedVal = Math.sqrt(2 * (127 * 127));
+            for (int i = 0; i <= 128; ++i) {
+                for (int j = 0; j <= 128; ++j) {
+                    int key = (i << 7) + j;
+                    float value = (float)(Math.sqrt((i * i) + (j * j)) / maxCombinedVal);
+                    FFTKEY_TO_MAGNITUDE_TABLE[key] = value;
+                }
+            }
+            for (int i = 0; i < FFTMAGNITUDE_TO_COLOR_TABLE.length; ++i) {
+                float magnitude = i / (float)KEY_TABLE_SIZE;
+                FFTMAGNITUDE_TO_COLOR_TABLE[i] = valueToColor(magnitude,
+                        Math.min(MAX_LUM, (float)Math.pow(magnitude, LUM_EXPONENT)));
             }
         }
-        for (int i = 0; i < FFTMAGNITUDE_TO_COLOR_TABLE.length; ++i) {
-            float magnitude = i / (float)KEY_TABLE_SIZE;
-            FFTMAGNITUDE_TO_COLOR_TABLE[i] = valueToColor(magnitude,
-                    Math.min(MAX_LUM, (float)Math.pow(magnitude, LUM_EXPONENT)));
+
+        private static void init() {
+            // Nothing to do, the static block has already run by the time we get here.
         }
     }
 
     private PrecalcColorUtil() {
     }
 
+    /**
+     * Starts building the lookup tables on a background thread, so that they're likely to be
+     * ready by the time the first frame is analyzed. Should be called as early as possible during
+     * startup. Lookups are safe at any time, with or without calling this.
+     */
+    public static void warmUpAsync() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startMs = SystemClock.elapsedRealtime();
+                Tables.init();
+                StartupTrace.mark("color tables built in "
+                        + (SystemClock.elapsedRealtime() - startMs) + "ms");
+            }
+        }, "PrecalcColorUtil");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
     public static int fftToKey(byte real, byte imaginary) {
         return (Math.abs(real) << 7) + Math.abs(imaginary);
     }
 
     /**
      * Given a raw FFT real+imaginary pair, returns the buffer key, suitable for
-     * {@link #FFTKEY_TO_MAGNITUDE_TABLE}, for the pair.
+     * {@link Tables#FFTKEY_TO_MAGNITUDE_TABLE}, for the pair.
      */
     public static float keyToMagnitude(int key) {
-        return FFTKEY_TO_MAGNITUDE_TABLE[key];
+        return Tables.FFTKEY_TO_MAGNITUDE_TABLE[key];
     }
 
     /**
      * Given an FFT magnitude, returns a nearby color for that magnitude.
      */
     public static int magnitudeToColor(float magnitude) {
-        return FFTMAGNITUDE_TO_COLOR_TABLE[(int)(magnitude * KEY_TABLE_SIZE)];
+        return Tables.FFTMAGNITUDE_TO_COLOR_TABLE[(int)(magnitude * KEY_TABLE_SIZE)];
     }
 
     // HSL math
@@ -102,19 +133,27 @@ public class PrecalcColorUtil {
         float H = ONE_THIRD * (1 - value);
         lum *= 2;
         if (lum < 1) {
-            return Color.rgb(
+            return rgb(
                 (int)(hueToRgbValWithP0(lum, H + ONE_THIRD) * 255),
                 (int)(hueToRgbValWithP0(lum, H) * 255),
                 (int)(hueToRgbValWithP0(lum, H - ONE_THIRD) * 255));
         } else {
             lum -= 1;
-            return Color.rgb(
+            return rgb(
                 (int)(hueToRgbValWithQ1(lum, H + ONE_THIRD) * 255),
                 (int)(hueToRgbValWithQ1(lum, H) * 255),
                 (int)(hueToRgbValWithQ1(lum, H - ONE_THIRD) * 255));
         }
     }
 
+    /**
+     * Packs the provided 0-255 components into an opaque ARGB color, equivalent to
+     * {@link android.graphics.Color#rgb(int, int, int)} without depending on Android graphics.
+     */
+    private static int rgb(int red, int green, int blue) {
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
     private static float hueToRgbValWithP0(final float q, float t) {
         if (t < 0) {
             ++t;
@@ -0,0 +1,158 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Tracks the median of a fixed-size sliding window of values.
+ *
+ * The window is held in two indexed heaps: a max-heap of the lower half and a min-heap of the
+ * upper half, where each heap entry is a slot in a ring of window values. Replacing the oldest
+ * value updates its slot in place and re-sifts it, plus at most one exchange between the heaps, so
+ * each update is O(log n) rather than a re-sort of the window.
+ */
+public class SlidingMedian {
+    private final int size;
+    // Window values, by slot. Slots are replaced in ring order, oldest first.
+    private final float[] values;
+    private int oldest = 0;
+
+    // The lower half as a max-heap and the upper half as a min-heap, each holding slots.
+    private final int[] low, high;
+    private final int lowSize, highSize;
+    // For each slot, which heap it's in and its position within that heap.
+    private final boolean[] inLow;
+    private final int[] heapPos;
+
+    /**
+     * Creates an instance with a window of {@code size} values, initially all zero.
+     */
+    public SlidingMedian(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + size);
+        }
+        this.size = size;
+        values = new float[size];
+        lowSize = (size + 1) / 2;
+        highSize = size / 2;
+        low = new int[lowSize];
+        high = new int[highSize];
+        inLow = new boolean[size];
+        heapPos = new int[size];
+        reset(0);
+    }
+
+    /**
+     * Fills the whole window with {@code value}.
+     */
+    public void reset(float value) {
+        for (int slot = 0; slot < size; ++slot) {
+            values[slot] = value;
+            if (slot < lowSize) {
+                low[slot] = slot;
+                inLow[slot] = true;
+                heapPos[slot] = slot;
+            } else {
+                high[slot - lowSize] = slot;
+                inLow[slot] = false;
+                heapPos[slot] = slot - lowSize;
+            }
+        }
+        oldest = 0;
+    }
+
+    /**
+     * Replaces the oldest value in the window with {@code value}, and returns the new median.
+     */
+    public float add(float value) {
+        int slot = oldest;
+        oldest = (oldest + 1 == size) ? 0 : oldest + 1;
+        values[slot] = value;
+        if (inLow[slot]) {
+            siftUp(low, true, heapPos[slot]);
+            siftDown(low, lowSize, true, heapPos[slot]);
+        } else {
+            siftUp(high, false, heapPos[slot]);
+            siftDown(high, highSize, false, heapPos[slot]);
+        }
+        if (highSize > 0 && values[low[0]] > values[high[0]]) {
+            // The new value crossed the median: exchange the heaps' tops.
+            int lowTop = low[0], highTop = high[0];
+            low[0] = highTop;
+            inLow[highTop] = true;
+            heapPos[highTop] = 0;
+            high[0] = lowTop;
+            inLow[lowTop] = false;
+            heapPos[lowTop] = 0;
+            siftDown(low, lowSize, true, 0);
+            siftDown(high, highSize, false, 0);
+        }
+        return getMedian();
+    }
+
+    /**
+     * Returns the median of the values currently in the window.
+     */
+    public float getMedian() {
+        if (lowSize == highSize) {
+            return (values[low[0]] + values[high[0]]) / 2;
+        }
+        return values[low[0]];
+    }
+
+    /**
+     * Returns whether the value in slot {@code a} belongs above slot {@code b} in the heap.
+     */
+    private boolean above(int a, int b, boolean max) {
+        return max ? values[a] > values[b] : values[a] < values[b];
+    }
+
+    private void siftUp(int[] heap, boolean max, int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (!above(heap[pos], heap[parent], max)) {
+                break;
+            }
+            swap(heap, pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int heapSize, boolean max, int pos) {
+        while (true) {
+            int child = pos * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && above(heap[child + 1], heap[child], max)) {
+                ++child;
+            }
+            if (!above(heap[child], heap[pos], max)) {
+                break;
+            }
+            swap(heap, pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int[] heap, int a, int b) {
+        int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+        heapPos[heap[a]] = a;
+        heapPos[heap[b]] = b;
+    }
+}
@@ -0,0 +1,120 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Smooths successive frames of spectrum data through a chain of stages, configured by a shared
+ * {@link SmoothingConfig}:
+ *
+ * 1. An envelope per value, with separate attack and release rates and a maximum fall per frame.
+ * 2. A box average across neighboring values, computed from prefix sums in O(n) for any radius.
+ * 3. A peak-hold per value, which holds each peak for a time before letting it fall.
+ *
+ * Stages which are disabled in the config are skipped. All state is allocated up front, so
+ * applying the chain or changing its config never allocates.
+ */
+public class SmoothingChain {
+    private final SmoothingConfig config;
+    // The settings for the current frame, copied from the config at its start.
+    private final SmoothingConfig.Settings settings = new SmoothingConfig.Settings();
+    private float frameRateHz = 0;
+
+    // Envelope state, kept separately from the output so that later stages don't feed back.
+    private final float[] envelope;
+    // Prefix sums of the envelope, where prefix[i] is the sum of values before i.
+    private final float[] prefix;
+    // Held peaks, and how many more frames each peak is held before it starts falling.
+    private final float[] held;
+    private final int[] holdFramesLeft;
+
+    /**
+     * Creates an instance for spectrum data with {@code binCount} values, which uses the settings
+     * in {@code config}.
+     */
+    public SmoothingChain(int binCount, SmoothingConfig config) {
+        this.config = config;
+        envelope = new float[binCount];
+        prefix = new float[binCount + 1];
+        held = new float[binCount];
+        holdFramesLeft = new int[binCount];
+    }
+
+    /**
+     * Sets the rate, in Hz, at which frames will be provided. This is required for the peak-hold,
+     * which is disabled until a rate is set.
+     */
+    public void setFrameRateHz(float frameRateHz) {
+        this.frameRateHz = frameRateHz;
+    }
+
+    /**
+     * Adds the provided {@code input} frame, and writes the smoothed result to {@code output}. Both
+     * must have the size provided to the constructor.
+     */
+    public void apply(float[] input, float[] output) {
+        // Read the config once, so that each frame is consistent even if it's changed midway.
+        config.read(settings);
+        final float attack = settings.attack;
+        final float release = settings.release;
+        final float maxFall = settings.maxFall;
+        final int boxRadius = settings.boxRadius;
+        final float holdSeconds = settings.holdSeconds;
+        final float holdFallPerSecond = settings.holdFallPerSecond;
+        final int n = input.length;
+
+        for (int i = 0; i < n; ++i) {
+            float prev = envelope[i];
+            float val = input[i];
+            if (val > prev) {
+                envelope[i] = prev + (val - prev) * attack;
+            } else {
+                envelope[i] = prev - Math.min((prev - val) * release, maxFall);
+            }
+        }
+
+        if (boxRadius > 0) {
+            prefix[0] = 0;
+            for (int i = 0; i < n; ++i) {
+                prefix[i + 1] = prefix[i] + envelope[i];
+            }
+            for (int i = 0; i < n; ++i) {
+                int start = Math.max(0, i - boxRadius);
+                int end = Math.min(n, i + boxRadius + 1);
+                output[i] = (prefix[end] - prefix[start]) / (end - start);
+            }
+        } else {
+            System.arraycopy(envelope, 0, output, 0, n);
+        }
+
+        if ((holdSeconds > 0 || holdFallPerSecond > 0) && frameRateHz > 0) {
+            final int holdFrames = Math.round(holdSeconds * frameRateHz);
+            final float fallPerFrame = holdFallPerSecond / frameRateHz;
+            for (int i = 0; i < n; ++i) {
+                if (output[i] >= held[i]) {
+                    held[i] = output[i];
+                    holdFramesLeft[i] = holdFrames;
+                } else if (holdFramesLeft[i] > 0) {
+                    --holdFramesLeft[i];
+                    output[i] = held[i];
+                } else {
+                    held[i] = Math.max(output[i], held[i] - fallPerFrame);
+                    output[i] = held[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Runtime settings for a {@link SmoothingChain}. Settings may be changed from any thread at any
+ * time without allocating, and are read without blocking: each chain picks up the latest
+ * settings at the start of its next frame, and never sees a frame with only some of a change
+ * applied.
+ *
+ * The defaults reproduce the original smoothing: values rise instantly, and fall linearly by
+ * 0.15 per frame, with no smoothing across frequency and no peak-hold. The linear decrease avoids
+ * the appearance of disconnectedness between analyzer and voiceprint, without making the analyzer
+ * look too jittery.
+ */
+public class SmoothingConfig {
+    /**
+     * A copy of the settings, filled by {@link SmoothingConfig#read(Settings)}.
+     */
+    static class Settings {
+        float attack;
+        float release;
+        float maxFall;
+        int boxRadius;
+        float holdSeconds;
+        float holdFallPerSecond;
+    }
+
+    // Incremented before and after each change, so that it's odd while a change is being written.
+    // Readers retry until they see the same even value on both sides of their read.
+    private volatile int sequence = 0;
+
+    private volatile float attack = 1;
+    private volatile float release = 1;
+    private volatile float maxFall = 0.15f;
+    private volatile int boxRadius = 0;
+    private volatile float holdSeconds = 0;
+    private volatile float holdFallPerSecond = 0;
+
+    /**
+     * Sets the per-bin envelope. When a value rises, the smoothed value moves {@code attack} of the
+     * way towards it each frame, and when it falls, {@code release} of the way, but by no more
+     * than {@code maxFall} per frame. {@code attack} and {@code release} are from 0.0f (never
+     * moves) to 1.0f (immediate).
+     */
+    public synchronized void setEnvelope(float attack, float release, float maxFall) {
+        ++sequence;
+        this.attack = attack;
+        this.release = release;
+        this.maxFall = maxFall;
+        ++sequence;
+    }
+
+    /**
+     * Sets the radius, in values, of the box average taken across frequency after the envelope.
+     * Zero disables the box average.
+     */
+    public synchronized void setBoxRadius(int boxRadius) {
+        ++sequence;
+        this.boxRadius = Math.max(0, boxRadius);
+        ++sequence;
+    }
+
+    /**
+     * Sets the peak-hold: each value's recent peak is held for {@code holdSeconds}, then falls by
+     * {@code fallPerSecond} each second. Zero {@code holdSeconds} lets peaks fall right away, and
+     * zero for both disables the peak-hold.
+     */
+    public synchronized void setPeakHold(float holdSeconds, float fallPerSecond) {
+        ++sequence;
+        this.holdSeconds = holdSeconds;
+        this.holdFallPerSecond = fallPerSecond;
+        ++sequence;
+    }
+
+    /**
+     * Copies the current settings into {@code out}, retrying if they're changed midway.
+     */
+    void read(Settings out) {
+        int before, after;
+        do {
+            before = sequence;
+            out.attack = attack;
+            out.release = release;
+            out.maxFall = maxFall;
+            out.boxRadius = boxRadius;
+            out.holdSeconds = holdSeconds;
+            out.holdFallPerSecond = holdFallPerSecond;
+            after = sequence;
+        } while ((before & 1) != 0 || before != after);
+    }
+}
@@ -0,0 +1,79 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs the time taken to reach each step of startup, up to the first rendered frame, eg:
+ * {@code adb logcat -s StartupTrace}. Each launch is timed from {@link #begin()} until
+ * {@link #end(String)}, and marks outside of that span are ignored, so that marks may be left in
+ * code which also runs long after startup.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    // Negative while no launch is being timed.
+    private static volatile long startMs = -1;
+    private static long lastMs;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Starts timing a launch, discarding any launch which didn't reach {@link #end(String)}.
+     */
+    public static synchronized void begin() {
+        startMs = lastMs = SystemClock.elapsedRealtime();
+        Log.i(TAG, "begin");
+    }
+
+    /**
+     * Logs the time at which {@code step} was reached, if a launch is being timed.
+     */
+    public static void mark(String step) {
+        if (startMs < 0) {
+            return;
+        }
+        log(step, false);
+    }
+
+    /**
+     * Logs the time at which {@code step} was reached and stops timing the launch, if one is
+     * being timed.
+     */
+    public static void end(String step) {
+        if (startMs < 0) {
+            return;
+        }
+        log(step, true);
+    }
+
+    private static synchronized void log(String step, boolean end) {
+        if (startMs < 0) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        Log.i(TAG, step + ": +" + (nowMs - lastMs) + "ms, total " + (nowMs - startMs) + "ms"
+                + " [" + Thread.currentThread().getName() + "]");
+        lastMs = nowMs;
+        if (end) {
+            startMs = -1;
+        }
+    }
+}
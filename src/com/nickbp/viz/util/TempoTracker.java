@@ -0,0 +1,209 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+/**
+ * Estimates the tempo and beat phase of the music from an onset strength envelope, such as the
+ * spectral flux in {@link DataBuffers#spectralFlux}.
+ *
+ * The last several seconds of the envelope are kept in a ring. Every {@link #ESTIMATE_INTERVAL}
+ * frames, the envelope's autocorrelation is computed via {@link FFT} (power spectrum, then inverse
+ * transform), and the strongest lag within a plausible tempo range is picked. To avoid spiking any
+ * single frame, each estimate is spread across several consecutive frames.
+ */
+public class TempoTracker {
+    // Number of envelope frames kept. At ~20Hz, this is around 12 seconds.
+    private static final int ENVELOPE_SIZE = 256;
+    // Zero-padded to twice the envelope, so that the autocorrelation doesn't wrap around.
+    private static final int FFT_SIZE = ENVELOPE_SIZE * 2;
+    // How often, in frames, a new tempo estimate is started.
+    private static final int ESTIMATE_INTERVAL = 32;
+
+    private static final float MIN_BPM = 50;
+    private static final float MAX_BPM = 200;
+    // Tempo prior, used to resolve octave errors: favor tempos close to this.
+    private static final float PREFERRED_BPM = 120;
+    // Width of the tempo prior, in octaves.
+    private static final float PRIOR_WIDTH_OCTAVES = 1.0f;
+    // How quickly the beat phase is pulled towards detected onsets.
+    private static final float PHASE_CORRECTION = 0.2f;
+
+    // Stages of an in-progress estimate, each performed on a separate frame.
+    private static final int STAGE_IDLE = 0;
+    private static final int STAGE_FORWARD = 1;
+    private static final int STAGE_INVERSE = 2;
+    private static final int STAGE_PICK = 3;
+
+    private final float[] envelope = new float[ENVELOPE_SIZE];
+    private final float[] fftInput = new float[FFT_SIZE];
+    private final FFT fft = new FFT(FFT_SIZE);
+    private int envelopePos = 0;
+    private int envelopeCount = 0;
+    private int framesUntilEstimate = ESTIMATE_INTERVAL;
+    private int stage = STAGE_IDLE;
+
+    private float frameRateHz = 0;
+    private float tempoBpm = 0;
+    private float beatPhase = 0;
+
+    /**
+     * Sets the rate at which frames will be passed to {@link #update(float, boolean)}. Tempo
+     * tracking is disabled until this has been set to a positive value.
+     */
+    public void setFrameRateHz(float frameRateHz) {
+        this.frameRateHz = frameRateHz;
+    }
+
+    /**
+     * Accepts the onset strength for a new frame, along with whether the frame was detected as an
+     * onset, and updates the tempo and beat phase.
+     */
+    public void update(float onsetStrength, boolean onset) {
+        if (frameRateHz <= 0) {
+            return;
+        }
+
+        envelope[envelopePos] = onsetStrength;
+        envelopePos = (envelopePos + 1) % ENVELOPE_SIZE;
+        if (envelopeCount < ENVELOPE_SIZE) {
+            ++envelopeCount;
+        }
+
+        advanceEstimate();
+        advancePhase(onset);
+    }
+
+    /**
+     * Returns the current tempo estimate in beats per minute, or zero if no estimate is available.
+     */
+    public float getTempoBpm() {
+        return tempoBpm;
+    }
+
+    /**
+     * Returns the position within the current beat, from 0.0f (on the beat) up to 1.0f.
+     */
+    public float getBeatPhase() {
+        return beatPhase;
+    }
+
+    private void advanceEstimate() {
+        switch (stage) {
+            case STAGE_IDLE:
+                if (--framesUntilEstimate <= 0 && envelopeCount == ENVELOPE_SIZE) {
+                    framesUntilEstimate = ESTIMATE_INTERVAL;
+                    stage = STAGE_FORWARD;
+                }
+                break;
+            case STAGE_FORWARD:
+                forwardEnvelope();
+                stage = STAGE_INVERSE;
+                break;
+            case STAGE_INVERSE:
+                // the inverse transform of the power spectrum is the autocorrelation
+                for (int i = 0; i < FFT_SIZE; ++i) {
+                    fft.real[i] = fft.real[i] * fft.real[i] + fft.imag[i] * fft.imag[i];
+                    fft.imag[i] = 0;
+                }
+                fft.inverse();
+                stage = STAGE_PICK;
+                break;
+            case STAGE_PICK:
+                pickTempo(fft.real);
+                stage = STAGE_IDLE;
+                break;
+        }
+    }
+
+    /**
+     * Copies the envelope, oldest first and with its mean removed, into the zero-padded FFT input,
+     * then transforms it.
+     */
+    private void forwardEnvelope() {
+        float sum = 0;
+        for (int i = 0; i < ENVELOPE_SIZE; ++i) {
+            sum += envelope[i];
+        }
+        float mean = sum / ENVELOPE_SIZE;
+        for (int i = 0; i < ENVELOPE_SIZE; ++i) {
+            fftInput[i] = envelope[(envelopePos + i) % ENVELOPE_SIZE] - mean;
+        }
+        for (int i = ENVELOPE_SIZE; i < FFT_SIZE; ++i) {
+            fftInput[i] = 0;
+        }
+        fft.forward(fftInput);
+    }
+
+    /**
+     * Picks the best tempo from the provided autocorrelation, weighting each candidate lag by a
+     * tempo prior and by the autocorrelation at twice the lag. This keeps the estimate from
+     * settling on half or double the actual tempo.
+     */
+    private void pickTempo(float[] acf) {
+        if (acf[0] <= 0) {
+            // silence
+            return;
+        }
+        int minLag = Math.max(1, (int)Math.floor(frameRateHz * 60 / MAX_BPM));
+        int maxLag = Math.min(ENVELOPE_SIZE / 2 - 1, (int)Math.ceil(frameRateHz * 60 / MIN_BPM));
+
+        int bestLag = -1;
+        float bestScore = 0;
+        for (int lag = minLag; lag <= maxLag; ++lag) {
+            float octaves = (float)(Math.log(60 * frameRateHz / lag / PREFERRED_BPM) / Math.log(2));
+            float prior = (float)Math.exp(
+                -0.5 * (octaves / PRIOR_WIDTH_OCTAVES) * (octaves / PRIOR_WIDTH_OCTAVES));
+            float score = prior * (acf[lag] + 0.5f * acf[lag * 2]);
+            if (score > bestScore) {
+                bestScore = score;
+                bestLag = lag;
+            }
+        }
+        if (bestLag < 0) {
+            return;
+        }
+
+        // refine the lag with a parabolic fit around the peak, as the frame rate is fairly coarse
+        float lag = bestLag;
+        float prev = acf[bestLag - 1], peak = acf[bestLag], next = acf[bestLag + 1];
+        float denom = prev - 2 * peak + next;
+        if (denom < 0) {
+            lag += 0.5f * (prev - next) / denom;
+        }
+        tempoBpm = 60 * frameRateHz / lag;
+    }
+
+    /**
+     * Advances the beat phase by one frame at the current tempo, nudging it towards zero when an
+     * onset lands near the expected beat.
+     */
+    private void advancePhase(boolean onset) {
+        if (tempoBpm <= 0) {
+            return;
+        }
+        beatPhase += tempoBpm / (60 * frameRateHz);
+        beatPhase -= (float)Math.floor(beatPhase);
+        if (onset) {
+            // distance from the nearest beat, from -0.5 to 0.5
+            float error = (beatPhase > 0.5f) ? beatPhase - 1 : beatPhase;
+            beatPhase -= error * PHASE_CORRECTION;
+            if (beatPhase < 0) {
+                ++beatPhase;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Named trace sections and counters for the audio, analysis and rendering threads, so that they
+ * can be viewed together on one timeline.
+ *
+ * On a device, {@link #MODE_SYSTEM} forwards to {@link Trace}, for viewing in systrace or
+ * Perfetto. Elsewhere, or for a self-contained capture, {@link #MODE_BUFFER} records events into a
+ * fixed-size in-memory ring which can be written out with {@link #writeChromeJson(Writer)}, for
+ * viewing in chrome://tracing or ui.perfetto.dev.
+ *
+ * While tracing is off, each call costs a single static field check.
+ */
+public class Tracer {
+    private static final String TAG = "Tracer";
+
+    public static final int MODE_OFF = 0;
+    /** Forwards to {@link Trace}. Requires API 18, falling back to {@link #MODE_OFF} otherwise. */
+    public static final int MODE_SYSTEM = 1;
+    /** Records to an in-memory ring of the most recent {@value #BUFFER_SIZE} events. */
+    public static final int MODE_BUFFER = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte TYPE_BEGIN = 'B';
+    private static final byte TYPE_END = 'E';
+    private static final byte TYPE_COUNTER = 'C';
+
+    // Deliberately not volatile, so that checking it is as cheap as possible. Threads which are
+    // already running may not see a change right away, so this should be set during startup.
+    // Seeing a stale value is otherwise harmless: the ring it may lead to is published by Ring's
+    // class initialization, rather than by this field.
+    private static int mode = MODE_OFF;
+
+    private static final AtomicInteger nextEvent = new AtomicInteger();
+    // Whether MODE_BUFFER has ever been set, so that Ring has been initialized. Guarded by the
+    // class lock.
+    private static boolean ringAllocated = false;
+
+    // Trace.setCounter() only exists in API 29+, so it's looked up at runtime.
+    private static Method setCounterMethod = null;
+
+    /**
+     * The ring for {@link #MODE_BUFFER}, allocated when this class is first referenced. The JVM
+     * runs that initialization exactly once, and every thread which then reads these fields is
+     * guaranteed to see the allocated arrays.
+     */
+    private static class Ring {
+        static final long[] timesNs = new long[BUFFER_SIZE];
+        static final byte[] types = new byte[BUFFER_SIZE];
+        static final String[] names = new String[BUFFER_SIZE];
+        static final long[] values = new long[BUFFER_SIZE];
+        static final long[] threadIds = new long[BUFFER_SIZE];
+        static final String[] threadNames = new String[BUFFER_SIZE];
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * Sets where trace events are sent, which may be changed at any time. Switching into
+     * {@link #MODE_BUFFER} clears any events already in the buffer.
+     *
+     * @param mode one of the {@code MODE_*} constants
+     */
+    public static synchronized void setMode(int mode) {
+        if (mode == MODE_SYSTEM) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Log.w(TAG, "System tracing requires API 18, leaving tracing off");
+                mode = MODE_OFF;
+            } else if (Build.VERSION.SDK_INT >= 29) {
+                try {
+                    setCounterMethod =
+                        Trace.class.getMethod("setCounter", String.class, long.class);
+                } catch (NoSuchMethodException e) {
+                    Log.w(TAG, "Trace.setCounter unavailable, counters won't be traced", e);
+                }
+            }
+        } else if (mode == MODE_BUFFER) {
+            ringAllocated = true;
+            nextEvent.set(0);
+        } else if (mode != MODE_OFF) {
+            throw new IllegalArgumentException("Unknown trace mode: " + mode);
+        }
+        Tracer.mode = mode;
+    }
+
+    public static int getMode() {
+        return mode;
+    }
+
+    /**
+     * Begins a section named {@code name}, which must be ended by {@link #end()} on the same
+     * thread. Sections may be nested. {@code name} should be a constant, to avoid allocating.
+     */
+    public static void begin(String name) {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        if (mode == MODE_SYSTEM) {
+            systemBegin(name);
+        } else {
+            record(TYPE_BEGIN, name, 0);
+        }
+    }
+
+    /**
+     * Ends the most recent section begun on this thread.
+     */
+    public static void end() {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        if (mode == MODE_SYSTEM) {
+            systemEnd();
+        } else {
+            record(TYPE_END, null, 0);
+        }
+    }
+
+    /**
+     * Records the current {@code value} of the counter named {@code name}.
+     */
+    public static void counter(String name, long value) {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        if (mode == MODE_SYSTEM) {
+            if (setCounterMethod != null) {
+                try {
+                    setCounterMethod.invoke(null, name, value);
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to set counter " + name, e);
+                    setCounterMethod = null;
+                }
+            }
+        } else {
+            record(TYPE_COUNTER, name, value);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void systemBegin(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void systemEnd() {
+        Trace.endSection();
+    }
+
+    private static void record(byte type, String name, long value) {
+        long nowNs = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        int i = nextEvent.getAndIncrement() & (BUFFER_SIZE - 1);
+        Ring.timesNs[i] = nowNs;
+        Ring.types[i] = type;
+        Ring.names[i] = name;
+        Ring.values[i] = value;
+        Ring.threadIds[i] = thread.getId();
+        Ring.threadNames[i] = thread.getName();
+    }
+
+    /**
+     * Writes the contents of the {@link #MODE_BUFFER} ring to {@code out} in Chrome's trace event
+     * JSON format, oldest first. Events which are recorded while this is running may be garbled,
+     * so tracing should be switched off or idle first. Does not close {@code out}.
+     */
+    public static synchronized void writeChromeJson(Writer out) throws IOException {
+        int end = nextEvent.get();
+        int count = (end < 0 || end > BUFFER_SIZE) ? BUFFER_SIZE : end;
+        if (!ringAllocated) {
+            // Nothing was ever recorded, so avoid allocating the ring just to read it.
+            count = 0;
+        }
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        Map<Long, String> threadNames = new HashMap<Long, String>();
+        for (int n = 0; n < count; ++n) {
+            int i = (end - count + n) & (BUFFER_SIZE - 1);
+            long timeNs = Ring.timesNs[i];
+            out.write("{\"ph\":\"");
+            out.write((char)Ring.types[i]);
+            out.write("\",\"ts\":");
+            out.write(Long.toString(timeNs / 1000));
+            out.write('.');
+            out.write(Long.toString(timeNs % 1000 + 1000).substring(1));
+            out.write(",\"pid\":1,\"tid\":");
+            out.write(Long.toString(Ring.threadIds[i]));
+            if (Ring.names[i] != null) {
+                out.write(",\"name\":");
+                writeJsonString(out, Ring.names[i]);
+            }
+            if (Ring.types[i] == TYPE_COUNTER) {
+                out.write(",\"args\":{\"value\":");
+                out.write(Long.toString(Ring.values[i]));
+                out.write('}');
+            }
+            out.write("},\n");
+            threadNames.put(Ring.threadIds[i], Ring.threadNames[i]);
+        }
+        // Metadata so that each thread is labeled with its name.
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            if (!first) {
+                out.write(",\n");
+            }
+            first = false;
+            out.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":1,\"tid\":");
+            out.write(Long.toString(thread.getKey()));
+            out.write(",\"args\":{\"name\":");
+            writeJsonString(out, thread.getValue());
+            out.write("}}");
+        }
+        out.write("\n]}\n");
+    }
+
+    private static void writeJsonString(Writer out, String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,52 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.wallpaper;
+
+import com.nickbp.viz.audio.AudioSource;
+import com.nickbp.viz.audio.AudioSourceFactory;
+import com.nickbp.viz.audio.PlayerAudioSource;
+
+/**
+ * Creates sources for the always-on modes, which trade detail for power: player output is captured
+ * at a small size and low rate, and there's no microphone fallback, so analysis stops entirely
+ * while nothing is playing.
+ */
+class LowPowerAudioSourceFactory implements AudioSourceFactory {
+    /**
+     * Capture size for player output. This still gives plenty of resolution for the bands, which
+     * are all that the always-on modes draw.
+     */
+    static final int CAPTURE_SIZE = 256;
+    /**
+     * Capture rate for player output, which also limits the frame rate.
+     */
+    static final int CAPTURE_RATE_HZ = 15;
+
+    @Override
+    public AudioSource createPrimarySource() {
+        return new PlayerAudioSource(CAPTURE_SIZE, CAPTURE_RATE_HZ);
+    }
+
+    /**
+     * Returns {@code null}: the microphone isn't used in the always-on modes, both to save power
+     * and so that it's never left listening unattended.
+     */
+    @Override
+    public AudioSource createFallbackSource() {
+        return null;
+    }
+}
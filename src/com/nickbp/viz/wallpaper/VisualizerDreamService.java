@@ -0,0 +1,78 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.wallpaper;
+
+import com.nickbp.viz.audio.AudioSourceSwitcher;
+import com.nickbp.viz.canvas.CanvasVisualizerView;
+import com.nickbp.viz.pipeline.Pipeline;
+import com.nickbp.viz.util.CpuUsageMonitor;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.service.dreams.DreamService;
+import android.util.Log;
+
+/**
+ * Shows the visualizer as a screensaver (daydream), with the same power budget as
+ * {@link VisualizerWallpaperService}. The service is declared on all devices, but is only ever
+ * bound on API 17+, where dreams exist. The dream isn't interactive, so it only ever shows the
+ * first visualization, and it leaves out the level meter so that only that visualization's
+ * features are analyzed.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+public class VisualizerDreamService extends DreamService {
+    private static final String TAG = "VisualizerDreamService";
+
+    private final AudioSourceSwitcher sourceSwitcher =
+        new AudioSourceSwitcher(new LowPowerAudioSourceFactory());
+    private final CpuUsageMonitor cpuMonitor = new CpuUsageMonitor(TAG);
+    private CanvasVisualizerView vizView;
+    private Pipeline pipeline;
+
+    @Override
+    public void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        Log.d(TAG, "onAttachedToWindow");
+        setInteractive(false);
+        setFullscreen(true);
+        setScreenBright(false);
+
+        vizView = new CanvasVisualizerView(this);
+        vizView.setMaxFrameRateHz(VisualizerWallpaperService.MAX_FRAME_RATE_HZ);
+        vizView.setLevelMeterEnabled(false);
+        setContentView(vizView);
+        pipeline = new Pipeline.Builder()
+            .addSink(vizView, vizView)
+            .build();
+    }
+
+    @Override
+    public void onDreamingStarted() {
+        super.onDreamingStarted();
+        cpuMonitor.reset();
+        vizView.start();
+        sourceSwitcher.start(vizView, pipeline);
+    }
+
+    @Override
+    public void onDreamingStopped() {
+        super.onDreamingStopped();
+        sourceSwitcher.stop();
+        vizView.stop();
+        cpuMonitor.log();
+    }
+}
@@ -0,0 +1,177 @@
+/* Music Viz - Eye candy for your music on Android
+ * Copyright (C) 2013 Nicholas Parker
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package com.nickbp.viz.wallpaper;
+
+import com.nickbp.viz.audio.AudioSourceSwitcher;
+import com.nickbp.viz.canvas.CanvasRenderTarget;
+import com.nickbp.viz.canvas.CanvasRenderThread;
+import com.nickbp.viz.canvas.CanvasVisualizerImpl;
+import com.nickbp.viz.canvas.VisualizerRegistry;
+import com.nickbp.viz.pipeline.Pipeline;
+import com.nickbp.viz.util.AudioSourceListener;
+import com.nickbp.viz.util.CpuUsageMonitor;
+import com.nickbp.viz.util.DataBufferListener;
+import com.nickbp.viz.util.DataBuffers;
+
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.service.wallpaper.WallpaperService;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * Shows the analyzer and voiceprint as a live wallpaper, under a power budget suitable for leaving
+ * it running indefinitely:
+ * <ul>
+ * <li>Audio is captured at a small size and low rate (see {@link LowPowerAudioSourceFactory}).</li>
+ * <li>Drawing is capped at {@link #MAX_FRAME_RATE_HZ}.</li>
+ * <li>Capture and drawing stop entirely whenever the wallpaper isn't visible.</li>
+ * <li>While nothing is playing, analysis and drawing stop, and only a cheap check for audio
+ * continues.</li>
+ * </ul>
+ * CPU usage is logged periodically under the {@code CpuUsageMonitor} tag, to check the budget.
+ */
+public class VisualizerWallpaperService extends WallpaperService {
+    private static final String TAG = "VisualizerWallpaperService";
+    private static final String VISUALIZER_NAME = "horiz";
+    static final float MAX_FRAME_RATE_HZ = 15;
+    private static final long CPU_REPORT_INTERVAL_MS = 15 * 60 * 1000;
+
+    @Override
+    public Engine onCreateEngine() {
+        return new VisualizerEngine();
+    }
+
+    private class VisualizerEngine extends Engine
+            implements DataBufferListener, AudioSourceListener, CanvasRenderThread.Renderer {
+        private final AudioSourceSwitcher sourceSwitcher =
+            new AudioSourceSwitcher(new LowPowerAudioSourceFactory());
+        private final CanvasVisualizerImpl visualizer = VisualizerRegistry.create(VISUALIZER_NAME);
+        private final CanvasRenderTarget renderTarget = new CanvasRenderTarget();
+        private final CpuUsageMonitor cpuMonitor = new CpuUsageMonitor(TAG);
+        private final Handler handler = new Handler();
+        private final Runnable cpuReporter = new Runnable() {
+            @Override
+            public void run() {
+                cpuMonitor.log();
+                handler.postDelayed(this, CPU_REPORT_INTERVAL_MS);
+            }
+        };
+        private Pipeline pipeline;
+
+        private CanvasRenderThread renderThread = null;
+        private boolean surfaceAvailable = false;
+        private int surfaceWidth, surfaceHeight;
+
+        @Override
+        public void onCreate(SurfaceHolder surfaceHolder) {
+            super.onCreate(surfaceHolder);
+            Log.d(TAG, "onCreate preview=" + isPreview());
+            pipeline = new Pipeline.Builder()
+                .addSink(this, DataBuffers.FEATURE_BANDS)
+                .build();
+            handler.postDelayed(cpuReporter, CPU_REPORT_INTERVAL_MS);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            Log.d(TAG, "onDestroy");
+            stopRendering();
+            handler.removeCallbacks(cpuReporter);
+            cpuMonitor.log();
+        }
+
+        @Override
+        public void onVisibilityChanged(boolean visible) {
+            Log.d(TAG, "onVisibilityChanged: " + visible);
+            if (visible) {
+                startRendering();
+            } else {
+                stopRendering();
+            }
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+            surfaceAvailable = true;
+            surfaceWidth = width;
+            surfaceHeight = height;
+            if (renderThread != null) {
+                renderThread.onSurfaceChanged(width, height);
+            }
+        }
+
+        @Override
+        public void onSurfaceDestroyed(SurfaceHolder holder) {
+            super.onSurfaceDestroyed(holder);
+            surfaceAvailable = false;
+            if (renderThread != null) {
+                renderThread.onSurfaceDestroyed();
+            }
+        }
+
+        private void startRendering() {
+            if (renderThread != null) {
+                return;
+            }
+            // Start rendering before audio starts arriving, as in the activity.
+            renderThread = new CanvasRenderThread(getSurfaceHolder(), this);
+            renderThread.setMaxFrameRateHz(MAX_FRAME_RATE_HZ);
+            if (surfaceAvailable) {
+                renderThread.onSurfaceChanged(surfaceWidth, surfaceHeight);
+            }
+            renderThread.start();
+            sourceSwitcher.start(this, pipeline);
+        }
+
+        private void stopRendering() {
+            if (renderThread == null) {
+                return;
+            }
+            sourceSwitcher.stop();
+            renderThread.quit();
+            renderThread = null;
+        }
+
+        @Override
+        public void onReceive(DataBuffers buffers, boolean otherThread) {
+            // May race with stopRendering(), so grab a stable reference.
+            CanvasRenderThread thread = renderThread;
+            if (thread != null) {
+                thread.postFrame(buffers);
+            }
+        }
+
+        @Override
+        public void onSourceSwitched(int sourceType) {
+            // Only player output is used, so there's nothing to show.
+        }
+
+        @Override
+        public void onSurfaceSizeChanged(int width, int height) {
+            visualizer.resize(width, height);
+        }
+
+        @Override
+        public void onDraw(DataBuffers data, Canvas canvas) {
+            renderTarget.setCanvas(canvas);
+            visualizer.render(data, renderTarget);
+        }
+    }
+}